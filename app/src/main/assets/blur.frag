@@ -0,0 +1,21 @@
+#version 300 es
+
+precision mediump float;
+uniform sampler2D sTexture;
+uniform vec2 uTexelSize;
+in vec2 TexCoord;
+out vec4 FragColor;
+
+void main() {
+    // 3x3 gaussian kernel
+    vec3 color = texture(sTexture, TexCoord).rgb * 4.0;
+    color += texture(sTexture, TexCoord + vec2(-uTexelSize.x, 0.0)).rgb * 2.0;
+    color += texture(sTexture, TexCoord + vec2(uTexelSize.x, 0.0)).rgb * 2.0;
+    color += texture(sTexture, TexCoord + vec2(0.0, -uTexelSize.y)).rgb * 2.0;
+    color += texture(sTexture, TexCoord + vec2(0.0, uTexelSize.y)).rgb * 2.0;
+    color += texture(sTexture, TexCoord + vec2(-uTexelSize.x, -uTexelSize.y)).rgb;
+    color += texture(sTexture, TexCoord + vec2(uTexelSize.x, -uTexelSize.y)).rgb;
+    color += texture(sTexture, TexCoord + vec2(-uTexelSize.x, uTexelSize.y)).rgb;
+    color += texture(sTexture, TexCoord + vec2(uTexelSize.x, uTexelSize.y)).rgb;
+    FragColor = vec4(color / 16.0, 1.0);
+}
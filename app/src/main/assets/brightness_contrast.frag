@@ -0,0 +1,14 @@
+#version 300 es
+
+precision mediump float;
+uniform sampler2D sTexture;
+// x: brightness added to every channel, y: contrast factor around mid gray
+uniform vec4 uParams;
+in vec2 TexCoord;
+out vec4 FragColor;
+
+void main() {
+    vec3 color = texture(sTexture, TexCoord).rgb;
+    color = (color - 0.5) * uParams.y + 0.5 + uParams.x;
+    FragColor = vec4(clamp(color, 0.0, 1.0), 1.0);
+}
@@ -0,0 +1,12 @@
+#version 300 es
+
+precision mediump float;
+uniform sampler2D sTexture;
+in vec2 TexCoord;
+out vec4 FragColor;
+
+void main() {
+    // BT.601 luma weights
+    float luma = dot(texture(sTexture, TexCoord).rgb, vec3(0.299, 0.587, 0.114));
+    FragColor = vec4(vec3(luma), 1.0);
+}
@@ -0,0 +1,16 @@
+#version 300 es
+
+precision mediump float;
+uniform sampler2D sTexture;
+uniform vec2 uTexelSize;
+in vec2 TexCoord;
+out vec4 FragColor;
+
+void main() {
+    vec3 color = texture(sTexture, TexCoord).rgb * 5.0;
+    color -= texture(sTexture, TexCoord + vec2(-uTexelSize.x, 0.0)).rgb;
+    color -= texture(sTexture, TexCoord + vec2(uTexelSize.x, 0.0)).rgb;
+    color -= texture(sTexture, TexCoord + vec2(0.0, -uTexelSize.y)).rgb;
+    color -= texture(sTexture, TexCoord + vec2(0.0, uTexelSize.y)).rgb;
+    FragColor = vec4(clamp(color, 0.0, 1.0), 1.0);
+}
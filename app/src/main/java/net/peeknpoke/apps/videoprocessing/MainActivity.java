@@ -18,6 +18,7 @@ import android.widget.VideoView;
 
 import net.peeknpoke.apps.frameprocessor.FrameProcessor;
 import net.peeknpoke.apps.frameprocessor.FrameProcessorObserver;
+import net.peeknpoke.apps.frameprocessor.FrameProcessorOptions;
 import net.peeknpoke.apps.videoprocessing.permissions.StoragePermissionHandler;
 
 import java.io.IOException;
@@ -71,9 +72,11 @@ public class MainActivity extends AppCompatActivity implements FrameProcessorObs
         mProgressBar.setVisibility(View.VISIBLE);
         mStartTime = System.currentTimeMillis(); // Record start time
         try {
+            // Processing the same video again after onPause continues where it stopped
             mFrameProcessor = new FrameProcessor(getApplicationContext(), mVideoUri,
                     numberOfFrames,
-                    getResources().getString(R.string.app_name));
+                    getResources().getString(R.string.app_name),
+                    new FrameProcessorOptions().setResumable(true));
             mFrameProcessor.registerObserver(this);
         } catch (IOException e) {
             e.printStackTrace();
@@ -0,0 +1,90 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Every CPU filter kernel on a 1080p frame, on one thread and on a pool with one thread per core.
+ * Compare with RendererBenchmark for the same stages on the GPU.
+ */
+@RunWith(Parameterized.class)
+public class CpuFilterBenchmark {
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    @Parameterized.Parameters(name = "{0},parallel={1}")
+    public static Collection<Object[]> stages()
+    {
+        return Arrays.asList(new Object[][]{
+                {FilterGraph.DEFAULT_STAGE, false},
+                {FilterGraph.DEFAULT_STAGE, true},
+                {FilterGraph.GRAYSCALE_STAGE, false},
+                {FilterGraph.GRAYSCALE_STAGE, true},
+                {FilterGraph.BRIGHTNESS_CONTRAST_STAGE, false},
+                {FilterGraph.BRIGHTNESS_CONTRAST_STAGE, true},
+                {FilterGraph.BLUR_STAGE, false},
+                {FilterGraph.BLUR_STAGE, true},
+                {FilterGraph.SHARPEN_STAGE, false},
+                {FilterGraph.SHARPEN_STAGE, true}
+        });
+    }
+
+    private final String mStage;
+    private final boolean mParallel;
+    private ForkJoinPool mPool;
+    private CpuFilterEngine mEngine;
+    private IntBuffer mPixels;
+
+    public CpuFilterBenchmark(String stage, boolean parallel)
+    {
+        mStage = stage;
+        mParallel = parallel;
+    }
+
+    @Before
+    public void setUp()
+    {
+        mPixels = ByteBuffer.allocateDirect(WIDTH*HEIGHT*4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int seed = 1;
+        for (int i = 0; i<WIDTH*HEIGHT; i++)
+        {
+            seed = seed*1103515245 + 12345;
+            mPixels.put(i, seed);
+        }
+        mPool = mParallel ? new ForkJoinPool(Runtime.getRuntime().availableProcessors()) : null;
+        FilterGraph graph = new FilterGraph().addStage(mStage, 0.1f, 1.2f);
+        mEngine = new CpuFilterEngine(graph, 0, mPool);
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (mPool!=null)
+            mPool.shutdown();
+    }
+
+    @Test
+    public void filter()
+    {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning())
+            mEngine.apply(mPixels, WIDTH, HEIGHT);
+    }
+}
@@ -0,0 +1,171 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.Manifest;
+import android.content.Context;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.rule.GrantPermissionRule;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames per second of the whole pipeline, from the extractor to the archive on disk, over generated
+ * H.264 and HEVC clips. A whole job is far too long for the microbenchmark loop, so every
+ * configuration runs a few times and the results are appended as one JSON object per line to
+ * frameprocessor-e2e.json in the test app's external files folder, next to the microbenchmark results.
+ */
+@RunWith(Parameterized.class)
+public class EndToEndBenchmark {
+    private static final String TAG = EndToEndBenchmark.class.getSimpleName();
+    private static final String APP_NAME = "FrameProcessorBenchmark";
+    private static final int FRAMES = 90;
+    private static final int RUNS = 3;
+    private static final long TIMEOUT_MINUTES = 10;
+
+    @Rule
+    public GrantPermissionRule mPermissionRule =
+            GrantPermissionRule.grant(Manifest.permission.WRITE_EXTERNAL_STORAGE);
+
+    @Parameterized.Parameters(name = "{0} {1}x{2}")
+    public static Collection<Object[]> configurations()
+    {
+        return Arrays.asList(new Object[][]{
+                {MediaFormat.MIMETYPE_VIDEO_AVC, 854, 480},
+                {MediaFormat.MIMETYPE_VIDEO_AVC, 1920, 1080},
+                {MediaFormat.MIMETYPE_VIDEO_AVC, 3840, 2160},
+                {MediaFormat.MIMETYPE_VIDEO_HEVC, 854, 480},
+                {MediaFormat.MIMETYPE_VIDEO_HEVC, 1920, 1080},
+                {MediaFormat.MIMETYPE_VIDEO_HEVC, 3840, 2160}
+        });
+    }
+
+    private final String mMimeType;
+    private final int mWidth;
+    private final int mHeight;
+
+    public EndToEndBenchmark(String mimeType, int width, int height)
+    {
+        mMimeType = mimeType;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    @AfterClass
+    public static void deleteOutput()
+    {
+        File folder = FileOperations.getAppMediaFolder(APP_NAME);
+        File[] files = folder!=null ? folder.listFiles() : null;
+        if (files==null)
+            return;
+        for (File file : files)
+        {
+            if (!file.delete())
+                Log.w(TAG, "Could not delete " + file);
+        }
+    }
+
+    @Test
+    public void framesPerSecond() throws Exception
+    {
+        Context context = InstrumentationRegistry.getInstrumentation().getContext();
+        File clip;
+        try {
+            clip = TestClips.get(context, mMimeType, mWidth, mHeight, FRAMES);
+        } catch (IOException e) {
+            // Not every device, and few emulators, can encode every format and size
+            Assume.assumeNoException(e);
+            return;
+        }
+
+        double[] fps = new double[RUNS];
+        PipelineStats stats = null;
+        for (int i = 0; i<RUNS; i++)
+        {
+            FrameProcessorOptions options = new FrameProcessorOptions()
+                    .setOutputMode(FrameProcessorOptions.OutputMode.ARCHIVE)
+                    .setMediaPublishingEnabled(false)
+                    .setProgramCacheEnabled(true)
+                    .setInstrumentationEnabled(true);
+            JobResult result = new JobResult();
+            long start = System.nanoTime();
+            FrameProcessor frameProcessor = new FrameProcessor(context, Uri.fromFile(clip), FRAMES, APP_NAME,
+                    options);
+            frameProcessor.registerObserver(result);
+            frameProcessor.registerStatsObserver(result);
+            try {
+                if (!result.done.await(TIMEOUT_MINUTES, TimeUnit.MINUTES))
+                    throw new AssertionError("Job did not finish in " + TIMEOUT_MINUTES + " minutes");
+            } finally {
+                frameProcessor.release();
+            }
+            fps[i] = FRAMES*1e9/(System.nanoTime() - start);
+            stats = result.report;
+        }
+        Arrays.sort(fps);
+        writeResult(context, fps[RUNS/2], fps, stats);
+    }
+
+    private void writeResult(Context context, double medianFps, double[] fps, PipelineStats stats) throws IOException
+    {
+        StringBuilder json = new StringBuilder();
+        json.append(String.format(Locale.US, "{\"device\":\"%s\",\"sdk\":%d,\"mime\":\"%s\",\"width\":%d,\"height\":%d," +
+                        "\"frames\":%d,\"medianFps\":%.2f,\"fps\":[", Build.MODEL, Build.VERSION.SDK_INT, mMimeType,
+                mWidth, mHeight, FRAMES, medianFps));
+        for (int i = 0; i<fps.length; i++)
+            json.append(i > 0 ? "," : "").append(String.format(Locale.US, "%.2f", fps[i]));
+        json.append("]");
+        if (stats!=null)
+        {
+            json.append(",\"p50Ms\":{");
+            PipelineStats.Stage[] stages = PipelineStats.Stage.values();
+            for (int i = 0; i<stages.length; i++)
+                json.append(i > 0 ? "," : "").append(String.format(Locale.US, "\"%s\":%.3f", stages[i],
+                        stats.getLatency(stages[i]).getValueAtPercentile(50)/1e6));
+            json.append("}");
+        }
+        json.append("}\n");
+        Log.i(TAG, json.toString());
+
+        File results = new File(context.getExternalFilesDir(null), "frameprocessor-e2e.json");
+        try (FileWriter writer = new FileWriter(results, true)) {
+            writer.write(json.toString());
+        }
+    }
+
+    private static class JobResult implements FrameProcessorObserver, PipelineStatsObserver {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile PipelineStats report;
+
+        @Override
+        public void doneProcessing() {
+            done.countDown();
+        }
+
+        @Override
+        public void statsUpdated(PipelineStats snapshot) {
+        }
+
+        @Override
+        public void jobFinished(PipelineStats report) {
+            this.report = report;
+        }
+    }
+}
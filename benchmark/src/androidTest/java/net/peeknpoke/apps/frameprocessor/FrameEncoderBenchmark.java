@@ -0,0 +1,111 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.graphics.Bitmap;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * CPU cost of every built-in frame encoder on a 1080p frame, without the file system. The bitmap
+ * copy made by the encoder threads is included when the encoder needs one.
+ */
+@RunWith(Parameterized.class)
+public class FrameEncoderBenchmark {
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> encoders()
+    {
+        return Arrays.asList(new Object[][]{
+                {"jpeg100", FrameEncoders.jpeg(100)},
+                {"jpeg90", FrameEncoders.jpeg(90)},
+                {"png", FrameEncoders.png()},
+                {"webpLossy80", FrameEncoders.webpLossy(80)},
+                {"webpLossless", FrameEncoders.webpLossless()},
+                {"raw", FrameEncoders.raw()}
+        });
+    }
+
+    private final FrameEncoder mEncoder;
+    private ByteBuffer mPixels;
+    private Bitmap mBitmap;
+
+    public FrameEncoderBenchmark(String name, FrameEncoder encoder)
+    {
+        mEncoder = encoder;
+    }
+
+    @Before
+    public void setUp()
+    {
+        // Gradients and a bit of noise, compressors take shortcuts on flat images
+        mPixels = ByteBuffer.allocateDirect(WIDTH*HEIGHT*4).order(ByteOrder.nativeOrder());
+        int seed = 1;
+        for (int y = 0; y<HEIGHT; y++)
+        {
+            for (int x = 0; x<WIDTH; x++)
+            {
+                seed = seed*1103515245 + 12345;
+                int noise = (seed >>> 24) & 0x1f;
+                mPixels.put((byte) (x*255/WIDTH + noise));
+                mPixels.put((byte) (y*255/HEIGHT + noise));
+                mPixels.put((byte) ((x + y)*255/(WIDTH + HEIGHT)));
+                mPixels.put((byte) 0xff);
+            }
+        }
+        mPixels.rewind();
+        mBitmap = mEncoder.needsBitmap() ? Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888) : null;
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (mBitmap!=null)
+            mBitmap.recycle();
+    }
+
+    @Test
+    public void encode() throws IOException
+    {
+        OutputStream out = new DiscardingOutputStream();
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            mPixels.rewind();
+            if (mBitmap!=null)
+            {
+                mBitmap.copyPixelsFromBuffer(mPixels);
+                mPixels.rewind();
+            }
+            mEncoder.encode(mPixels, mBitmap, out);
+        }
+    }
+
+    private static class DiscardingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.view.Surface;
+
+/**
+ * OpenGL ES 3 context with a pbuffer surface, made current on the calling thread.
+ */
+class GlTestContext {
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+    private final EGLDisplay mDisplay;
+    private final EGLConfig mConfig;
+    private final EGLContext mContext;
+    private final EGLSurface mPbuffer;
+
+    GlTestContext(int width, int height)
+    {
+        mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(mDisplay, version, 0, version, 1))
+            throw new IllegalStateException("Could not initialize EGL");
+
+        int[] configAttr = {
+                EGL14.EGL_COLOR_BUFFER_TYPE, EGL14.EGL_RGB_BUFFER,
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGLExt.EGL_OPENGL_ES3_BIT_KHR,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT | EGL14.EGL_WINDOW_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfig = new int[1];
+        if (!EGL14.eglChooseConfig(mDisplay, configAttr, 0, configs, 0, 1, numConfig, 0) || numConfig[0] == 0)
+            throw new IllegalStateException("No OpenGL ES 3 config");
+        mConfig = configs[0];
+
+        int[] ctxAttrib = {
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, 3,
+                EGL14.EGL_NONE
+        };
+        mContext = EGL14.eglCreateContext(mDisplay, mConfig, EGL14.EGL_NO_CONTEXT, ctxAttrib, 0);
+        int[] surfAttr = {
+                EGL14.EGL_WIDTH, width,
+                EGL14.EGL_HEIGHT, height,
+                EGL14.EGL_NONE
+        };
+        mPbuffer = EGL14.eglCreatePbufferSurface(mDisplay, mConfig, surfAttr, 0);
+        makeCurrent(mPbuffer);
+    }
+
+    EGLSurface createWindowSurface(Surface surface)
+    {
+        int[] windowAttr = {
+                EGL14.EGL_NONE
+        };
+        return EGL14.eglCreateWindowSurface(mDisplay, mConfig, surface, windowAttr, 0);
+    }
+
+    void makeCurrent(EGLSurface surface)
+    {
+        EGL14.eglMakeCurrent(mDisplay, surface, surface, mContext);
+    }
+
+    void swapBuffers(EGLSurface surface, long presentationTimeNs)
+    {
+        EGLExt.eglPresentationTimeANDROID(mDisplay, surface, presentationTimeNs);
+        EGL14.eglSwapBuffers(mDisplay, surface);
+    }
+
+    void destroySurface(EGLSurface surface)
+    {
+        makeCurrent(mPbuffer);
+        EGL14.eglDestroySurface(mDisplay, surface);
+    }
+
+    void release()
+    {
+        EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        EGL14.eglDestroySurface(mDisplay, mPbuffer);
+        EGL14.eglDestroyContext(mDisplay, mContext);
+        EGL14.eglTerminate(mDisplay);
+    }
+}
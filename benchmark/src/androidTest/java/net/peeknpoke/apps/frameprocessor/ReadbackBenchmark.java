@@ -0,0 +1,136 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.media.Image;
+import android.opengl.EGLSurface;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Synchronous glReadPixels against the pixel buffer ring and the image reader, reading back a cleared
+ * framebuffer.
+ */
+@RunWith(Parameterized.class)
+public class ReadbackBenchmark {
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    @Parameterized.Parameters(name = "{0}x{1}")
+    public static Collection<Object[]> sizes()
+    {
+        return Arrays.asList(new Object[][]{{854, 480}, {1920, 1080}, {3840, 2160}});
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private GlTestContext mGl;
+
+    public ReadbackBenchmark(int width, int height)
+    {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    @Before
+    public void setUp()
+    {
+        mGl = new GlTestContext(mWidth, mHeight);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mGl.release();
+    }
+
+    @Test
+    public void sync()
+    {
+        ByteBuffer pixels = ByteBuffer.allocateDirect(mWidth*mHeight*4).order(ByteOrder.nativeOrder());
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT);
+            pixels.rewind();
+            GLES30.glReadPixels(0, 0, mWidth, mHeight, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, pixels);
+        }
+    }
+
+    @Test
+    public void pixelBuffers()
+    {
+        final ByteBuffer pixels = ByteBuffer.allocateDirect(mWidth*mHeight*4).order(ByteOrder.nativeOrder());
+        PboReadback readback = new PboReadback(mWidth, mHeight, 3, new PboReadback.Listener() {
+            @Override
+            public void onPixelsReady(ByteBuffer mapped, int frameIndex, long presentationTimeUs) {
+                // Same copy the rendering context makes into a frame slot
+                pixels.rewind();
+                pixels.put(mapped);
+            }
+        });
+        try {
+            BenchmarkState state = mBenchmarkRule.getState();
+            int frameIndex = 0;
+            while (state.keepRunning())
+            {
+                GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT);
+                readback.readPixels(frameIndex, frameIndex);
+                readback.poll();
+                frameIndex++;
+            }
+            readback.drain();
+        } finally {
+            readback.release();
+        }
+    }
+
+    @Test
+    public void imageReader()
+    {
+        Assume.assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O);
+        final ByteBuffer pixels = ByteBuffer.allocateDirect(mWidth*mHeight*4).order(ByteOrder.nativeOrder());
+        ImageReadback readback = new ImageReadback(mWidth, mHeight, 2, new ImageReadback.Listener() {
+            @Override
+            public void onImageReady(Image image, int frameIndex, long presentationTimeUs) {
+                // Reads every byte of the rendered pages once, as an encoder working in place would
+                ByteBuffer mapped = image.getPlanes()[0].getBuffer();
+                pixels.rewind();
+                mapped.limit(Math.min(mapped.capacity(), pixels.capacity()));
+                pixels.put(mapped);
+                image.close();
+            }
+        });
+        EGLSurface surface = mGl.createWindowSurface(readback.getSurface());
+        try {
+            mGl.makeCurrent(surface);
+            BenchmarkState state = mBenchmarkRule.getState();
+            int frameIndex = 0;
+            while (state.keepRunning())
+            {
+                GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT);
+                readback.frameQueued(frameIndex, frameIndex);
+                mGl.swapBuffers(surface, frameIndex);
+                frameIndex++;
+            }
+            readback.drain();
+        } finally {
+            mGl.destroySurface(surface);
+            readback.release();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.content.Context;
+import android.opengl.GLES30;
+import android.opengl.Matrix;
+
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.benchmark.BenchmarkState;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Draw cost of the default filter graph and a two stage graph, including glFinish so the GPU work
+ * is part of the measurement.
+ */
+@RunWith(Parameterized.class)
+public class RendererBenchmark {
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    @Parameterized.Parameters(name = "{0}x{1}")
+    public static Collection<Object[]> sizes()
+    {
+        return Arrays.asList(new Object[][]{{854, 480}, {1920, 1080}, {3840, 2160}});
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private GlTestContext mGl;
+    private TextureHandler mTextureHandler;
+    private final float[] mTransformMatrix = new float[16];
+
+    public RendererBenchmark(int width, int height)
+    {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    @Before
+    public void setUp()
+    {
+        mGl = new GlTestContext(mWidth, mHeight);
+        mTextureHandler = new TextureHandler();
+        Matrix.setIdentityM(mTransformMatrix, 0);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mTextureHandler.cleanup();
+        mGl.release();
+    }
+
+    @Test
+    public void defaultGraph()
+    {
+        measure(FilterGraph.defaultGraph());
+    }
+
+    @Test
+    public void blurSharpenGraph()
+    {
+        measure(new FilterGraph().addStage("blur.frag").addStage("sharpen.frag"));
+    }
+
+    private void measure(FilterGraph filterGraph)
+    {
+        Context context = InstrumentationRegistry.getInstrumentation().getContext();
+        Renderer renderer = new Renderer(context, filterGraph, null);
+        try {
+            BenchmarkState state = mBenchmarkRule.getState();
+            while (state.keepRunning())
+            {
+                renderer.onDrawFrame(mTransformMatrix, mTextureHandler.getTexture(), mWidth, mHeight);
+                GLES30.glFinish();
+            }
+        } finally {
+            renderer.cleanup();
+        }
+    }
+}
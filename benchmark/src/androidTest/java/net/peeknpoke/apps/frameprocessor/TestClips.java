@@ -0,0 +1,79 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.content.Context;
+import android.opengl.EGLSurface;
+import android.opengl.GLES30;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Synthetic test clips encoded on the device with MediaCodec, so no video files have to be checked in.
+ * A moving box over a slowly changing background gives the encoder some motion to work with. Clips
+ * are kept in the cache folder between runs.
+ */
+class TestClips {
+    static final int FRAME_RATE = 30;
+
+    private TestClips()
+    {
+    }
+
+    /**
+     * @throws IOException when the device has no encoder for the mime type and size
+     */
+    static File get(Context context, String mimeType, int width, int height, int frameCount) throws IOException
+    {
+        String name = "clip_" + mimeType.substring(mimeType.indexOf('/')+1) + "_" + width + "x" + height +
+                "_" + frameCount + ".mp4";
+        File clip = new File(context.getCacheDir(), name);
+        if (clip.exists() && clip.length() > 0)
+            return clip;
+
+        File partial = new File(context.getCacheDir(), name + ".tmp");
+        encode(partial, mimeType, width, height, frameCount);
+        if (!partial.renameTo(clip))
+            throw new IOException("Could not move " + partial);
+        return clip;
+    }
+
+    private static void encode(File file, String mimeType, int width, int height, int frameCount)
+            throws IOException
+    {
+        VideoEncoder encoder;
+        try {
+            encoder = new VideoEncoder(file, mimeType, width, height, FRAME_RATE, width*height*4);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            throw new IOException("No " + mimeType + " encoder for " + width + "x" + height, e);
+        }
+
+        GlTestContext gl = new GlTestContext(1, 1);
+        EGLSurface surface = gl.createWindowSurface(encoder.getInputSurface());
+        gl.makeCurrent(surface);
+        try {
+            int box = Math.max(width, height)/8;
+            for (int i = 0; i<frameCount; i++)
+            {
+                float phase = (float) i/frameCount;
+                GLES30.glDisable(GLES30.GL_SCISSOR_TEST);
+                GLES30.glViewport(0, 0, width, height);
+                GLES30.glClearColor(phase, 0.5f, 1.0f - phase, 1.0f);
+                GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT);
+
+                GLES30.glEnable(GLES30.GL_SCISSOR_TEST);
+                GLES30.glScissor((int) (phase*(width - box)), (int) (phase*(height - box)), box, box);
+                GLES30.glClearColor(1.0f, 1.0f - phase, phase, 1.0f);
+                GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT);
+
+                gl.swapBuffers(surface, i*1000000000L/FRAME_RATE);
+                encoder.drain(false);
+            }
+            encoder.signalEndOfInputStream();
+            encoder.drain(true);
+        } finally {
+            gl.destroySurface(surface);
+            encoder.release();
+            gl.release();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * CPU conversion of a 1080p NV12 frame, laid out as decoders hand it over, to RGBA and to packed I420,
+ * with one thread and with as many as there are cores.
+ */
+@RunWith(Parameterized.class)
+public class YuvConverterBenchmark {
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final int ROW_STRIDE = 2048;
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    @Parameterized.Parameters(name = "threads={0}")
+    public static Collection<Object[]> threads()
+    {
+        return Arrays.asList(new Object[][]{
+                {1},
+                {Runtime.getRuntime().availableProcessors()}
+        });
+    }
+
+    private final int mThreads;
+    private YuvConverter mConverter;
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private ByteBuffer mOut;
+
+    public YuvConverterBenchmark(int threads)
+    {
+        mThreads = threads;
+    }
+
+    @Before
+    public void setUp()
+    {
+        mY = ByteBuffer.allocateDirect(ROW_STRIDE*HEIGHT);
+        ByteBuffer chroma = ByteBuffer.allocateDirect(ROW_STRIDE*HEIGHT/2);
+        int seed = 1;
+        while (mY.hasRemaining())
+        {
+            seed = seed*1103515245 + 12345;
+            mY.put((byte) (seed >>> 24));
+        }
+        while (chroma.hasRemaining())
+        {
+            seed = seed*1103515245 + 12345;
+            chroma.put((byte) (seed >>> 24));
+        }
+        mY.clear();
+        chroma.clear();
+        mU = chroma.duplicate();
+        chroma.position(1);
+        mV = chroma.slice();
+        mOut = ByteBuffer.allocateDirect(WIDTH*HEIGHT*4);
+        mConverter = new YuvConverter(mThreads);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mConverter.release();
+    }
+
+    @Test
+    public void toRgba()
+    {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            mConverter.setPlanes(mY, ROW_STRIDE, mU, mV, ROW_STRIDE, 2);
+            mConverter.toRgba(0, 0, WIDTH, HEIGHT, mOut);
+        }
+    }
+
+    @Test
+    public void toI420()
+    {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            mConverter.setPlanes(mY, ROW_STRIDE, mU, mV, ROW_STRIDE, 2);
+            mConverter.toI420(0, 0, WIDTH, HEIGHT, mOut);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the tail of a filter graph on read back RGBA frames with the {@link CpuKernels}. Every pass of
+ * every kernel is cut into bands of rows that are forked onto a shared pool, and the frame ping-pongs
+ * between two int arrays so the kernels are plain array loops. Tasks and arrays are kept between
+ * frames, a frame of the same size does not allocate.
+ */
+class CpuFilterEngine {
+    static final int BAND_ROWS = 32;
+
+    private final CpuKernel[] mKernels;
+    private final float[][] mParams;
+    // Null runs every band on the calling thread
+    private final ForkJoinPool mPool;
+    private final FrameTask mFrameTask = new FrameTask();
+    private BandTask[] mBands = new BandTask[0];
+    private int[] mFront = new int[0];
+    private int[] mBack = new int[0];
+    private int mWidth;
+    private int mHeight;
+
+    // The pass being run, written before the bands are forked
+    private CpuKernel mKernel;
+    private int mPass;
+
+    /**
+     * @param firstStage index of the first stage of the graph run on the CPU, every stage from there on
+     *                   needs a kernel
+     */
+    CpuFilterEngine(FilterGraph graph, int firstStage, ForkJoinPool pool)
+    {
+        if (!supports(graph, firstStage))
+            throw new IllegalArgumentException("No CPU kernel for every stage of "+graph);
+        int count = graph.getStageCount() - firstStage;
+        mKernels = new CpuKernel[count];
+        mParams = new float[count][];
+        for (int i = 0; i<count; i++)
+        {
+            mKernels[i] = CpuKernels.forStage(graph.getStage(firstStage + i));
+            mParams[i] = graph.getStageParams(firstStage + i);
+        }
+        mPool = pool;
+    }
+
+    /**
+     * True when every stage from firstStage on has a CPU kernel.
+     */
+    static boolean supports(FilterGraph graph, int firstStage)
+    {
+        for (int i = firstStage; i<graph.getStageCount(); i++)
+        {
+            if (!CpuKernels.hasKernel(graph.getStage(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Filters the frame in place.
+     */
+    void apply(IntBuffer pixels, int width, int height)
+    {
+        boolean loaded = false;
+        for (int i = 0; i<mKernels.length; i++)
+        {
+            CpuKernel kernel = mKernels[i];
+            if (kernel.getPassCount() == 0)
+                continue;
+            if (!loaded)
+            {
+                ensureSize(width, height);
+                pixels.rewind();
+                pixels.get(mFront, 0, width*height);
+                loaded = true;
+            }
+            kernel.prepare(mParams[i]);
+            for (int pass = 0; pass<kernel.getPassCount(); pass++)
+            {
+                mKernel = kernel;
+                mPass = pass;
+                if (mPool == null || mBands.length == 1)
+                {
+                    for (BandTask band : mBands)
+                        band.runBand();
+                }
+                else
+                {
+                    mFrameTask.reinitialize();
+                    mPool.invoke(mFrameTask);
+                }
+                int[] swap = mFront;
+                mFront = mBack;
+                mBack = swap;
+            }
+        }
+        if (loaded)
+        {
+            pixels.rewind();
+            pixels.put(mFront, 0, width*height);
+            pixels.rewind();
+        }
+    }
+
+    private void ensureSize(int width, int height)
+    {
+        if (width == mWidth && height == mHeight)
+            return;
+        mWidth = width;
+        mHeight = height;
+        mFront = new int[width*height];
+        mBack = new int[width*height];
+        mBands = new BandTask[(height + BAND_ROWS - 1)/BAND_ROWS];
+        for (int i = 0; i<mBands.length; i++)
+            mBands[i] = new BandTask(i*BAND_ROWS, Math.min((i + 1)*BAND_ROWS, height));
+    }
+
+    private class FrameTask extends RecursiveAction {
+        @Override
+        protected void compute() {
+            for (BandTask band : mBands)
+                band.reinitialize();
+            invokeAll(mBands);
+        }
+    }
+
+    private class BandTask extends RecursiveAction {
+        private final int mFirstRow;
+        private final int mLastRow;
+
+        BandTask(int firstRow, int lastRow)
+        {
+            mFirstRow = firstRow;
+            mLastRow = lastRow;
+        }
+
+        @Override
+        protected void compute() {
+            runBand();
+        }
+
+        void runBand()
+        {
+            mKernel.run(mPass, mFront, mBack, mWidth, mHeight, mFirstRow, mLastRow);
+        }
+    }
+}
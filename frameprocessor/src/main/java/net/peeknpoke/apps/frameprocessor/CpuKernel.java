@@ -0,0 +1,25 @@
+package net.peeknpoke.apps.frameprocessor;
+
+/**
+ * CPU counterpart of one filter stage, working on RGBA pixels packed into ints in native byte order.
+ * A kernel runs in one or more passes; every pass sees the complete output of the previous one and is
+ * cut into bands of rows that run in parallel.
+ */
+abstract class CpuKernel {
+    /**
+     * Called once per frame on the calling thread before the passes run, with the stage parameters.
+     */
+    void prepare(float[] params)
+    {
+    }
+
+    int getPassCount()
+    {
+        return 1;
+    }
+
+    /**
+     * Writes the rows from firstRow to lastRow, exclusive, of dst. Reads any row of src.
+     */
+    abstract void run(int pass, int[] src, int[] dst, int width, int height, int firstRow, int lastRow);
+}
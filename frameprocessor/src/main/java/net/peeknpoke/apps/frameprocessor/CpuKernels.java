@@ -0,0 +1,207 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import java.nio.ByteOrder;
+
+/**
+ * CPU kernels of the filter stages that have one. They match the shaders of the same name up to
+ * rounding: edges are clamped like the GPU's clamp to edge sampling, and the output is opaque.
+ */
+final class CpuKernels {
+    // Byte positions of the channels in a pixel read as a native order int
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    static final int RED_SHIFT = LITTLE_ENDIAN ? 0 : 24;
+    static final int GREEN_SHIFT = LITTLE_ENDIAN ? 8 : 16;
+    static final int BLUE_SHIFT = LITTLE_ENDIAN ? 16 : 8;
+    static final int ALPHA_SHIFT = LITTLE_ENDIAN ? 24 : 0;
+    static final int OPAQUE = 0xff << ALPHA_SHIFT;
+    private static final int COLOR_MASK = ~OPAQUE;
+    // Every other byte, so two channels can be summed at once without carrying into each other
+    private static final int LANES = 0x00ff00ff;
+
+    private CpuKernels()
+    {
+    }
+
+    /**
+     * A new kernel for the stage, or null when the stage only runs on the GPU.
+     */
+    static CpuKernel forStage(String stage)
+    {
+        switch (stage)
+        {
+            case FilterGraph.IDENTITY_STAGE:
+                return new Identity();
+            case FilterGraph.DEFAULT_STAGE:
+                return new Negative();
+            case FilterGraph.GRAYSCALE_STAGE:
+                return new Grayscale();
+            case FilterGraph.BRIGHTNESS_CONTRAST_STAGE:
+                return new BrightnessContrast();
+            case FilterGraph.BLUR_STAGE:
+                return new Blur();
+            case FilterGraph.SHARPEN_STAGE:
+                return new Sharpen();
+            default:
+                return null;
+        }
+    }
+
+    static boolean hasKernel(String stage)
+    {
+        return forStage(stage) != null;
+    }
+
+    static class Identity extends CpuKernel {
+        @Override
+        int getPassCount()
+        {
+            // Nothing to do, the engine skips it
+            return 0;
+        }
+
+        @Override
+        void run(int pass, int[] src, int[] dst, int width, int height, int firstRow, int lastRow)
+        {
+            System.arraycopy(src, firstRow*width, dst, firstRow*width, (lastRow - firstRow)*width);
+        }
+    }
+
+    static class Negative extends CpuKernel {
+        @Override
+        void run(int pass, int[] src, int[] dst, int width, int height, int firstRow, int lastRow)
+        {
+            int end = lastRow*width;
+            for (int i = firstRow*width; i<end; i++)
+                dst[i] = (~src[i] & COLOR_MASK) | OPAQUE;
+        }
+    }
+
+    static class Grayscale extends CpuKernel {
+        @Override
+        void run(int pass, int[] src, int[] dst, int width, int height, int firstRow, int lastRow)
+        {
+            int end = lastRow*width;
+            for (int i = firstRow*width; i<end; i++)
+            {
+                int pixel = src[i];
+                // BT.601 luma weights in 8 bit fixed point
+                int luma = (77*((pixel >>> RED_SHIFT) & 0xff) + 150*((pixel >>> GREEN_SHIFT) & 0xff) +
+                        29*((pixel >>> BLUE_SHIFT) & 0xff) + 128) >> 8;
+                dst[i] = (luma << RED_SHIFT) | (luma << GREEN_SHIFT) | (luma << BLUE_SHIFT) | OPAQUE;
+            }
+        }
+    }
+
+    static class BrightnessContrast extends CpuKernel {
+        // The same mapping applies to every channel, so it is a table lookup per channel
+        private final int[] mTable = new int[256];
+
+        @Override
+        void prepare(float[] params)
+        {
+            float brightness = params[0];
+            float contrast = params[1];
+            for (int i = 0; i<256; i++)
+            {
+                float value = (i/255.0f - 0.5f)*contrast + 0.5f + brightness;
+                mTable[i] = Math.max(0, Math.min(255, Math.round(value*255.0f)));
+            }
+        }
+
+        @Override
+        void run(int pass, int[] src, int[] dst, int width, int height, int firstRow, int lastRow)
+        {
+            int[] table = mTable;
+            int end = lastRow*width;
+            for (int i = firstRow*width; i<end; i++)
+            {
+                int pixel = src[i];
+                dst[i] = (table[(pixel >>> RED_SHIFT) & 0xff] << RED_SHIFT) |
+                        (table[(pixel >>> GREEN_SHIFT) & 0xff] << GREEN_SHIFT) |
+                        (table[(pixel >>> BLUE_SHIFT) & 0xff] << BLUE_SHIFT) | OPAQUE;
+            }
+        }
+    }
+
+    /**
+     * The 3x3 gaussian of blur.frag, split into a horizontal and a vertical 1-2-1 pass.
+     */
+    static class Blur extends CpuKernel {
+        @Override
+        int getPassCount()
+        {
+            return 2;
+        }
+
+        @Override
+        void run(int pass, int[] src, int[] dst, int width, int height, int firstRow, int lastRow)
+        {
+            if (pass == 0)
+            {
+                for (int row = firstRow; row<lastRow; row++)
+                {
+                    int start = row*width;
+                    int last = start + width - 1;
+                    for (int i = start; i<=last; i++)
+                        dst[i] = weigh(src[i > start ? i - 1 : i], src[i], src[i < last ? i + 1 : i]);
+                }
+            }
+            else
+            {
+                for (int row = firstRow; row<lastRow; row++)
+                {
+                    int start = row*width;
+                    int above = row > 0 ? start - width : start;
+                    int below = row < height - 1 ? start + width : start;
+                    for (int x = 0; x<width; x++)
+                        dst[start + x] = weigh(src[above + x], src[start + x], src[below + x]);
+                }
+            }
+        }
+
+        /**
+         * (a + 2b + c)/4 on all four channels, two at a time in 16 bit lanes.
+         */
+        private static int weigh(int a, int b, int c)
+        {
+            int even = ((a & LANES) + 2*(b & LANES) + (c & LANES) + 0x00020002) >>> 2;
+            int odd = (((a >>> 8) & LANES) + 2*((b >>> 8) & LANES) + ((c >>> 8) & LANES) + 0x00020002) >>> 2;
+            return (even & LANES) | ((odd & LANES) << 8) | OPAQUE;
+        }
+    }
+
+    /**
+     * The five point kernel of sharpen.frag.
+     */
+    static class Sharpen extends CpuKernel {
+        @Override
+        void run(int pass, int[] src, int[] dst, int width, int height, int firstRow, int lastRow)
+        {
+            for (int row = firstRow; row<lastRow; row++)
+            {
+                int start = row*width;
+                int last = start + width - 1;
+                int above = row > 0 ? -width : 0;
+                int below = row < height - 1 ? width : 0;
+                for (int i = start; i<=last; i++)
+                {
+                    int center = src[i];
+                    int left = src[i > start ? i - 1 : i];
+                    int right = src[i < last ? i + 1 : i];
+                    int up = src[i + above];
+                    int down = src[i + below];
+                    dst[i] = sharpen(center, left, right, up, down, RED_SHIFT) |
+                            sharpen(center, left, right, up, down, GREEN_SHIFT) |
+                            sharpen(center, left, right, up, down, BLUE_SHIFT) | OPAQUE;
+                }
+            }
+        }
+
+        private static int sharpen(int center, int left, int right, int up, int down, int shift)
+        {
+            int value = 5*((center >>> shift) & 0xff) - ((left >>> shift) & 0xff) - ((right >>> shift) & 0xff) -
+                    ((up >>> shift) & 0xff) - ((down >>> shift) & 0xff);
+            return Math.max(0, Math.min(255, value)) << shift;
+        }
+    }
+}
@@ -1,64 +1,108 @@
 package net.peeknpoke.apps.frameprocessor;
 
 import android.content.Context;
-import android.content.Intent;
-import android.graphics.Bitmap;
+import android.graphics.PixelFormat;
+import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
-import android.net.Uri;
+import android.media.Image;
+import android.media.MediaCodec;
 import android.opengl.EGL14;
 import android.opengl.EGLConfig;
 import android.opengl.EGLContext;
 import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
 import android.opengl.EGLSurface;
 import android.opengl.GLES30;
+import android.opengl.Matrix;
+import android.os.Build;
 import android.util.Log;
 import android.view.Surface;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
 
-class CustomContext implements SurfaceTexture.OnFrameAvailableListener, ObserverSubject<RendererObserver> {
+class CustomContext implements SurfaceTexture.OnFrameAvailableListener, RenderingContext, PboReadback.Listener,
+        ImageReadback.Listener {
     private static final String TAG = CustomContext.class.getSimpleName();
+    // Per frame logging, off so the frame loop does not build log strings
+    private static final boolean VERBOSE = false;
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
     private EGLContext mCtx;
     private EGLDisplay mDpy;
     private EGLSurface mSurf;
+    private EGLSurface mEncoderSurf = EGL14.EGL_NO_SURFACE;
+    private EGLSurface mReadbackSurf = EGL14.EGL_NO_SURFACE;
     private TextureHandler mTextureHandler;
-    private final ByteBuffer mBB;
-    private final Bitmap mBitmap;
+    private FrameOutput mFrameOutput;
+    private VideoEncoder mVideoEncoder;
     private Renderer mRenderer;
+    private FilterGraph mFilterGraph;
+    // Filter stages after the readback, null when the GPU renders all of them
+    private CpuFilterEngine mCpuFilters;
+    private ForkJoinPool mCpuFilterPool;
+    private int mCpuFilterThreads;
+    private ProgramBinaryCache mProgramCache;
+    private EGLConfig mConfig;
+    private int mSurfaceWidth;
+    private int mSurfaceHeight;
     private int mImageWidth;
     private int mImageHeight;
     private SurfaceTexture mSurfaceTexture;
     private Surface mSurface;
-    int mOutputFrameIndex = 0;
-    private Context mContext;
+    private int mOutputFrameIndex = 0;
     private float[] mTransformMatrix = new float[16];
     private ArrayList<WeakReference<RendererObserver>> mObservers = new ArrayList<>();
     private int mMaxFrames;
-    private String mAppname;
-    final Object sync = new Object();
-    boolean proceed = false;
+    private final Context mContext;
+    private JobSettings mSettings;
+    private PipelineStats mStats;
+    private PboReadback mPboReadback;
+    private ImageReadback mImageReadback;
+    // Only set when near-duplicate frames are skipped
+    private FrameFingerprint mFingerprint;
 
 
-    CustomContext(Context context,
-                         int imageWidth, int imageHeight, int maxFrames, String appname)
+    CustomContext(Context context, JobSettings settings)
     {
         mContext = context;
-        mMaxFrames = maxFrames;
-        mAppname = appname;
-        mImageWidth = imageWidth;
-        mImageHeight = imageHeight;
+        applySettings(settings, null);
+    }
+
+    /**
+     * @param writer writer of the previous job to write this job's frames with, null for a new output
+     */
+    private void applySettings(JobSettings settings, FrameWriter writer)
+    {
+        mSettings = settings;
+        mStats = settings.stats;
+        mImageWidth = settings.outputWidth;
+        mImageHeight = settings.outputHeight;
+        mOutputFrameIndex = settings.firstFrameIndex;
+        mMaxFrames = settings.firstFrameIndex + settings.maxFrames;
+        mVideoEncoder = settings.videoEncoder;
 
-        mBB = ByteBuffer.allocateDirect(imageHeight*imageWidth * 4);
-        mBB.order(ByteOrder.nativeOrder());
-        mBitmap = Bitmap.createBitmap(imageWidth, imageHeight, Bitmap.Config.ARGB_8888);
+        FrameProcessorOptions options = settings.options;
+        if (options.getOutputMode() == FrameProcessorOptions.OutputMode.CONSUMER)
+            mFrameOutput = new FrameDelivery(options.getFrameConsumer(), settings.stats, mImageWidth, mImageHeight,
+                    PixelFormat.RGBA_8888, options.getConsumerFrameCount());
+        else if (writer!=null)
+        {
+            writer.reuse(settings.frameSink, settings.stats);
+            mFrameOutput = writer;
+        }
+        else if (settings.frameSink!=null)
+            mFrameOutput = new FrameWriter(settings.frameSink, settings.stats, mImageWidth, mImageHeight,
+                    options.getFrameEncoder().needsBitmap(), options.getEncoderThreads(),
+                    options.getWriteQueueCapacity());
+        if (mFrameOutput!=null && settings.memoryGovernor!=null)
+            settings.memoryGovernor.register(mFrameOutput);
     }
 
-    void setupRenderingContext(Context context)
+    @Override
+    public void setupRenderingContext(Context context)
     {
         mDpy = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
         int[] version = new int[2];
@@ -66,9 +110,15 @@ class CustomContext implements SurfaceTexture.OnFrameAvailableListener, Observer
 
         int[] configAttr = {
                 EGL14.EGL_COLOR_BUFFER_TYPE, EGL14.EGL_RGB_BUFFER,
+                // The image reader only takes buffers in the RGBA layout it was created with
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
                 EGL14.EGL_LEVEL, 0,
-                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
-                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+                EGL14.EGL_RENDERABLE_TYPE, EGLExt.EGL_OPENGL_ES3_BIT_KHR,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT | EGL14.EGL_WINDOW_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
                 EGL14.EGL_NONE
         };
         EGLConfig[] configs = new EGLConfig[1];
@@ -76,34 +126,240 @@ class CustomContext implements SurfaceTexture.OnFrameAvailableListener, Observer
         EGL14.eglChooseConfig(mDpy, configAttr, 0,
                 configs, 0, 1, numConfig, 0);
 
-        EGLConfig config = configs[0];
-
-        int[] surfAttr = {
-                EGL14.EGL_WIDTH, mImageWidth,
-                EGL14.EGL_HEIGHT, mImageHeight,
-                EGL14.EGL_NONE
-        };
-
-        mSurf = EGL14.eglCreatePbufferSurface(mDpy, config, surfAttr, 0);
+        mConfig = configs[0];
 
         int[] ctxAttrib = {
-                EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, 3,
                 EGL14.EGL_NONE
         };
-        mCtx = EGL14.eglCreateContext(mDpy, config, EGL14.EGL_NO_CONTEXT, ctxAttrib, 0);
+        mCtx = EGL14.eglCreateContext(mDpy, mConfig, EGL14.EGL_NO_CONTEXT, ctxAttrib, 0);
 
+        createPbuffer();
         EGL14.eglMakeCurrent(mDpy, mSurf, mSurf, mCtx);
 
         mTextureHandler = new TextureHandler();
         GLES30.glClearColor(1.0f, 1.0f, 1.0f, 1.0f);
-        mRenderer = new Renderer(context);
+        if (mSettings.options.isProgramCacheEnabled())
+            mProgramCache = new ProgramBinaryCache(context);
 
         mSurfaceTexture = new SurfaceTexture(mTextureHandler.getTexture());
         mSurface = new Surface(mSurfaceTexture);
         mSurfaceTexture.setOnFrameAvailableListener(this);
+
+        setupJob();
+        notifySetupComplete();
+    }
+
+    /**
+     * Switches to a new job, keeping the EGL context, the SurfaceTexture and, when the filter graph is
+     * unchanged, the linked programs. The frame writer and its encoder threads are kept too when the
+     * next job writes frames of the same size and kind. Must be called on the rendering thread after
+     * {@link #finish()}.
+     */
+    @Override
+    public void reconfigure(JobSettings settings)
+    {
+        FrameWriter writer = FrameWriter.reusable(mFrameOutput, settings);
+        if (writer!=null)
+        {
+            // Kept out of releaseJob
+            if (mSettings.memoryGovernor!=null)
+                mSettings.memoryGovernor.unregister(writer);
+            mFrameOutput = null;
+        }
+        releaseJob();
+        applySettings(settings, writer);
+        setupJob();
         notifySetupComplete();
     }
 
+    private void createPbuffer()
+    {
+        int[] surfAttr = {
+                EGL14.EGL_WIDTH, mImageWidth,
+                EGL14.EGL_HEIGHT, mImageHeight,
+                EGL14.EGL_NONE
+        };
+
+        mSurf = EGL14.eglCreatePbufferSurface(mDpy, mConfig, surfAttr, 0);
+        mSurfaceWidth = mImageWidth;
+        mSurfaceHeight = mImageHeight;
+    }
+
+    private void setupJob()
+    {
+        if (mSurfaceWidth != mImageWidth || mSurfaceHeight != mImageHeight)
+        {
+            EGL14.eglMakeCurrent(mDpy, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, mCtx);
+            EGL14.eglDestroySurface(mDpy, mSurf);
+            createPbuffer();
+        }
+
+        FrameProcessorOptions options = mSettings.options;
+        int[] windowAttr = {
+                EGL14.EGL_NONE
+        };
+        if (mVideoEncoder!=null)
+        {
+            mEncoderSurf = EGL14.eglCreateWindowSurface(mDpy, mConfig, mVideoEncoder.getInputSurface(),
+                    windowAttr, 0);
+            EGL14.eglMakeCurrent(mDpy, mEncoderSurf, mEncoderSurf, mCtx);
+        }
+        else if (useImageReadback(options))
+        {
+            // Every slot of the output can keep an image open, plus the one waiting for a slot
+            mImageReadback = new ImageReadback(mImageWidth, mImageHeight, mFrameOutput.getSlotCount() + 1, this);
+            mReadbackSurf = EGL14.eglCreateWindowSurface(mDpy, mConfig, mImageReadback.getSurface(),
+                    windowAttr, 0);
+            EGL14.eglMakeCurrent(mDpy, mReadbackSurf, mReadbackSurf, mCtx);
+        }
+        else
+            EGL14.eglMakeCurrent(mDpy, mSurf, mSurf, mCtx);
+
+        FilterGraph filterGraph = options.getFilterGraph();
+        int gpuStages = planFilters(filterGraph);
+        FilterGraph gpuGraph;
+        if (gpuStages == filterGraph.getStageCount())
+            gpuGraph = filterGraph;
+        else if (gpuStages == 0)
+            gpuGraph = FilterGraph.identityGraph();
+        else
+            gpuGraph = filterGraph.subGraph(0, gpuStages);
+        if (mRenderer==null || !mFilterGraph.equals(gpuGraph))
+        {
+            if (mRenderer!=null)
+                mRenderer.cleanup();
+            mFilterGraph = gpuGraph.copy();
+            mRenderer = new Renderer(mContext, mFilterGraph, mProgramCache);
+        }
+        if (gpuStages < filterGraph.getStageCount())
+            mCpuFilters = new CpuFilterEngine(filterGraph, gpuStages, getCpuFilterPool());
+        mRenderer.setFlipOutput(mImageReadback!=null);
+        RectF crop = mSettings.crop;
+        if (crop!=null)
+            mRenderer.setCrop(crop.left, crop.top, crop.right, crop.bottom);
+        else
+            mRenderer.setCrop(0.0f, 0.0f, 1.0f, 1.0f);
+        // Where the image reader is not available its mode falls back to pixel buffers
+        if (mImageReadback==null && options.getReadbackMode() != FrameProcessorOptions.ReadbackMode.SYNC)
+            mPboReadback = new PboReadback(mImageWidth, mImageHeight, options.getPboCount(), this);
+        if (mVideoEncoder==null && options.getDuplicateThreshold() >= 0)
+            mFingerprint = new FrameFingerprint(mImageWidth, mImageHeight, options.getDuplicateThreshold());
+    }
+
+    private boolean useImageReadback(FrameProcessorOptions options)
+    {
+        return options.getReadbackMode() == FrameProcessorOptions.ReadbackMode.IMAGE_READER &&
+                mFrameOutput!=null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    /**
+     * Number of leading filter stages rendered on the GPU, the CPU runs the rest after the readback.
+     * Must be called with the context current.
+     */
+    private int planFilters(FilterGraph graph)
+    {
+        int count = graph.getStageCount();
+        FrameProcessorOptions.FilterBackend backend = mSettings.options.getFilterBackend();
+        // The encoder surface takes the rendered frame, there is no readback to filter
+        if (mVideoEncoder!=null || backend == FrameProcessorOptions.FilterBackend.GPU)
+            return count;
+        int minimal = FilterPlanner.minimalSplit(graph);
+        if (backend == FrameProcessorOptions.FilterBackend.CPU)
+            return minimal;
+        if (minimal == count || graph.isIdentity())
+            return count;
+
+        String key = FilterPlanner.key(graph, mImageWidth, mImageHeight);
+        Integer cached = FilterPlanner.cachedSplit(key);
+        if (cached!=null)
+            return cached;
+        long[] gpuNanos = new long[count];
+        long[] cpuNanos = new long[count];
+        for (int i = 0; i<count; i++)
+        {
+            gpuNanos[i] = measureGpu(graph.subGraph(i, i + 1));
+            cpuNanos[i] = i >= minimal ?
+                    FilterPlanner.measureCpu(graph, i, mImageWidth, mImageHeight, getCpuFilterPool()) : -1;
+        }
+        int split = FilterPlanner.chooseSplit(measureGpu(FilterGraph.identityGraph()), gpuNanos, cpuNanos);
+        Log.d(TAG, "Filter stages of "+key+" on the GPU: "+split+" of "+count);
+        FilterPlanner.cacheSplit(key, split);
+        return split;
+    }
+
+    /**
+     * Time per frame of a filter graph on the GPU, drawn into the pbuffer until the GPU is done.
+     */
+    private long measureGpu(FilterGraph graph)
+    {
+        Renderer renderer = new Renderer(mContext, graph, mProgramCache);
+        float[] transform = new float[16];
+        Matrix.setIdentityM(transform, 0);
+        long nanos = 0;
+        for (int i = 0; i<FilterPlanner.WARMUP_RUNS + FilterPlanner.MEASURED_RUNS; i++)
+        {
+            long start = System.nanoTime();
+            renderer.onDrawFrame(transform, mTextureHandler.getTexture(), mImageWidth, mImageHeight);
+            GLES30.glFinish();
+            if (i >= FilterPlanner.WARMUP_RUNS)
+                nanos += System.nanoTime() - start;
+        }
+        renderer.cleanup();
+        return nanos/FilterPlanner.MEASURED_RUNS;
+    }
+
+    private ForkJoinPool getCpuFilterPool()
+    {
+        int threads = mSettings.options.getCpuFilterThreads();
+        if (threads == 0)
+            threads = Runtime.getRuntime().availableProcessors();
+        if (mCpuFilterPool!=null && threads != mCpuFilterThreads)
+        {
+            mCpuFilterPool.shutdown();
+            mCpuFilterPool = null;
+        }
+        // A single thread filters on the rendering thread itself
+        if (mCpuFilterPool==null && threads > 1)
+            mCpuFilterPool = new ForkJoinPool(threads);
+        mCpuFilterThreads = threads;
+        return mCpuFilterPool;
+    }
+
+    /**
+     * Releases what belongs to the current job only.
+     */
+    private void releaseJob()
+    {
+        mCpuFilters = null;
+        if (mFingerprint!=null)
+            mFingerprint.release();
+        mFingerprint = null;
+        if (mPboReadback!=null)
+            mPboReadback.release();
+        mPboReadback = null;
+        if (mReadbackSurf != EGL14.EGL_NO_SURFACE)
+        {
+            EGL14.eglMakeCurrent(mDpy, mSurf, mSurf, mCtx);
+            EGL14.eglDestroySurface(mDpy, mReadbackSurf);
+            mReadbackSurf = EGL14.EGL_NO_SURFACE;
+        }
+        releaseFrameOutput();
+        // After the output, the reader closes the images still attached to its slots
+        if (mImageReadback!=null)
+            mImageReadback.release();
+        mImageReadback = null;
+        if (mEncoderSurf != EGL14.EGL_NO_SURFACE)
+        {
+            EGL14.eglMakeCurrent(mDpy, mSurf, mSurf, mCtx);
+            EGL14.eglDestroySurface(mDpy, mEncoderSurf);
+            mEncoderSurf = EGL14.EGL_NO_SURFACE;
+        }
+        if (mVideoEncoder!=null)
+            mVideoEncoder.release();
+        mVideoEncoder = null;
+    }
+
     private void onDrawFrame()
     {
        GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT | GLES30.GL_DEPTH_BUFFER_BIT);
@@ -113,9 +369,32 @@ class CustomContext implements SurfaceTexture.OnFrameAvailableListener, Observer
         }
     }
 
-    void release()
+    private void releaseFrameOutput()
     {
+        if (mFrameOutput==null)
+            return;
+        if (mSettings.memoryGovernor!=null)
+            mSettings.memoryGovernor.unregister(mFrameOutput);
+        mFrameOutput.release();
+        mFrameOutput = null;
+    }
+
+    @Override
+    public void release()
+    {
+        if (mDpy==null)
+        {
+            // Never set up, only the job's own resources exist
+            releaseFrameOutput();
+            if (mVideoEncoder!=null)
+                mVideoEncoder.release();
+            return;
+        }
+        releaseJob();
         cleanup();
+        if (mCpuFilterPool!=null)
+            mCpuFilterPool.shutdown();
+        mCpuFilterPool = null;
         mTextureHandler.cleanup();
         mSurfaceTexture.release();
 
@@ -126,40 +405,179 @@ class CustomContext implements SurfaceTexture.OnFrameAvailableListener, Observer
         EGL14.eglTerminate(mDpy);
     }
 
-    Surface getSurface()
+    @Override
+    public boolean isSetUp()
+    {
+        return mDpy!=null;
+    }
+
+    @Override
+    public Surface getSurface()
     {
         return mSurface;
     }
 
-    private void savePixels(Context context, String filename)
+    @Override
+    public void renderFrame(MediaCodec codec, int index, long presentationTimeUs)
+    {
+        // The frame arrives through the SurfaceTexture, see onFrameAvailable
+        codec.releaseOutputBuffer(index, true);
+    }
+
+    private void savePixels(int frameIndex, long presentationTimeUs)
+    {
+        if (mImageReadback!=null)
+        {
+            // The swap queues the frame into the image reader, it comes back in onImageReady
+            long timestampNs = presentationTimeUs*1000;
+            mImageReadback.frameQueued(frameIndex, timestampNs);
+            EGLExt.eglPresentationTimeANDROID(mDpy, mReadbackSurf, timestampNs);
+            EGL14.eglSwapBuffers(mDpy, mReadbackSurf);
+            return;
+        }
+
+        if (mPboReadback!=null)
+        {
+            mPboReadback.readPixels(frameIndex, presentationTimeUs);
+            mPboReadback.poll();
+            return;
+        }
+
+        FrameSlot slot = acquireSlot();
+        if (slot==null)
+            return;
+        GLES30.glReadPixels(0, 0, mImageWidth, mImageHeight, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, slot.buffer);
+        filterOnCpu(slot);
+        slot.frameIndex = frameIndex;
+        slot.presentationTimeUs = presentationTimeUs;
+        mFrameOutput.submit(slot);
+    }
+
+    @Override
+    public void onPixelsReady(ByteBuffer pixels, int frameIndex, long presentationTimeUs) {
+        FrameSlot slot = acquireSlot();
+        if (slot==null)
+            return;
+        slot.buffer.rewind();
+        slot.buffer.put(pixels);
+        filterOnCpu(slot);
+        slot.frameIndex = frameIndex;
+        slot.presentationTimeUs = presentationTimeUs;
+        mFrameOutput.submit(slot);
+    }
+
+    @Override
+    public void onImageReady(Image image, int frameIndex, long presentationTimeUs) {
+        FrameSlot slot = acquireSlot();
+        if (slot==null)
+        {
+            image.close();
+            return;
+        }
+        Image.Plane plane = image.getPlanes()[0];
+        if (mCpuFilters==null && plane.getRowStride() == mImageWidth*4)
+        {
+            // The output reads the rendered pages in place and closes the image once done with them
+            slot.attachImage(image, mImageWidth*mImageHeight*4);
+        }
+        else
+        {
+            // Padded rows, or pixels the CPU filters write to, are copied into the slot once
+            copyRows(plane, slot.buffer);
+            image.close();
+            filterOnCpu(slot);
+        }
+        slot.frameIndex = frameIndex;
+        slot.presentationTimeUs = presentationTimeUs;
+        mFrameOutput.submit(slot);
+    }
+
+    private void copyRows(Image.Plane plane, ByteBuffer dst)
     {
-        GLES30.glReadPixels(0, 0, mImageWidth, mImageHeight, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, mBB);
+        ByteBuffer src = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int rowBytes = mImageWidth*4;
+        dst.clear();
+        for (int row = 0; row<mImageHeight; row++)
+        {
+            src.limit(row*rowStride + rowBytes);
+            src.position(row*rowStride);
+            dst.put(src);
+        }
+        dst.rewind();
+    }
 
-        mBitmap.copyPixelsFromBuffer(mBB);
-        mBB.rewind();
+    /**
+     * A skipped frame has no output to write, it counts as written for the checkpoint.
+     */
+    private void skipInJournal(int frameIndex, long presentationTimeUs)
+    {
+        try {
+            mSettings.journal.frameWritten(frameIndex, presentationTimeUs);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save the job journal", e);
+        }
+    }
 
-        saveImage(mBitmap, context, filename);
+    private void filterOnCpu(FrameSlot slot)
+    {
+        if (mCpuFilters==null)
+            return;
+        long start = mStats!=null ? System.nanoTime() : 0;
+        mCpuFilters.apply(slot.pixels, mImageWidth, mImageHeight);
+        if (mStats!=null)
+            mStats.record(PipelineStats.Stage.FILTER, start);
     }
 
-    private void saveImage(Bitmap image, Context context, String filename)
+    private FrameSlot acquireSlot()
     {
-        //Store to sdcard
         try {
-            File folder = FileOperations.getAppMediaFolder(mAppname);
-            if (folder!=null)
-            {
-                File imageFile = FileOperations.createMediaFile(folder, filename);
-                FileOutputStream out = new FileOutputStream(imageFile);
-                image.compress(Bitmap.CompressFormat.JPEG, 100, out); //Output
-                Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-                mediaScanIntent.setData(Uri.fromFile(imageFile));
-                context.sendBroadcast(mediaScanIntent);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+            // Blocks while the encoders are behind, which in turn holds back the decoder
+            return mFrameOutput.acquireSlot();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
     }
 
+    /**
+     * Hands over every readback still in flight and waits for the encoders to write them.
+     * Must be called on the rendering thread.
+     */
+    @Override
+    public void finish()
+    {
+        if (mDpy==null)
+            return;
+        if (mPboReadback!=null)
+            mPboReadback.drain();
+        if (mImageReadback!=null)
+            mImageReadback.drain();
+        if (mFrameOutput!=null)
+            mFrameOutput.awaitIdle();
+        if (mVideoEncoder!=null)
+        {
+            mVideoEncoder.signalEndOfInputStream();
+            mVideoEncoder.drain(true);
+            // The muxer only writes a playable file once stopped
+            EGL14.eglMakeCurrent(mDpy, mSurf, mSurf, mCtx);
+            EGL14.eglDestroySurface(mDpy, mEncoderSurf);
+            mEncoderSurf = EGL14.EGL_NO_SURFACE;
+            mVideoEncoder.release();
+            if (mSettings.options.isMediaPublishingEnabled())
+                FileOperations.scanMediaFiles(mContext, mVideoEncoder.getOutputFile().getPath());
+            mVideoEncoder = null;
+        }
+    }
+
+    private void encodeFrame()
+    {
+        // The decoder timestamp travels through the SurfaceTexture to the encoder and the muxer
+        EGLExt.eglPresentationTimeANDROID(mDpy, mEncoderSurf, mSurfaceTexture.getTimestamp());
+        EGL14.eglSwapBuffers(mDpy, mEncoderSurf);
+        mVideoEncoder.drain(false);
+    }
+
     private void cleanup()
     {
         if (mRenderer!=null)
@@ -172,20 +590,56 @@ class CustomContext implements SurfaceTexture.OnFrameAvailableListener, Observer
     public void onFrameAvailable(SurfaceTexture surfaceTexture) {
         if (mOutputFrameIndex< mMaxFrames)
         {
-            Log.d(TAG, "Frame is available for rendering");
+            if (VERBOSE) Log.d(TAG, "Frame is available for rendering");
+            long start = mStats!=null ? System.nanoTime() : 0;
             mSurfaceTexture.updateTexImage();
             mSurfaceTexture.getTransformMatrix(mTransformMatrix);
+            if (mStats!=null)
+            {
+                mStats.record(PipelineStats.Stage.UPDATE_TEX_IMAGE, start);
+                start = System.nanoTime();
+            }
             onDrawFrame();
-            String filename = "output_"+mOutputFrameIndex;
-            savePixels(mContext, filename);
-        }
-        synchronized (sync)
-        {
-            proceed = true;
-            sync.notify();
+            if (mStats!=null)
+            {
+                mStats.record(PipelineStats.Stage.DRAW, start);
+                start = System.nanoTime();
+            }
+            if (mVideoEncoder!=null)
+            {
+                encodeFrame();
+                if (mStats!=null)
+                    mStats.record(PipelineStats.Stage.ENCODE, start);
+            }
+            else
+            {
+                boolean duplicate = false;
+                if (mFingerprint!=null)
+                {
+                    duplicate = mFingerprint.isDuplicate(mImageWidth, mImageHeight);
+                    if (mStats!=null)
+                    {
+                        mStats.record(PipelineStats.Stage.FINGERPRINT, start);
+                        if (duplicate)
+                            mStats.frameSkipped();
+                        start = System.nanoTime();
+                    }
+                }
+                // A near-duplicate of the last written frame is never read back
+                if (!duplicate)
+                    savePixels(mOutputFrameIndex, mSurfaceTexture.getTimestamp()/1000);
+                else if (mSettings.journal!=null)
+                    skipInJournal(mOutputFrameIndex, mSurfaceTexture.getTimestamp()/1000);
+                if (mOutputFrameIndex == mMaxFrames-1 && mPboReadback!=null)
+                    mPboReadback.drain();
+                if (mStats!=null && !duplicate)
+                    mStats.record(PipelineStats.Stage.READBACK, start);
+            }
+            if (mStats!=null)
+                mStats.frameRendered();
         }
 
-        mOutputFrameIndex++;
+        notifyFrameRendered(mOutputFrameIndex++);
     }
 
     private WeakReference<RendererObserver> findWeakReference(RendererObserver rendererObserver)
@@ -214,6 +668,15 @@ class CustomContext implements SurfaceTexture.OnFrameAvailableListener, Observer
         }
     }
 
+    private void notifyFrameRendered(int frameIndex)
+    {
+        for (int i = 0; i<mObservers.size(); i++){
+            RendererObserver observer = mObservers.get(i).get();
+            if (observer!=null)
+                observer.frameRendered(frameIndex);
+        }
+    }
+
     private void notifySetupComplete()
     {
         for (WeakReference<RendererObserver> co:mObservers){
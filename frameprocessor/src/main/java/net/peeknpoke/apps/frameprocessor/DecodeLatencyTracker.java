@@ -0,0 +1,44 @@
+package net.peeknpoke.apps.frameprocessor;
+
+/**
+ * Matches decoder output buffers to the time their sample was queued, by presentation time. Decoders
+ * may reorder frames, so a small table of the most recent inputs is searched instead of a queue.
+ * Only used on the codec thread.
+ */
+class DecodeLatencyTracker {
+    private static final int CAPACITY = 64;
+
+    private final long[] mPresentationTimes = new long[CAPACITY];
+    private final long[] mQueueTimes = new long[CAPACITY];
+    private int mNext = 0;
+
+    void reset()
+    {
+        for (int i = 0; i<CAPACITY; i++)
+            mQueueTimes[i] = 0;
+    }
+
+    void sampleQueued(long presentationTimeUs)
+    {
+        mPresentationTimes[mNext] = presentationTimeUs;
+        mQueueTimes[mNext] = System.nanoTime();
+        mNext = (mNext + 1) % CAPACITY;
+    }
+
+    /**
+     * @return nanoseconds since the sample was queued, -1 if it is not known
+     */
+    long outputAvailable(long presentationTimeUs)
+    {
+        for (int i = 0; i<CAPACITY; i++)
+        {
+            if (mQueueTimes[i] != 0 && mPresentationTimes[i] == presentationTimeUs)
+            {
+                long latency = System.nanoTime() - mQueueTimes[i];
+                mQueueTimes[i] = 0;
+                return latency;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,556 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * One extractor, one decoder and one rendering context, each with their own thread, decoding a
+ * segment of the stream into the rendering context. The rendering context is the OpenGL one, or a
+ * {@link YuvContext} when the options ask for the decoded frames without OpenGL.
+ */
+class DecodePipeline implements RendererObserver, ObserverSubject<DecodePipelineObserver> {
+    private static final String TAG = DecodePipeline.class.getSimpleName();
+    // Per frame logging, off so the frame loop does not build log strings
+    private static final boolean VERBOSE = false;
+    private RenderingContext mRenderingContext;
+    private MediaCodec mMediaCodec;
+    // Name of the decoder, or its mime type when the platform picked it
+    private String mCodecKey;
+    // The format and surface the kept codec is configured with, null once it has to be configured again
+    private MediaFormat mConfiguredFormat;
+    private Surface mConfiguredSurface;
+    private boolean mHardwareDecoderPreferred;
+    private MediaExtractor mMediaExtractor;
+    private Handler mRenderingHandler;
+    private Handler mCodecHandler;
+    private MediaFormat mMediaFormat;
+    private final boolean mKeepCodec;
+    private int mMaxFrames;
+    private long mEndUs;
+    private long mResumeAfterUs;
+    private int mRenderedFrames;
+    // Set when a job starts, then only touched on the rendering thread
+    private int mLastFrameIndex;
+    private FrameSampler mFrameSampler;
+    private PipelineStats mStats;
+    // Only touched on the codec thread
+    private final DecodeLatencyTracker mDecodeLatency = new DecodeLatencyTracker();
+    private int mFramesInFlight;
+    // Decoded frames waiting for the SurfaceTexture, produced on the codec thread
+    private FrameRing mFrameRing;
+    // Frames the ring could not take, only touched on the codec thread
+    private final ArrayDeque<long[]> mOverflow = new ArrayDeque<>();
+    // Input buffers held back while enough frames are in flight, only touched on the codec thread
+    private final ArrayDeque<Integer> mPendingInputs = new ArrayDeque<>();
+    // Only touched on the rendering thread
+    private boolean mFrameOnSurface = false;
+    private volatile boolean mStopped = false;
+    // Only touched on the codec thread
+    private boolean mInputDone = false;
+    private final Runnable mRenderNextFrame = new Runnable() {
+        @Override
+        public void run() {
+            renderNextFrame();
+        }
+    };
+    private final Runnable mFeedPendingInputs = new Runnable() {
+        @Override
+        public void run() {
+            feedPendingInputs();
+        }
+    };
+    private ArrayList<WeakReference<DecodePipelineObserver>> mObservers = new ArrayList<>();
+
+    /**
+     * @param keepCodec keep the decoder between jobs instead of releasing it. A following job on the same
+     *                  decoder is only configured again when its stream differs, otherwise the flushed
+     *                  decoder is started again
+     */
+    DecodePipeline(String name, boolean keepCodec)
+    {
+        mKeepCodec = keepCodec;
+        mRenderingHandler = createHandlerThread("CustomContext"+name);
+        mCodecHandler = createHandlerThread("MediaCodec"+name);
+    }
+
+    /**
+     * Starts decoding a job. The first job sets the rendering context up, later jobs reconfigure it and
+     * reuse its OpenGL state. Must not be called while a job is running.
+     *
+     * @param extractor extractor with the video track selected
+     */
+    void startJob(final Context context, final JobSettings settings, MediaExtractor extractor, MediaFormat format,
+                  FrameSampler frameSampler, SegmentPlanner.Segment segment)
+    {
+        mMediaExtractor = extractor;
+        mMediaFormat = format;
+        mFrameSampler = frameSampler;
+        mStats = settings.stats;
+        mDecodeLatency.reset();
+        mMaxFrames = segment.maxFrames;
+        mEndUs = segment.endUs;
+        mResumeAfterUs = segment.resumeAfterUs;
+        mRenderedFrames = 0;
+        mLastFrameIndex = segment.firstFrameIndex - 1;
+        mFramesInFlight = settings.options.getFramesInFlight();
+        mHardwareDecoderPreferred = settings.options.isHardwareDecoderPreferred();
+        mFrameRing = new FrameRing(mFramesInFlight);
+        mOverflow.clear();
+        mPendingInputs.clear();
+        mFrameOnSurface = false;
+        mInputDone = false;
+        mStopped = false;
+
+        mMediaExtractor.seekTo(segment.startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        boolean cpuDecode = settings.options.getDecodeOutput() != FrameProcessorOptions.DecodeOutput.SURFACE;
+        if (mRenderingContext != null && cpuDecode != mRenderingContext instanceof YuvContext)
+        {
+            // A job of the other kind, the previous context is not reused
+            final RenderingContext previous = mRenderingContext;
+            previous.removeObserver(this);
+            mRenderingHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    previous.release();
+                }
+            });
+            mRenderingContext = null;
+        }
+        if (mRenderingContext == null)
+        {
+            mRenderingContext = cpuDecode ? new YuvContext(settings) : new CustomContext(context, settings);
+            mRenderingContext.registerObserver(this);
+        }
+        if (mMaxFrames <= 0)
+        {
+            // Nothing to decode in this segment
+            stopDecoding();
+            return;
+        }
+
+        final boolean setUp = mRenderingContext.isSetUp();
+        mRenderingHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (setUp)
+                    mRenderingContext.reconfigure(settings);
+                else
+                    mRenderingContext.setupRenderingContext(context);
+            }
+        });
+    }
+
+    private Handler createHandlerThread(String name)
+    {
+        HandlerThread handlerThread = new HandlerThread(name);
+        handlerThread.start();
+        Looper looper = handlerThread.getLooper();
+        return new Handler(looper);
+    }
+
+    private void stop()
+    {
+        if (mMediaCodec==null)
+            return;
+        if (mKeepCodec && mConfiguredFormat!=null)
+        {
+            // Flushed rather than stopped, a job on the same stream only has to start it again
+            mMediaCodec.flush();
+            return;
+        }
+        mMediaCodec.stop();
+        mConfiguredFormat = null;
+        if (!mKeepCodec)
+            releaseCodec();
+    }
+
+    private void releaseCodec()
+    {
+        if (mMediaCodec!=null)
+        {
+            mMediaCodec.release();
+            mMediaCodec = null;
+        }
+        mConfiguredFormat = null;
+        mConfiguredSurface = null;
+    }
+
+    /**
+     * Whether a decoder configured for one stream can decode the other without being configured again:
+     * the same mime type, size and codec specific data.
+     */
+    private static boolean sameStream(MediaFormat configured, MediaFormat next)
+    {
+        return configured.getString(MediaFormat.KEY_MIME).equals(next.getString(MediaFormat.KEY_MIME)) &&
+                configured.getInteger(MediaFormat.KEY_WIDTH) == next.getInteger(MediaFormat.KEY_WIDTH) &&
+                configured.getInteger(MediaFormat.KEY_HEIGHT) == next.getInteger(MediaFormat.KEY_HEIGHT) &&
+                sameBuffer(configured, next, "csd-0") && sameBuffer(configured, next, "csd-1");
+    }
+
+    private static boolean sameBuffer(MediaFormat configured, MediaFormat next, String key)
+    {
+        if (!configured.containsKey(key) || !next.containsKey(key))
+            return configured.containsKey(key) == next.containsKey(key);
+        // Compares the remaining bytes
+        return configured.getByteBuffer(key).equals(next.getByteBuffer(key));
+    }
+
+    private void setupMediaCodec(MediaFormat mediaFormat) throws IOException
+    {
+        String mimeType = mediaFormat.getString(MediaFormat.KEY_MIME);
+        if (mimeType==null)
+        {
+            Log.e(TAG, "Could not read mime type");
+            return;
+        }
+        Surface surface = mRenderingContext.getSurface();
+        // Without a surface the frames are read from the output buffers as images
+        MediaCodecInfo codecInfo = DecoderSelector.select(mediaFormat, surface==null, mHardwareDecoderPreferred);
+        String codecKey = codecInfo!=null ? codecInfo.getName() : mimeType;
+        if (mMediaCodec!=null && !codecKey.equals(mCodecKey))
+            releaseCodec();
+        if (mMediaCodec!=null && mConfiguredFormat!=null)
+        {
+            if (surface==mConfiguredSurface && sameStream(mConfiguredFormat, mediaFormat))
+            {
+                // Flushed at the end of the previous job, starting it is all that is left
+                return;
+            }
+            mMediaCodec.stop();
+            mConfiguredFormat = null;
+        }
+        // A stopped codec of the previous job is configured again instead of creating a new one
+        if (mMediaCodec==null)
+        {
+            mMediaCodec = DecoderSelector.createDecoder(codecInfo, mimeType);
+            mCodecKey = codecKey;
+        }
+        MediaCodec.Callback callback = new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+                if (mStopped)
+                    return;
+                if (mFrameRing.size() + mOverflow.size() >= mFramesInFlight)
+                {
+                    // Enough decoded frames are waiting, keep the input until one is rendered
+                    mPendingInputs.add(index);
+                    return;
+                }
+                ByteBuffer inputBuffer = codec.getInputBuffer(index);
+                if (VERBOSE) Log.d(TAG, "Filling buffer: "+index);
+                fillInputBuffer(inputBuffer, index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+                if (VERBOSE) Log.d(TAG, "Processing output buffer "+index+" size: "+info.size);
+                processOutputBuffer(info, index);
+            }
+
+            @Override
+            public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+                Log.e(TAG, "Media codec error - "+e.getMessage()+" - "+e.getErrorCode());
+            }
+
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+
+            }
+        };
+
+        if (surface==null)
+            mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+        DecoderSelector.tune(mediaFormat, codecInfo);
+        mMediaCodec.setCallback(callback, mCodecHandler);
+        try {
+            mMediaCodec.configure(mediaFormat, surface, null, 0);
+        } catch (IllegalArgumentException | MediaCodec.CodecException e) {
+            // Some decoders refuse an operating rate above playback speed, even one they report
+            Log.w(TAG, "Decoder refused the batch decoding settings, configuring it for playback", e);
+            mMediaCodec.reset();
+            DecoderSelector.untune(mediaFormat);
+            mMediaCodec.setCallback(callback, mCodecHandler);
+            mMediaCodec.configure(mediaFormat, surface, null, 0);
+        }
+        if (mKeepCodec)
+        {
+            mConfiguredFormat = mediaFormat;
+            mConfiguredSurface = surface;
+        }
+    }
+
+    private void fillInputBuffer(ByteBuffer inputBuffer, int index)
+    {
+        if (mInputDone)
+            return;
+        long start = mStats!=null ? System.nanoTime() : 0;
+        int sampleSize = mFrameSampler.isExhausted() ? -1 : mMediaExtractor.readSampleData(inputBuffer, 0);
+        long sampleTime = mMediaExtractor.getSampleTime();
+        if (mStats!=null && sampleSize >= 0)
+            mStats.record(PipelineStats.Stage.EXTRACT, start);
+        if (VERBOSE) Log.d(TAG, "sample size: "+sampleSize);
+        if (sampleSize < 0 || (mEndUs >= 0 && sampleTime >= mEndUs))
+        {
+            // End of input data or of the segment reached
+            mMediaCodec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mInputDone = true;
+            Log.d(TAG, "input EOS");
+        }
+        else
+        {
+            mMediaCodec.queueInputBuffer(index, 0, sampleSize, sampleTime, 0);
+            if (mStats!=null)
+                mDecodeLatency.sampleQueued(sampleTime);
+
+            mFrameSampler.advance(mMediaExtractor, sampleTime);
+        }
+    }
+
+    private void processOutputBuffer(MediaCodec.BufferInfo info, int index)
+    {
+        if (mStopped)
+            return;
+
+        boolean endOfStream = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        if (endOfStream) {
+            Log.d(TAG, "output EOS");
+        }
+        if (mStats!=null && info.size!=0)
+        {
+            long latency = mDecodeLatency.outputAvailable(info.presentationTimeUs);
+            if (latency >= 0)
+                mStats.recordLatency(PipelineStats.Stage.DECODE, latency);
+        }
+
+        // Sampled before the checkpoint is applied, so that sampling picks the same frames as the first run
+        boolean selected = info.size!=0 && mFrameSampler.select(info.presentationTimeUs);
+        if (selected && info.presentationTimeUs > mResumeAfterUs)
+            enqueueFrame(index, info.presentationTimeUs, 0);
+        else
+        {
+            // Frames that are not sampled, or already written before a resume, never reach the rendering context
+            mMediaCodec.releaseOutputBuffer(index, false);
+        }
+
+        if (endOfStream || info.size==0)
+            enqueueFrame(-1, info.presentationTimeUs, FrameRing.FLAG_END_OF_STREAM);
+
+        mRenderingHandler.post(mRenderNextFrame);
+    }
+
+    private void enqueueFrame(int index, long presentationTimeUs, int flags)
+    {
+        // Keep the order: once something overflowed, everything after it has to go through the overflow
+        if (!mOverflow.isEmpty() || !mFrameRing.offer(index, presentationTimeUs, flags))
+            mOverflow.add(new long[]{index, presentationTimeUs, flags});
+        if (mStats!=null)
+            mStats.recordQueueDepth(PipelineStats.Queue.DECODED_FRAMES, mFrameRing.size() + mOverflow.size());
+    }
+
+    /**
+     * Called on the codec thread after a frame has been rendered. Moves overflowed frames into the ring
+     * and feeds the input buffers that were held back.
+     */
+    private void feedPendingInputs()
+    {
+        if (mStopped)
+            return;
+
+        while (!mOverflow.isEmpty())
+        {
+            long[] frame = mOverflow.peek();
+            if (!mFrameRing.offer((int) frame[0], frame[1], (int) frame[2]))
+                break;
+            mOverflow.poll();
+        }
+        if (!mFrameRing.isEmpty())
+            mRenderingHandler.post(mRenderNextFrame);
+
+        while (!mPendingInputs.isEmpty() && mFrameRing.size() + mOverflow.size() < mFramesInFlight)
+        {
+            int index = mPendingInputs.poll();
+            fillInputBuffer(mMediaCodec.getInputBuffer(index), index);
+        }
+    }
+
+    /**
+     * Called on the rendering thread. Hands the next decoded frame to the rendering context unless one
+     * is still being rendered, so frames reach the rendering context one by one and in order.
+     */
+    private void renderNextFrame()
+    {
+        if (mStopped || mFrameOnSurface || mFrameRing.isEmpty())
+            return;
+
+        int index = mFrameRing.peekBufferIndex();
+        long presentationTimeUs = mFrameRing.peekPresentationTimeUs();
+        int flags = mFrameRing.peekFlags();
+        mFrameRing.pop();
+        if ((flags & FrameRing.FLAG_END_OF_STREAM) != 0)
+        {
+            stopDecoding();
+            return;
+        }
+
+        mFrameOnSurface = true;
+        mRenderingContext.renderFrame(mMediaCodec, index, presentationTimeUs);
+    }
+
+    /**
+     * Index of the last frame the current job handed to the rendering context, one before its first frame
+     * when there was none. Called on the rendering thread.
+     */
+    int getLastFrameIndex()
+    {
+        return mLastFrameIndex;
+    }
+
+    /**
+     * Releases the codec, the rendering context and both threads, each on the thread that uses it.
+     */
+    void release()
+    {
+        mStopped = true;
+        mCodecHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mMediaCodec!=null)
+                {
+                    mMediaCodec.stop();
+                    releaseCodec();
+                }
+                releaseExtractor();
+                mCodecHandler.getLooper().quitSafely();
+                mRenderingHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mRenderingContext!=null)
+                        {
+                            mRenderingContext.removeObserver(DecodePipeline.this);
+                            mRenderingContext.release();
+                        }
+                        mRenderingHandler.getLooper().quitSafely();
+                    }
+                });
+            }
+        });
+    }
+
+    private void releaseExtractor()
+    {
+        if (mMediaExtractor!=null)
+        {
+            mMediaExtractor.release();
+            mMediaExtractor = null;
+        }
+    }
+
+    private void renderingSurfaceCreated() {
+        try {
+            setupMediaCodec(mMediaFormat);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create the decoder", e);
+            // The job is reported as done, like one with nothing to decode
+            releaseCodec();
+            stopDecoding();
+            return;
+        }
+        // Create media decoder
+        // Note: this needs the surface created in CustomContext. So order cannot change
+        mMediaCodec.start();
+    }
+
+    private void stopDecoding() {
+        mStopped = true;
+        // Codec calls are made on the codec thread, the pending readbacks live on the rendering thread.
+        // Stop the codec first, then flush the readbacks before reporting completion
+        mCodecHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+                releaseExtractor();
+                mRenderingHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mRenderingContext.finish();
+                        notifyObservers();
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void frameRendered(int frameIndex) {
+        mFrameOnSurface = false;
+        mLastFrameIndex = frameIndex;
+        if (++mRenderedFrames >= mMaxFrames)
+        {
+            stopDecoding();
+            return;
+        }
+        renderNextFrame();
+        mCodecHandler.post(mFeedPendingInputs);
+    }
+
+    @Override
+    public void setupComplete() {
+        mCodecHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                renderingSurfaceCreated();
+            }
+        });
+    }
+
+    private WeakReference<DecodePipelineObserver> findWeakReference(DecodePipelineObserver pipelineObserver)
+    {
+        WeakReference<DecodePipelineObserver> weakReference = null;
+        for(WeakReference<DecodePipelineObserver> ref : mObservers) {
+            if (ref.get() == pipelineObserver) {
+                weakReference = ref;
+            }
+        }
+        return weakReference;
+    }
+
+    @Override
+    public void registerObserver(DecodePipelineObserver observer) {
+        WeakReference<DecodePipelineObserver> weakReference = findWeakReference(observer);
+        if (weakReference==null)
+            mObservers.add(new WeakReference<>(observer));
+    }
+
+    @Override
+    public void removeObserver(DecodePipelineObserver observer) {
+        WeakReference<DecodePipelineObserver> weakReference = findWeakReference(observer);
+        if (weakReference != null) {
+            mObservers.remove(weakReference);
+        }
+    }
+
+    private void notifyObservers() {
+        for (WeakReference<DecodePipelineObserver> co:mObservers){
+            DecodePipelineObserver observer = co.get();
+            if (observer!=null)
+                observer.doneDecoding(this);
+        }
+    }
+}
@@ -0,0 +1,5 @@
+package net.peeknpoke.apps.frameprocessor;
+
+interface DecodePipelineObserver {
+    void doneDecoding(DecodePipeline pipeline);
+}
@@ -0,0 +1,224 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Picks the decoder for a stream and tunes it to decode as fast as it can instead of at playback speed.
+ * Hardware decoders that support the stream's profile, level and size come first, in the order the
+ * platform lists them, then software ones. The codec list is probed once per process and the choice
+ * is kept per kind of stream.
+ */
+final class DecoderSelector {
+    private static final String TAG = DecoderSelector.class.getSimpleName();
+    // Asked for when the decoder does not tell which frame rates it reaches at the stream's size
+    private static final int DEFAULT_OPERATING_RATE = 240;
+    // Frame rate assumed for streams that do not state theirs
+    private static final int DEFAULT_FRAME_RATE = 30;
+    // Below Android 10 the platform's software codecs are only told apart by their name
+    private static final String[] SOFTWARE_PREFIXES = {"omx.google.", "omx.ffmpeg.", "c2.android.", "c2.google."};
+
+    private static MediaCodecInfo[] sCodecInfos;
+    // A null choice means no listed decoder supports the stream, it is cached as well
+    private static final Map<String, MediaCodecInfo> sChoices = new HashMap<>();
+
+    private DecoderSelector()
+    {
+    }
+
+    /**
+     * The decoder for the stream, or null when no listed decoder supports it and the platform is left
+     * to pick one by mime type.
+     *
+     * @param flexibleYuv the frames are read from the output buffers, which needs
+     *                    COLOR_FormatYUV420Flexible
+     */
+    static MediaCodecInfo select(MediaFormat format, boolean flexibleYuv, boolean preferHardware)
+    {
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        if (mimeType==null)
+            return null;
+        int width = getInteger(format, MediaFormat.KEY_WIDTH, 0);
+        int height = getInteger(format, MediaFormat.KEY_HEIGHT, 0);
+        int profile = getInteger(format, MediaFormat.KEY_PROFILE, -1);
+        int level = getInteger(format, MediaFormat.KEY_LEVEL, 0);
+        String key = mimeType+"/"+profile+"/"+level+"@"+width+"x"+height+(flexibleYuv ? "/yuv" : "")+
+                (preferHardware ? "/hw" : "");
+
+        synchronized (sChoices)
+        {
+            if (sChoices.containsKey(key))
+                return sChoices.get(key);
+
+            MediaCodecInfo choice = null;
+            for (MediaCodecInfo info : getCodecInfos())
+            {
+                if (!supports(info, mimeType, width, height, profile, level, flexibleYuv))
+                    continue;
+                if (choice==null)
+                    choice = info;
+                if (!preferHardware || isHardware(info))
+                {
+                    choice = info;
+                    break;
+                }
+            }
+            Log.d(TAG, "Decoder for "+key+": "+(choice!=null ? choice.getName() : "platform default"));
+            sChoices.put(key, choice);
+            return choice;
+        }
+    }
+
+    /**
+     * Creates the decoder picked by {@link #select}, or the platform's default one for the mime type.
+     */
+    static MediaCodec createDecoder(MediaCodecInfo info, String mimeType) throws IOException
+    {
+        if (info!=null)
+            return MediaCodec.createByCodecName(info.getName());
+        return MediaCodec.createDecoderByType(mimeType);
+    }
+
+    /**
+     * Asks for a decoder that is not bound to real time, running at the highest frame rate it reaches
+     * at the stream's size.
+     */
+    static void tune(MediaFormat format, MediaCodecInfo info)
+    {
+        format.setInteger(MediaFormat.KEY_PRIORITY, 1);
+        format.setInteger(MediaFormat.KEY_OPERATING_RATE, maxFrameRate(format, info));
+    }
+
+    /**
+     * Undoes {@link #tune} for decoders that refuse it, asking for playback speed instead.
+     */
+    static void untune(MediaFormat format)
+    {
+        format.setInteger(MediaFormat.KEY_PRIORITY, 0);
+        format.setInteger(MediaFormat.KEY_OPERATING_RATE, Math.round(getFrameRate(format)));
+    }
+
+    /**
+     * Number of instances of the decoder picked for the format that may run at the same time.
+     */
+    static int maxInstances(MediaFormat format, boolean preferHardware)
+    {
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        MediaCodecInfo info = select(format, false, preferHardware);
+        if (mimeType==null || info==null)
+            return 1;
+        return Math.max(1, info.getCapabilitiesForType(mimeType).getMaxSupportedInstances());
+    }
+
+    static boolean isHardware(MediaCodecInfo info)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            return info.isHardwareAccelerated();
+        return !isSoftwareName(info.getName());
+    }
+
+    static boolean isSoftwareName(String name)
+    {
+        String lowerCase = name.toLowerCase(Locale.US);
+        for (String prefix : SOFTWARE_PREFIXES)
+        {
+            if (lowerCase.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+
+    private static MediaCodecInfo[] getCodecInfos()
+    {
+        if (sCodecInfos==null)
+            sCodecInfos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        return sCodecInfos;
+    }
+
+    private static boolean supports(MediaCodecInfo info, String mimeType, int width, int height, int profile,
+                                    int level, boolean flexibleYuv)
+    {
+        // Secure decoders only take encrypted input
+        if (info.isEncoder() || info.getName().endsWith(".secure"))
+            return false;
+        boolean typeSupported = false;
+        for (String type : info.getSupportedTypes())
+            typeSupported |= type.equalsIgnoreCase(mimeType);
+        if (!typeSupported)
+            return false;
+
+        MediaCodecInfo.CodecCapabilities capabilities = info.getCapabilitiesForType(mimeType);
+        MediaCodecInfo.VideoCapabilities video = capabilities.getVideoCapabilities();
+        if (video==null || (width > 0 && height > 0 && !video.isSizeSupported(width, height)))
+            return false;
+        if (profile >= 0 && !supportsProfile(capabilities.profileLevels, profile, level))
+            return false;
+        if (flexibleYuv)
+        {
+            for (int colorFormat : capabilities.colorFormats)
+            {
+                if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible)
+                    return true;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean supportsProfile(MediaCodecInfo.CodecProfileLevel[] profileLevels, int profile, int level)
+    {
+        // Some decoders do not list their profiles at all
+        if (profileLevels.length == 0)
+            return true;
+        for (MediaCodecInfo.CodecProfileLevel profileLevel : profileLevels)
+        {
+            // Levels are flags that grow with the level
+            if (profileLevel.profile == profile && profileLevel.level >= level)
+                return true;
+        }
+        return false;
+    }
+
+    private static int maxFrameRate(MediaFormat format, MediaCodecInfo info)
+    {
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        int width = getInteger(format, MediaFormat.KEY_WIDTH, 0);
+        int height = getInteger(format, MediaFormat.KEY_HEIGHT, 0);
+        if (info==null || mimeType==null || width <= 0 || height <= 0)
+            return DEFAULT_OPERATING_RATE;
+        MediaCodecInfo.VideoCapabilities video = info.getCapabilitiesForType(mimeType).getVideoCapabilities();
+        Range<Double> achievable = video.getAchievableFrameRatesFor(width, height);
+        if (achievable!=null)
+            return (int) Math.floor(achievable.getUpper());
+        // Not measured on this device, the upper limit of what the decoder supports at all
+        Range<Integer> supported = video.getSupportedFrameRates();
+        return supported!=null ? supported.getUpper() : DEFAULT_OPERATING_RATE;
+    }
+
+    private static float getFrameRate(MediaFormat format)
+    {
+        if (!format.containsKey(MediaFormat.KEY_FRAME_RATE))
+            return DEFAULT_FRAME_RATE;
+        // Extractors store it as an integer or as a float
+        try {
+            return format.getInteger(MediaFormat.KEY_FRAME_RATE);
+        } catch (ClassCastException e) {
+            return format.getFloat(MediaFormat.KEY_FRAME_RATE);
+        }
+    }
+
+    private static int getInteger(MediaFormat format, String key, int defaultValue)
+    {
+        return format.containsKey(key) ? format.getInteger(key) : defaultValue;
+    }
+}
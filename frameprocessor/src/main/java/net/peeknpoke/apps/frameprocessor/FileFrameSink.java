@@ -0,0 +1,98 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes every frame into its own file in the app's media folder.
+ */
+class FileFrameSink implements FrameSink {
+    // Null when the media folder is not available
+    private final File mFolder;
+    private final FrameEncoder mEncoder;
+    // Null when the files are not published to the media store
+    private final MediaPublisher mPublisher;
+    private final PipelineStats mStats;
+    // Only set for resumable jobs
+    private final JobJournal mJournal;
+    // Only set when written frames are kept for later jobs
+    private final FrameCache mCache;
+    private final ThreadLocal<MediaFileNamer> mNamers = new ThreadLocal<MediaFileNamer>() {
+        @Override
+        protected MediaFileNamer initialValue() {
+            return new MediaFileNamer(mFolder);
+        }
+    };
+
+    FileFrameSink(String appname, FrameEncoder encoder, MediaPublisher publisher, PipelineStats stats,
+                  JobJournal journal, FrameCache cache)
+    {
+        mFolder = FileOperations.getAppMediaFolder(appname);
+        mEncoder = encoder;
+        mPublisher = publisher;
+        mStats = stats;
+        mJournal = journal;
+        mCache = cache;
+    }
+
+    @Override
+    public void write(FrameSlot slot) throws IOException {
+        //Store to sdcard
+        if (mFolder==null)
+            throw new IOException("Media folder not available");
+
+        long start = mStats!=null ? System.nanoTime() : 0;
+        long encodeNanos = 0;
+        File imageFile = mNamers.get().createFile(System.currentTimeMillis(), "output_", slot.frameIndex,
+                mEncoder.getExtension());
+        try (FileOutputStream out = new FileOutputStream(imageFile)) {
+            long encodeStart = mStats!=null ? System.nanoTime() : 0;
+            mEncoder.encode(slot.data, slot.bitmap, out); //Output
+            if (mStats!=null)
+                encodeNanos = System.nanoTime() - encodeStart;
+        }
+        if (mStats!=null)
+        {
+            mStats.recordLatency(PipelineStats.Stage.ENCODE, encodeNanos);
+            mStats.recordLatency(PipelineStats.Stage.WRITE, System.nanoTime() - start - encodeNanos);
+        }
+        if (mPublisher!=null)
+            mPublisher.add(imageFile);
+        // Only once the file is closed
+        if (mJournal!=null)
+            mJournal.frameWritten(slot.frameIndex, slot.presentationTimeUs);
+        if (mCache!=null)
+            mCache.put(slot.presentationTimeUs, imageFile);
+    }
+
+    /**
+     * Writes a frame an earlier job left in the cache, under the same name as a frame written by
+     * {@link #write}. The frame has to be pinned in the cache.
+     */
+    void writeCached(int frameIndex, long presentationTimeUs) throws IOException
+    {
+        if (mFolder==null)
+            throw new IOException("Media folder not available");
+        if (mCache==null)
+            throw new IllegalStateException("No frame cache");
+
+        long start = mStats!=null ? System.nanoTime() : 0;
+        File imageFile = mNamers.get().createFile(System.currentTimeMillis(), "output_", frameIndex,
+                mEncoder.getExtension());
+        mCache.copyTo(presentationTimeUs, imageFile);
+        if (mStats!=null)
+        {
+            mStats.recordLatency(PipelineStats.Stage.WRITE, System.nanoTime() - start);
+            mStats.frameCached();
+        }
+        if (mPublisher!=null)
+            mPublisher.add(imageFile);
+    }
+
+    @Override
+    public void close() {
+        if (mPublisher!=null)
+            mPublisher.flush();
+    }
+}
@@ -1,14 +1,28 @@
 package net.peeknpoke.apps.frameprocessor;
 
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
 class FileOperations {
+    // Bytes hashed at either end of a file to tell it apart
+    private static final int FINGERPRINT_SPAN = 64*1024;
 
     static File getAppMediaFolder(String appName)
     {
@@ -32,13 +46,77 @@ class FileOperations {
         return mediaStorageDir;
     }
 
-    static File createMediaFile(File mediaStorageDir, String filename)
+    static File createMediaFile(File mediaStorageDir, String filename, String extension)
     {
         String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
 
         String definingFilename = mediaStorageDir.getPath() + File.separator +
                 timeStamp + "_" + filename;
         definingFilename = definingFilename.replace(' ','_').replace('\'','_');
-        return new File(definingFilename + ".jpg");
+        return new File(definingFilename + extension);
+    }
+
+    static void scanMediaFiles(Context context, String... paths)
+    {
+        MediaScannerConnection.scanFile(context, paths, null, null);
+    }
+
+    /**
+     * Identifies the content behind the uri by the uri, its length, its modification time and a hash of
+     * its first and last bytes, without reading the whole file. A file rewritten in place gets a new
+     * modification time; an edit that keeps the time and the length and leaves both ends alone is not
+     * noticed.
+     */
+    static String fingerprint(Context context, Uri uri) throws IOException
+    {
+        ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+        if (descriptor==null)
+            throw new IOException("Could not open "+uri);
+        try (FileInputStream in = new FileInputStream(descriptor.getFileDescriptor())) {
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            ByteBuffer buffer = ByteBuffer.allocate(FINGERPRINT_SPAN);
+            hashRange(channel, 0, Math.min(length, FINGERPRINT_SPAN), buffer, digest);
+            if (length > FINGERPRINT_SPAN)
+                hashRange(channel, Math.max(FINGERPRINT_SPAN, length - FINGERPRINT_SPAN), length, buffer, digest);
+            StringBuilder fingerprint = new StringBuilder(uri.toString()).append('|').append(length).append(':')
+                    .append(modificationTime(descriptor)).append(':');
+            for (byte b : digest.digest())
+                fingerprint.append(String.format("%02x", b));
+            return fingerprint.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            descriptor.close();
+        }
+    }
+
+    /**
+     * Seconds since the epoch, 0 when the descriptor does not tell, e.g. for a pipe.
+     */
+    private static long modificationTime(ParcelFileDescriptor descriptor)
+    {
+        try {
+            return Os.fstat(descriptor.getFileDescriptor()).st_mtime;
+        } catch (ErrnoException e) {
+            return 0;
+        }
+    }
+
+    private static void hashRange(FileChannel channel, long start, long end, ByteBuffer buffer,
+                                  MessageDigest digest) throws IOException
+    {
+        long position = start;
+        while (position < end)
+        {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                break;
+            digest.update(buffer.array(), 0, read);
+            position += read;
+        }
     }
 }
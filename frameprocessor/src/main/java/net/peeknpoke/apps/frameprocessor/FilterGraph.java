@@ -0,0 +1,142 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Chain of fragment shader stages applied to every frame on the GPU. The first stage samples the
+ * decoded frame, every following stage samples the output of the previous one, and only the last stage
+ * writes to the output surface. Stages are fragment shader files in the assets folder and sample a
+ * texture named sTexture; they may declare a vec2 uTexelSize uniform holding the size of one texel and
+ * a vec4 uParams uniform holding the parameters the stage was added with.
+ * <p>
+ * The stages below also have a CPU kernel, see {@link CpuKernels}, and can run on the CPU after the
+ * readback instead, see {@link FrameProcessorOptions#setFilterBackend}.
+ */
+public class FilterGraph {
+    static final String DEFAULT_STAGE = "negative.frag";
+    static final String IDENTITY_STAGE = "identity.frag";
+    static final String GRAYSCALE_STAGE = "grayscale.frag";
+    // Parameters: brightness added to every channel (-1 to 1), contrast factor around mid gray (1 keeps it)
+    static final String BRIGHTNESS_CONTRAST_STAGE = "brightness_contrast.frag";
+    static final String BLUR_STAGE = "blur.frag";
+    static final String SHARPEN_STAGE = "sharpen.frag";
+
+    private static final int MAX_PARAMS = 4;
+    private static final float[] NO_PARAMS = new float[MAX_PARAMS];
+
+    private final List<String> mStages = new ArrayList<>();
+    private final List<float[]> mParams = new ArrayList<>();
+
+    public FilterGraph addStage(String fragmentShaderAsset)
+    {
+        return addStage(fragmentShaderAsset, NO_PARAMS);
+    }
+
+    /**
+     * @param params up to four values handed to the stage's uParams uniform, missing ones are 0
+     */
+    public FilterGraph addStage(String fragmentShaderAsset, float... params)
+    {
+        if (params.length > MAX_PARAMS)
+            throw new IllegalArgumentException("A stage takes at most "+MAX_PARAMS+" parameters");
+        mStages.add(fragmentShaderAsset);
+        mParams.add(Arrays.copyOf(params, MAX_PARAMS));
+        return this;
+    }
+
+    public int getStageCount()
+    {
+        return mStages.size();
+    }
+
+    public String getStage(int index)
+    {
+        return mStages.get(index);
+    }
+
+    float[] getStageParams(int index)
+    {
+        return mParams.get(index);
+    }
+
+    /**
+     * True when every stage only passes its input through.
+     */
+    boolean isIdentity()
+    {
+        for (String stage : mStages)
+        {
+            if (!IDENTITY_STAGE.equals(stage))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * The stages from first to last, exclusive.
+     */
+    FilterGraph subGraph(int first, int last)
+    {
+        FilterGraph graph = new FilterGraph();
+        graph.mStages.addAll(mStages.subList(first, last));
+        graph.mParams.addAll(mParams.subList(first, last));
+        return graph;
+    }
+
+    FilterGraph copy()
+    {
+        return subGraph(0, mStages.size());
+    }
+
+    static FilterGraph defaultGraph()
+    {
+        return new FilterGraph().addStage(DEFAULT_STAGE);
+    }
+
+    static FilterGraph identityGraph()
+    {
+        return new FilterGraph().addStage(IDENTITY_STAGE);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof FilterGraph))
+            return false;
+        FilterGraph other = (FilterGraph) o;
+        if (!mStages.equals(other.mStages))
+            return false;
+        for (int i = 0; i<mParams.size(); i++)
+        {
+            if (!Arrays.equals(mParams.get(i), other.mParams.get(i)))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int hash = mStages.hashCode();
+        for (float[] params : mParams)
+            hash = 31*hash + Arrays.hashCode(params);
+        return hash;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i<mStages.size(); i++)
+        {
+            if (i > 0)
+                builder.append(", ");
+            builder.append(mStages.get(i));
+            if (!Arrays.equals(mParams.get(i), NO_PARAMS))
+                builder.append(Arrays.toString(mParams.get(i)));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,103 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Decides which stages of a filter graph run on the GPU and which on the CPU. The GPU always renders
+ * the frame, so it keeps a leading run of stages and the CPU takes the rest after the readback. The
+ * split with the lowest measured time per frame wins, and is kept for the process so that following
+ * jobs with the same graph and size do not measure again.
+ */
+class FilterPlanner {
+    static final int WARMUP_RUNS = 2;
+    static final int MEASURED_RUNS = 5;
+
+    private static final Map<String, Integer> sSplits = new HashMap<>();
+
+    /**
+     * @param gpuPassNanos time of the pass-through draw the GPU still does when every stage is on the CPU
+     * @param gpuNanos time per stage on the GPU
+     * @param cpuNanos time per stage on the CPU, negative for stages without a CPU kernel
+     * @return number of leading stages that run on the GPU
+     */
+    static int chooseSplit(long gpuPassNanos, long[] gpuNanos, long[] cpuNanos)
+    {
+        int count = gpuNanos.length;
+        // Ties stay on the GPU, which does not take time from the encoders
+        int best = count;
+        long bestNanos = 0;
+        for (long nanos : gpuNanos)
+            bestNanos += nanos;
+
+        long cpuTail = 0;
+        long gpuHead = bestNanos;
+        for (int split = count - 1; split>=0; split--)
+        {
+            if (cpuNanos[split] < 0)
+                break;
+            cpuTail += cpuNanos[split];
+            gpuHead -= gpuNanos[split];
+            long nanos = (split == 0 ? gpuPassNanos : gpuHead) + cpuTail;
+            if (nanos < bestNanos)
+            {
+                best = split;
+                bestNanos = nanos;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Smallest number of GPU stages that leaves the CPU only stages it has kernels for.
+     */
+    static int minimalSplit(FilterGraph graph)
+    {
+        int split = graph.getStageCount();
+        while (split > 0 && CpuKernels.hasKernel(graph.getStage(split - 1)))
+            split--;
+        return split;
+    }
+
+    /**
+     * Time per frame of one stage on the CPU, on a synthetic frame of the given size.
+     */
+    static long measureCpu(FilterGraph graph, int stage, int width, int height, ForkJoinPool pool)
+    {
+        IntBuffer pixels = ByteBuffer.allocateDirect(width*height*4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        for (int i = 0; i<width*height; i++)
+            pixels.put(i, i*0x9e3779b9);
+        CpuFilterEngine engine = new CpuFilterEngine(graph.subGraph(stage, stage + 1), 0, pool);
+        for (int i = 0; i<WARMUP_RUNS; i++)
+            engine.apply(pixels, width, height);
+        long start = System.nanoTime();
+        for (int i = 0; i<MEASURED_RUNS; i++)
+            engine.apply(pixels, width, height);
+        return (System.nanoTime() - start)/MEASURED_RUNS;
+    }
+
+    static String key(FilterGraph graph, int width, int height)
+    {
+        return graph+"@"+width+"x"+height;
+    }
+
+    static Integer cachedSplit(String key)
+    {
+        synchronized (sSplits)
+        {
+            return sSplits.get(key);
+        }
+    }
+
+    static void cacheSplit(String key, int split)
+    {
+        synchronized (sSplits)
+        {
+            sSplits.put(key, split);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.graphics.ImageFormat;
+import android.graphics.PixelFormat;
+import android.hardware.HardwareBuffer;
+import android.media.Image;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One processed frame delivered to a {@link FrameConsumer}. The pixels live in a pooled direct buffer,
+ * or in the buffer the GPU rendered into, that is reused for a later frame once {@link #release()} is
+ * called, so nothing may be kept from it afterwards.
+ */
+public class Frame {
+    final FrameSlot slot;
+    private final ByteBuffer mBufferPixels;
+    private ByteBuffer mPixels;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFormat;
+    private final int mSize;
+    private final FrameDelivery mOwner;
+    private final AtomicBoolean mHeld = new AtomicBoolean();
+
+    Frame(FrameSlot slot, int width, int height, int format, FrameDelivery owner)
+    {
+        this.slot = slot;
+        mBufferPixels = slot.buffer.asReadOnlyBuffer();
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mSize = format == ImageFormat.YUV_420_888 ? YuvConverter.i420Size(width, height) : width*height*4;
+        mOwner = owner;
+    }
+
+    /**
+     * Read-only pixels in the layout given by {@link #getFormat()}, the first row is the top of the image.
+     */
+    public ByteBuffer getPixels()
+    {
+        return mPixels;
+    }
+
+    public int getWidth()
+    {
+        return mWidth;
+    }
+
+    public int getHeight()
+    {
+        return mHeight;
+    }
+
+    /**
+     * {@link PixelFormat#RGBA_8888}, four bytes per pixel, or {@link ImageFormat#YUV_420_888} packed as
+     * I420: the Y plane followed by the U and the V plane at half the width and height, without padding.
+     */
+    public int getFormat()
+    {
+        return mFormat;
+    }
+
+    /**
+     * Bytes from the start of one row to the next, of the Y plane for YUV frames.
+     */
+    public int getRowStride()
+    {
+        return mFormat == ImageFormat.YUV_420_888 ? mWidth : mWidth*4;
+    }
+
+    public long getPresentationTimeUs()
+    {
+        return slot.presentationTimeUs;
+    }
+
+    public int getFrameIndex()
+    {
+        return slot.frameIndex;
+    }
+
+    /**
+     * The GPU buffer the frame was rendered into, when it is read in place, to hand on to the GPU or
+     * wrap in a hardware Bitmap without a copy. Only valid until {@link #release()}, and null below
+     * Android 9 or when the pixels were copied out.
+     */
+    public HardwareBuffer getHardwareBuffer()
+    {
+        Image image = slot.getImage();
+        if (image==null || Build.VERSION.SDK_INT < Build.VERSION_CODES.P)
+            return null;
+        return image.getHardwareBuffer();
+    }
+
+    /**
+     * Returns the frame to the pool. Must be called exactly once per delivered frame, from any thread.
+     */
+    public void release()
+    {
+        if (!mHeld.compareAndSet(true, false))
+            throw new IllegalStateException("Frame "+slot.frameIndex+" released twice");
+        mOwner.frameReleased(this);
+    }
+
+    void deliver()
+    {
+        mHeld.set(true);
+        mPixels = slot.data == slot.buffer ? mBufferPixels : slot.data.asReadOnlyBuffer();
+        mPixels.clear();
+        mPixels.limit(mSize);
+    }
+}
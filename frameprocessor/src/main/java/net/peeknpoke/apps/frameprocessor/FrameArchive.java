@@ -0,0 +1,169 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access reader for the frame archives written with {@link FrameProcessorOptions.OutputMode#ARCHIVE}.
+ * Each frame is looked up in constant time through the memory mapped index and read with a single
+ * positional read, without unpacking the archive.
+ *
+ * The index file starts with a 32 byte header (magic, version, width, height, frame count, unused,
+ * data length) followed by one 24 byte entry per frame index (presentation time in microseconds,
+ * offset and length in the data file, flags). The data file holds the encoded frames back to back.
+ */
+public class FrameArchive implements Closeable {
+    static final int MAGIC = 0x46524D41;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int ENTRY_SIZE = 24;
+    static final int ENTRY_PRESENT = 1;
+    static final String INDEX_SUFFIX = ".idx";
+
+    private final RandomAccessFile mData;
+    private final FileChannel mDataChannel;
+    private final MappedByteBuffer mIndex;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameCount;
+
+    public FrameArchive(File dataFile) throws IOException
+    {
+        MappedByteBuffer index;
+        try (RandomAccessFile indexFile = new RandomAccessFile(getIndexFile(dataFile), "r")) {
+            index = indexFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, indexFile.length());
+        }
+        if (index.capacity() < HEADER_SIZE || index.getInt(0) != MAGIC)
+            throw new IOException("Not a frame archive index");
+        if (index.getInt(4) != VERSION)
+            throw new IOException("Unsupported frame archive version "+index.getInt(4));
+        mIndex = index;
+        mWidth = index.getInt(8);
+        mHeight = index.getInt(12);
+        mFrameCount = index.getInt(16);
+        if (HEADER_SIZE + (long) mFrameCount*ENTRY_SIZE > index.capacity())
+            throw new IOException("Truncated frame archive index");
+
+        mData = new RandomAccessFile(dataFile, "r");
+        mDataChannel = mData.getChannel();
+    }
+
+    static File getIndexFile(File dataFile)
+    {
+        return new File(dataFile.getPath() + INDEX_SUFFIX);
+    }
+
+    public int getWidth()
+    {
+        return mWidth;
+    }
+
+    public int getHeight()
+    {
+        return mHeight;
+    }
+
+    /**
+     * One more than the highest frame index in the archive. Frames that failed to be written leave
+     * holes, see {@link #hasFrame(int)}.
+     */
+    public int getFrameCount()
+    {
+        return mFrameCount;
+    }
+
+    public boolean hasFrame(int frameIndex)
+    {
+        return (mIndex.getInt(entry(frameIndex) + 20) & ENTRY_PRESENT) != 0;
+    }
+
+    public long getPresentationTimeUs(int frameIndex)
+    {
+        return mIndex.getLong(entry(frameIndex));
+    }
+
+    /**
+     * Encoded size of the frame in bytes.
+     */
+    public int getFrameSize(int frameIndex)
+    {
+        return mIndex.getInt(entry(frameIndex) + 16);
+    }
+
+    /**
+     * Reads the encoded frame into dst, which needs {@link #getFrameSize(int)} bytes remaining.
+     */
+    public void readFrame(int frameIndex, ByteBuffer dst) throws IOException
+    {
+        if (!hasFrame(frameIndex))
+            throw new IOException("Frame "+frameIndex+" is not in the archive");
+        int entry = entry(frameIndex);
+        long position = mIndex.getLong(entry + 8);
+        int length = mIndex.getInt(entry + 16);
+        if (dst.remaining() < length)
+            throw new IllegalArgumentException("Destination too small for frame "+frameIndex);
+
+        int limit = dst.limit();
+        dst.limit(dst.position() + length);
+        try {
+            while (dst.hasRemaining())
+            {
+                int read = mDataChannel.read(dst, position);
+                if (read < 0)
+                    throw new IOException("Unexpected end of archive data");
+                position += read;
+            }
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    /**
+     * Index of the last frame presented at or before the given time, -1 if there is none. Frames
+     * are stored in presentation order, so this is a binary search over the index.
+     */
+    public int findFrame(long presentationTimeUs)
+    {
+        int low = 0;
+        int high = mFrameCount - 1;
+        int found = -1;
+        while (low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            int probe = middle;
+            // Skip holes towards the start of the range
+            while (probe >= low && !hasFrame(probe))
+                probe--;
+            if (probe < low)
+            {
+                low = middle + 1;
+                continue;
+            }
+            if (getPresentationTimeUs(probe) <= presentationTimeUs)
+            {
+                found = probe;
+                low = middle + 1;
+            }
+            else
+                high = probe - 1;
+        }
+        return found;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mData.close();
+    }
+
+    private int entry(int frameIndex)
+    {
+        if (frameIndex < 0 || frameIndex >= mFrameCount)
+            throw new IndexOutOfBoundsException("Frame "+frameIndex+" of "+mFrameCount);
+        return HEADER_SIZE + frameIndex*ENTRY_SIZE;
+    }
+}
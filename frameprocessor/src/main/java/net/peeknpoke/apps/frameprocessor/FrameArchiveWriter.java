@@ -0,0 +1,187 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends the encoded frames of a job to one preallocated data file instead of creating a file per
+ * frame. A memory mapped index next to it records presentation time, offset and length of every frame
+ * by frame index, see {@link FrameArchive} for the layout and the reader. Frames may arrive in any
+ * order from several encoder threads: space is reserved under a lock and the bytes are written
+ * outside of it with positional writes.
+ */
+class FrameArchiveWriter implements FrameSink {
+    private static final String TAG = FrameArchiveWriter.class.getSimpleName();
+    private static final int INITIAL_INDEX_CAPACITY = 256;
+
+    private final FrameEncoder mEncoder;
+    private final File mDataFile;
+    private final RandomAccessFile mData;
+    private final FileChannel mDataChannel;
+    private final RandomAccessFile mIndex;
+    private final Object mLock = new Object();
+    private final PipelineStats mStats;
+    private final ThreadLocal<EncodeBuffer> mEncodeBuffers = new ThreadLocal<EncodeBuffer>() {
+        @Override
+        protected EncodeBuffer initialValue() {
+            return new EncodeBuffer();
+        }
+    };
+    // Guarded by mLock
+    private MappedByteBuffer mIndexBuffer;
+    private int mIndexCapacity;
+    private long mDataLength = 0;
+    private long mDataCapacity;
+    private int mFrameCount = 0;
+    private boolean mClosed = false;
+
+    /**
+     * @param preallocatedBytes initial size of the data file, it grows by doubling past that and is
+     *                          truncated to what was written on close
+     */
+    FrameArchiveWriter(File dataFile, FrameEncoder encoder, int width, int height, long preallocatedBytes,
+                       PipelineStats stats) throws IOException
+    {
+        mEncoder = encoder;
+        mStats = stats;
+        mDataFile = dataFile;
+        mData = new RandomAccessFile(dataFile, "rw");
+        mDataChannel = mData.getChannel();
+        mDataCapacity = Math.max(preallocatedBytes, 1);
+        mData.setLength(mDataCapacity);
+
+        mIndex = new RandomAccessFile(FrameArchive.getIndexFile(dataFile), "rw");
+        mapIndex(INITIAL_INDEX_CAPACITY);
+        mIndexBuffer.putInt(0, FrameArchive.MAGIC);
+        mIndexBuffer.putInt(4, FrameArchive.VERSION);
+        mIndexBuffer.putInt(8, width);
+        mIndexBuffer.putInt(12, height);
+        mIndexBuffer.putInt(16, 0);
+        mIndexBuffer.putLong(24, 0);
+    }
+
+    File getDataFile()
+    {
+        return mDataFile;
+    }
+
+    @Override
+    public void write(FrameSlot slot) throws IOException {
+        long start = mStats!=null ? System.nanoTime() : 0;
+        EncodeBuffer encoded = mEncodeBuffers.get();
+        encoded.reset();
+        mEncoder.encode(slot.data, slot.bitmap, encoded);
+        if (mStats!=null)
+        {
+            mStats.record(PipelineStats.Stage.ENCODE, start);
+            start = System.nanoTime();
+        }
+        ByteBuffer bytes = encoded.asByteBuffer();
+        int length = bytes.remaining();
+
+        long offset;
+        synchronized (mLock)
+        {
+            if (mClosed)
+                throw new IOException("Archive already closed");
+            offset = mDataLength;
+            mDataLength += length;
+            if (mDataLength > mDataCapacity)
+            {
+                mDataCapacity = Math.max(mDataCapacity*2, mDataLength);
+                mData.setLength(mDataCapacity);
+            }
+        }
+
+        long position = offset;
+        while (bytes.hasRemaining())
+            position += mDataChannel.write(bytes, position);
+
+        synchronized (mLock)
+        {
+            if (mClosed)
+                throw new IOException("Archive already closed");
+            if (slot.frameIndex >= mIndexCapacity)
+                mapIndex(Math.max(mIndexCapacity*2, slot.frameIndex+1));
+            int entry = FrameArchive.HEADER_SIZE + slot.frameIndex*FrameArchive.ENTRY_SIZE;
+            mIndexBuffer.putLong(entry, slot.presentationTimeUs);
+            mIndexBuffer.putLong(entry + 8, offset);
+            mIndexBuffer.putInt(entry + 16, length);
+            mIndexBuffer.putInt(entry + 20, FrameArchive.ENTRY_PRESENT);
+            mFrameCount = Math.max(mFrameCount, slot.frameIndex+1);
+        }
+        if (mStats!=null)
+            mStats.record(PipelineStats.Stage.WRITE, start);
+    }
+
+    @Override
+    public void close() {
+        synchronized (mLock)
+        {
+            if (mClosed)
+                return;
+            mClosed = true;
+            try {
+                mIndexBuffer.putInt(16, mFrameCount);
+                mIndexBuffer.putLong(24, mDataLength);
+                mIndexBuffer.force();
+                // Give back what was preallocated but not used
+                mDataChannel.truncate(mDataLength);
+                mDataChannel.force(false);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not finish "+mDataFile.getPath(), e);
+            } finally {
+                closeQuietly(mData);
+                closeQuietly(mIndex);
+            }
+        }
+    }
+
+    private void mapIndex(int capacity) throws IOException
+    {
+        // Mapping past the end grows the file, entries that were never written read as absent
+        mIndexBuffer = mIndex.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                FrameArchive.HEADER_SIZE + (long) capacity*FrameArchive.ENTRY_SIZE);
+        mIndexCapacity = capacity;
+    }
+
+    private static void closeQuietly(RandomAccessFile file)
+    {
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close archive file", e);
+        }
+    }
+
+    /**
+     * Reusable per thread buffer the encoders write into, exposing its array without a copy.
+     */
+    private static class EncodeBuffer extends ByteArrayOutputStream {
+        private ByteBuffer mWrapper;
+
+        EncodeBuffer()
+        {
+            super(64*1024);
+        }
+
+        /**
+         * The wrapper is only created again when the array had to grow.
+         */
+        ByteBuffer asByteBuffer()
+        {
+            if (mWrapper==null || mWrapper.array()!=buf)
+                mWrapper = ByteBuffer.wrap(buf);
+            mWrapper.clear();
+            mWrapper.limit(count);
+            return mWrapper;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The output frames of one job in a {@link FrameStore}. An entry's key is derived from a hash of
+ * everything the written file depends on, the source, the filters and the output settings, and from
+ * the frame's presentation time, so frames produced by any earlier job with the same source and
+ * settings are found again.
+ */
+class FrameCache {
+    private static final String TAG = FrameCache.class.getSimpleName();
+
+    private final FrameStore mStore;
+    private final long mSettingsHash;
+
+    /**
+     * @param settingsKey everything the written frames depend on apart from their presentation time
+     */
+    FrameCache(FrameStore store, String settingsKey)
+    {
+        mStore = store;
+        mSettingsHash = hash(settingsKey);
+    }
+
+    /**
+     * Pins the frame's entry until {@link #unpin}, so that it is still there when it is copied.
+     *
+     * @return false when the frame is not cached
+     */
+    boolean pin(long presentationTimeUs)
+    {
+        return mStore.pin(key(mSettingsHash, presentationTimeUs));
+    }
+
+    void unpin(long presentationTimeUs)
+    {
+        mStore.unpin(key(mSettingsHash, presentationTimeUs));
+    }
+
+    /**
+     * Copies a pinned frame into the destination file.
+     */
+    void copyTo(long presentationTimeUs, File destination) throws IOException
+    {
+        mStore.copyTo(key(mSettingsHash, presentationTimeUs), destination);
+    }
+
+    /**
+     * Keeps a copy of a written frame. Failing to do so only costs the next job the work, so it is
+     * logged and not reported. May be called from any thread.
+     */
+    void put(long presentationTimeUs, File file)
+    {
+        try {
+            mStore.put(key(mSettingsHash, presentationTimeUs), file);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not cache "+file, e);
+        }
+    }
+
+    void save()
+    {
+        try {
+            mStore.save();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save the frame cache index", e);
+        }
+    }
+
+    /**
+     * Mixes the presentation time into the settings hash. For one settings hash every presentation time
+     * gives another key, the multiplication and the mixing steps are both invertible.
+     */
+    static long key(long settingsHash, long presentationTimeUs)
+    {
+        long key = settingsHash + presentationTimeUs*0x9E3779B97F4A7C15L;
+        key = (key ^ (key >>> 30))*0xBF58476D1CE4E5B9L;
+        key = (key ^ (key >>> 27))*0x94D049BB133111EBL;
+        return key ^ (key >>> 31);
+    }
+
+    /**
+     * The first 64 bits of the SHA-256 of the key.
+     */
+    static long hash(String key)
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(Charset.forName("UTF-8")));
+            long hash = 0;
+            for (int i = 0; i<8; i++)
+                hash = hash << 8 | (digest[i] & 0xff);
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package net.peeknpoke.apps.frameprocessor;
+
+/**
+ * Receives the processed frames in memory, with {@link FrameProcessorOptions.OutputMode#CONSUMER}.
+ */
+public interface FrameConsumer {
+    /**
+     * Called on the delivery thread of the rendering context, in frame order. The frame has to be
+     * released once the consumer is done with it; while all pooled frames are held the pipeline waits.
+     */
+    void onFrame(Frame frame);
+}
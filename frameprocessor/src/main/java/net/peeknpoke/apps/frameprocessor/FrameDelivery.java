@@ -0,0 +1,185 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Hands the read back frames to a {@link FrameConsumer} on a delivery thread, without encoding or
+ * file I/O. A frame only goes back to the pool when the consumer releases it, so a consumer holding
+ * on to frames holds back the rendering thread and in turn the decoder. Frames are allocated as they
+ * are first needed, up to the slot limit.
+ */
+class FrameDelivery implements FrameOutput {
+    private static final String TAG = FrameDelivery.class.getSimpleName();
+
+    private final FrameConsumer mConsumer;
+    private final PipelineStats mStats;
+    private final BlockingQueue<Frame> mFreeFrames;
+    private final BlockingQueue<Frame> mPendingFrames;
+    private final Thread mDeliveryThread;
+    private final Object mIdleLock = new Object();
+    private final int mFrameCount;
+    // Submitted frames not yet released by the consumer
+    private int mOutstanding = 0;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFormat;
+    // Guarded by itself, like the slot limit
+    private final List<Frame> mFrames;
+    private int mSlotLimit;
+
+    /**
+     * @param format format of the frames, see {@link Frame#getFormat()}
+     */
+    FrameDelivery(FrameConsumer consumer, PipelineStats stats, int width, int height, int format, int frameCount)
+    {
+        mConsumer = consumer;
+        mStats = stats;
+        mFrameCount = frameCount;
+        mSlotLimit = frameCount;
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mFrames = new ArrayList<>(frameCount);
+        mFreeFrames = new ArrayBlockingQueue<>(frameCount);
+        mPendingFrames = new ArrayBlockingQueue<>(frameCount);
+
+        mDeliveryThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliverFrames();
+            }
+        }, "FrameDelivery");
+        mDeliveryThread.start();
+    }
+
+    @Override
+    public FrameSlot acquireSlot() throws InterruptedException {
+        Frame frame = mFreeFrames.poll();
+        if (frame!=null)
+            return frame.slot;
+        synchronized (mFrames)
+        {
+            if (mFrames.size() < mSlotLimit)
+            {
+                FrameSlot slot = new FrameSlot(mWidth, mHeight, false);
+                frame = new Frame(slot, mWidth, mHeight, mFormat, this);
+                slot.frame = frame;
+                mFrames.add(frame);
+                return slot;
+            }
+        }
+        return mFreeFrames.take().slot;
+    }
+
+    @Override
+    public int getSlotCount() {
+        return mFrameCount;
+    }
+
+    @Override
+    public int getAllocatedSlotCount() {
+        synchronized (mFrames)
+        {
+            return mFrames.size();
+        }
+    }
+
+    @Override
+    public void setSlotLimit(int limit) {
+        synchronized (mFrames)
+        {
+            mSlotLimit = Math.max(1, Math.min(limit, mFrameCount));
+            Frame frame;
+            while (mFrames.size() > mSlotLimit && (frame = mFreeFrames.poll())!=null)
+                mFrames.remove(frame);
+        }
+    }
+
+    @Override
+    public void submit(FrameSlot slot) {
+        synchronized (mIdleLock)
+        {
+            mOutstanding++;
+        }
+        mPendingFrames.add(slot.frame);
+        if (mStats!=null)
+            mStats.recordQueueDepth(PipelineStats.Queue.PENDING_WRITES, mPendingFrames.size());
+    }
+
+    /**
+     * Blocks until the consumer has released every submitted frame.
+     */
+    @Override
+    public void awaitIdle() {
+        synchronized (mIdleLock)
+        {
+            try {
+                while (mOutstanding > 0)
+                    mIdleLock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        mDeliveryThread.interrupt();
+        try {
+            mDeliveryThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void frameReleased(Frame frame)
+    {
+        frame.slot.detachImage();
+        recycleFrame(frame);
+        synchronized (mIdleLock)
+        {
+            mOutstanding--;
+            mIdleLock.notifyAll();
+        }
+    }
+
+    /**
+     * Puts a released frame back into the pool, or drops it when the pool is over its limit.
+     */
+    private void recycleFrame(Frame frame)
+    {
+        synchronized (mFrames)
+        {
+            if (mFrames.size() > mSlotLimit)
+            {
+                mFrames.remove(frame);
+                return;
+            }
+        }
+        mFreeFrames.add(frame);
+    }
+
+    private void deliverFrames()
+    {
+        try {
+            while (!Thread.currentThread().isInterrupted())
+            {
+                Frame frame = mPendingFrames.take();
+                frame.deliver();
+                try {
+                    mConsumer.onFrame(frame);
+                } catch (RuntimeException e) {
+                    // A failing consumer must not stop the delivery of the following frames
+                    Log.e(TAG, "Frame consumer failed on frame "+frame.getFrameIndex(), e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Released
+        }
+    }
+}
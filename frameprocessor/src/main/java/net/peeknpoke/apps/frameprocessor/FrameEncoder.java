@@ -0,0 +1,30 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the pixels of one processed frame into the bytes of an output file. Called on the encoder
+ * threads, so implementations must not keep state between calls. {@link FrameEncoders} has the
+ * built-in formats.
+ */
+public interface FrameEncoder {
+    /**
+     * Extension of the written files, including the dot.
+     */
+    String getExtension();
+
+    /**
+     * Whether {@link #encode} needs the pixels copied into a Bitmap first.
+     */
+    boolean needsBitmap();
+
+    /**
+     * @param pixels tightly packed RGBA rows as read back from the GPU, positioned at the start
+     * @param bitmap the same pixels as an ARGB_8888 Bitmap, null unless {@link #needsBitmap()}
+     */
+    void encode(ByteBuffer pixels, Bitmap bitmap, OutputStream out) throws IOException;
+}
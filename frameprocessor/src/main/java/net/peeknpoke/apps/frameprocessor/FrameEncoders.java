@@ -0,0 +1,133 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Built-in frame encoders, from the cheapest on the CPU and the largest on disk (raw) to the slowest
+ * and smallest (lossy WebP and JPEG at low quality).
+ */
+public final class FrameEncoders {
+    private FrameEncoders()
+    {
+    }
+
+    public static FrameEncoder jpeg(int quality)
+    {
+        return new BitmapEncoder(Bitmap.CompressFormat.JPEG, checkQuality(quality), ".jpg");
+    }
+
+    /**
+     * Lossless. Bitmap.compress has no compression level for PNG, so this is always its default level.
+     */
+    public static FrameEncoder png()
+    {
+        return new BitmapEncoder(Bitmap.CompressFormat.PNG, 100, ".png");
+    }
+
+    /**
+     * @param quality below 100, at 100 the platform switches to lossless WebP
+     */
+    public static FrameEncoder webpLossy(int quality)
+    {
+        if (checkQuality(quality) == 100)
+            throw new IllegalArgumentException("Lossy WebP quality must be below 100");
+        return new BitmapEncoder(Bitmap.CompressFormat.WEBP, quality, ".webp");
+    }
+
+    /**
+     * Lossless WebP from Android 10 on. Older versions have no lossless WebP encoder, so PNG is written
+     * instead, with the .png extension.
+     */
+    public static FrameEncoder webpLossless()
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R)
+            return new BitmapEncoder(Bitmap.CompressFormat.WEBP_LOSSLESS, 100, ".webp");
+        // Quality 100 only selects the lossless encoder from Android 10 on
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            return new BitmapEncoder(Bitmap.CompressFormat.WEBP, 100, ".webp");
+        return png();
+    }
+
+    /**
+     * Uncompressed RGBA rows without a header, width and height have to be known by the reader.
+     */
+    public static FrameEncoder raw()
+    {
+        return new RawEncoder();
+    }
+
+    private static int checkQuality(int quality)
+    {
+        if (quality < 0 || quality > 100)
+            throw new IllegalArgumentException("Quality must be between 0 and 100");
+        return quality;
+    }
+
+    private static class BitmapEncoder implements FrameEncoder {
+        private final Bitmap.CompressFormat mFormat;
+        private final int mQuality;
+        private final String mExtension;
+
+        BitmapEncoder(Bitmap.CompressFormat format, int quality, String extension)
+        {
+            mFormat = format;
+            mQuality = quality;
+            mExtension = extension;
+        }
+
+        @Override
+        public String getExtension() {
+            return mExtension;
+        }
+
+        @Override
+        public boolean needsBitmap() {
+            return true;
+        }
+
+        @Override
+        public void encode(ByteBuffer pixels, Bitmap bitmap, OutputStream out) throws IOException {
+            if (!bitmap.compress(mFormat, mQuality, out))
+                throw new IOException("Could not compress frame as "+mFormat);
+        }
+
+        @Override
+        public String toString() {
+            return mFormat+"@"+mQuality;
+        }
+    }
+
+    private static class RawEncoder implements FrameEncoder {
+        @Override
+        public String getExtension() {
+            return ".rgba";
+        }
+
+        @Override
+        public boolean needsBitmap() {
+            return false;
+        }
+
+        @Override
+        public void encode(ByteBuffer pixels, Bitmap bitmap, OutputStream out) throws IOException {
+            // Straight from the direct buffer to the file, without going through a heap array
+            WritableByteChannel channel = out instanceof FileOutputStream ?
+                    ((FileOutputStream) out).getChannel() : Channels.newChannel(out);
+            while (pixels.hasRemaining())
+                channel.write(pixels);
+        }
+
+        @Override
+        public String toString() {
+            return "RAW";
+        }
+    }
+}
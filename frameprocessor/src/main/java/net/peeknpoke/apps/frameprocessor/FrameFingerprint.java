@@ -0,0 +1,132 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Tells near-duplicate frames apart on the GPU before they are read back. The rendered frame is blitted
+ * into a square power of two texture whose mipmaps average it down to a GRID_SIZE x GRID_SIZE grid,
+ * and only that grid is read back and turned into luma. A frame is a duplicate when the mean luma
+ * difference to the last frame that was not a duplicate stays within the threshold.
+ */
+class FrameFingerprint {
+    static final int GRID_SIZE = 16;
+    // Largest reduction texture, frames above it are scaled down by the blit
+    private static final int MAX_REDUCTION_SIZE = 1024;
+
+    private final float mThreshold;
+    private final int mReductionSize;
+    private final int mGridLevel;
+    private final int[] mTexture = new int[1];
+    // The full size level of the reduction texture and the grid level
+    private final int[] mFramebuffers = new int[2];
+    private final int[] mBoundFramebuffer = new int[1];
+    private final ByteBuffer mGridPixels;
+    private byte[] mLast = new byte[GRID_SIZE*GRID_SIZE];
+    private byte[] mCurrent = new byte[GRID_SIZE*GRID_SIZE];
+    private boolean mHasLast = false;
+
+    /**
+     * @param threshold mean absolute luma difference, from 0 to 255, up to which a frame is a duplicate
+     */
+    FrameFingerprint(int width, int height, float threshold)
+    {
+        mThreshold = threshold;
+        int size = Integer.highestOneBit(Math.max(GRID_SIZE, Math.min(width, height)));
+        mReductionSize = Math.min(MAX_REDUCTION_SIZE, size);
+        mGridLevel = Integer.numberOfTrailingZeros(mReductionSize/GRID_SIZE);
+        mGridPixels = ByteBuffer.allocateDirect(GRID_SIZE*GRID_SIZE*4).order(ByteOrder.nativeOrder());
+
+        GLES30.glGenTextures(1, mTexture, 0);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, mTexture[0]);
+        GLES30.glTexStorage2D(GLES30.GL_TEXTURE_2D, mGridLevel + 1, GLES30.GL_RGBA8, mReductionSize, mReductionSize);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+
+        GLES30.glGenFramebuffers(2, mFramebuffers, 0);
+        attach(mFramebuffers[0], 0);
+        attach(mFramebuffers[1], mGridLevel);
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
+    }
+
+    private void attach(int framebuffer, int level)
+    {
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, framebuffer);
+        GLES30.glFramebufferTexture2D(GLES30.GL_FRAMEBUFFER, GLES30.GL_COLOR_ATTACHMENT0, GLES30.GL_TEXTURE_2D,
+                mTexture[0], level);
+        if (GLES30.glCheckFramebufferStatus(GLES30.GL_FRAMEBUFFER) != GLES30.GL_FRAMEBUFFER_COMPLETE)
+            throw new RuntimeException("Incomplete fingerprint framebuffer.");
+    }
+
+    /**
+     * Fingerprints the frame rendered into the bound framebuffer. Waits for the GPU to finish the frame,
+     * but only reads back the grid. A frame that is not a duplicate becomes the one later frames are
+     * compared with.
+     */
+    boolean isDuplicate(int width, int height)
+    {
+        GLES30.glGetIntegerv(GLES30.GL_FRAMEBUFFER_BINDING, mBoundFramebuffer, 0);
+        GLES30.glBindFramebuffer(GLES30.GL_READ_FRAMEBUFFER, mBoundFramebuffer[0]);
+        GLES30.glBindFramebuffer(GLES30.GL_DRAW_FRAMEBUFFER, mFramebuffers[0]);
+        GLES30.glBlitFramebuffer(0, 0, width, height, 0, 0, mReductionSize, mReductionSize,
+                GLES30.GL_COLOR_BUFFER_BIT, GLES30.GL_LINEAR);
+
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, mTexture[0]);
+        GLES30.glGenerateMipmap(GLES30.GL_TEXTURE_2D);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+
+        GLES30.glBindFramebuffer(GLES30.GL_READ_FRAMEBUFFER, mFramebuffers[1]);
+        mGridPixels.rewind();
+        GLES30.glReadPixels(0, 0, GRID_SIZE, GRID_SIZE, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, mGridPixels);
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, mBoundFramebuffer[0]);
+
+        lumaGrid(mGridPixels, mCurrent);
+        if (mHasLast && distance(mLast, mCurrent) <= mThreshold)
+            return true;
+        byte[] swap = mLast;
+        mLast = mCurrent;
+        mCurrent = swap;
+        mHasLast = true;
+        return false;
+    }
+
+    /**
+     * Forgets the last frame, the next one is never a duplicate.
+     */
+    void reset()
+    {
+        mHasLast = false;
+    }
+
+    void release()
+    {
+        GLES30.glDeleteFramebuffers(2, mFramebuffers, 0);
+        GLES30.glDeleteTextures(1, mTexture, 0);
+    }
+
+    /**
+     * BT.601 luma of every RGBA pixel of the grid.
+     */
+    static void lumaGrid(ByteBuffer rgba, byte[] luma)
+    {
+        for (int i = 0; i<luma.length; i++)
+        {
+            int r = rgba.get(i*4) & 0xff;
+            int g = rgba.get(i*4 + 1) & 0xff;
+            int b = rgba.get(i*4 + 2) & 0xff;
+            luma[i] = (byte) ((77*r + 150*g + 29*b + 128) >> 8);
+        }
+    }
+
+    /**
+     * Mean absolute difference of two luma grids.
+     */
+    static float distance(byte[] a, byte[] b)
+    {
+        int sum = 0;
+        for (int i = 0; i<a.length; i++)
+            sum += Math.abs((a[i] & 0xff) - (b[i] & 0xff));
+        return (float) sum/a.length;
+    }
+}
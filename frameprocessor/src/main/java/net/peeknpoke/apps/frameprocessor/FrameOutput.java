@@ -0,0 +1,38 @@
+package net.peeknpoke.apps.frameprocessor;
+
+/**
+ * Where the rendering context hands its read back frames. Slots come from a bounded pool, so
+ * {@link #acquireSlot()} blocking is what holds the decoder back when the output is slower.
+ */
+interface FrameOutput {
+    /**
+     * Returns an empty slot, blocking until one is available.
+     */
+    FrameSlot acquireSlot() throws InterruptedException;
+
+    /**
+     * Most slots the pool can hold, which is how many frames the output can hold at once.
+     */
+    int getSlotCount();
+
+    /**
+     * Number of slots allocated so far. Slots are allocated when all of the others are in use.
+     */
+    int getAllocatedSlotCount();
+
+    /**
+     * Limits the pool to fewer slots than {@link #getSlotCount()}, at least one. Free slots beyond the
+     * limit are dropped right away and the ones in use once they come back. May be called from any
+     * thread.
+     */
+    void setSlotLimit(int limit);
+
+    void submit(FrameSlot slot);
+
+    /**
+     * Blocks until every submitted frame is done with.
+     */
+    void awaitIdle();
+
+    void release();
+}
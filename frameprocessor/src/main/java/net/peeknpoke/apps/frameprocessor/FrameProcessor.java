@@ -1,218 +1,580 @@
 package net.peeknpoke.apps.frameprocessor;
 
 import android.content.Context;
-import android.media.MediaCodec;
+import android.graphics.Point;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
-
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-public class FrameProcessor implements RendererObserver, ObserverSubject<FrameProcessorObserver> {
+public class FrameProcessor implements DecodePipelineObserver, ObserverSubject<FrameProcessorObserver>,
+        PipelineStats.Listener, MemoryGovernor.Listener {
     private static final String TAG = FrameProcessor.class.getSimpleName();
-    private CustomContext mRenderingContext;
-    private MediaCodec mMediaCodec;
-    private MediaExtractor mMediaExtractor;
-    private Handler mMainHandler;
+    private static final String JOURNAL_FOLDER = "jobs";
+    private static final String FRAME_CACHE_FOLDER = "frames";
+    // Shorter cached runs are decoded anyway, decoding from the key frame before them costs about as much
+    private static final int MIN_CACHED_RUN = 30;
+
+    private static class SegmentJob {
+        final SegmentPlanner.Segment segment;
+        final JobSettings settings;
+        final FrameSampler frameSampler;
+
+        SegmentJob(SegmentPlanner.Segment segment, JobSettings settings, FrameSampler frameSampler)
+        {
+            this.segment = segment;
+            this.settings = settings;
+            this.frameSampler = frameSampler;
+        }
+    }
+
+    private Context mContext;
+    private Uri mUri;
+    private int mVideoTrackIndex;
     private MediaFormat mMediaFormat;
-    private int mMaxFrames;
+    private final List<DecodePipeline> mPipelines = new ArrayList<>();
+    // Segments left for the first pipeline that is done with its own
+    private final ArrayDeque<SegmentJob> mPendingSegments = new ArrayDeque<>();
+    private int mRunningPipelines;
+    // Index of the last frame handed to the sink, a journal is only deleted when its checkpoint got there
+    private int mLastFrameIndex = -1;
+    private FrameSink mFrameSink;
+    private PipelineStats mStats;
+    // Only set for resumable jobs
+    private JobJournal mJournal;
+    // Only set when written frames are cached
+    private FrameCache mFrameCache;
+    // Copies the cached frames while the pipelines decode the others
+    private Thread mCacheCopier;
+    // Only set when the frame pools are sized to a memory budget
+    private MemoryGovernor mMemoryGovernor;
+    // Completion is reported on the main thread
+    private Handler mMainHandler;
+    // Only accessed on the main thread, observers registered after completion are told right away
+    private boolean mDone = false;
     private ArrayList<WeakReference<FrameProcessorObserver>> mObservers = new ArrayList<>();
+    // Notified on the rendering threads while the app registers and removes observers
+    private final List<WeakReference<PipelineStatsObserver>> mStatsObservers = new CopyOnWriteArrayList<>();
+    // Notified on the memory governor's thread
+    private final List<WeakReference<MemoryBudgetObserver>> mMemoryObservers = new CopyOnWriteArrayList<>();
 
     public FrameProcessor(final Context context, Uri uri, int maxFrames, String appName) throws IOException {
-        mMediaExtractor = new MediaExtractor();
-        mMediaExtractor.setDataSource(context, uri, null);
-        mMaxFrames = maxFrames;
-        mMainHandler = new Handler(context.getMainLooper());
+        this(context, uri, maxFrames, appName, new FrameProcessorOptions());
+    }
 
-        final Handler renderingHandler = createRenderingThread();
+    public FrameProcessor(final Context context, Uri uri, int maxFrames, String appName,
+                          FrameProcessorOptions options) throws IOException {
+        mMainHandler = new Handler(context.getMainLooper());
+        MediaExtractor mediaExtractor = new MediaExtractor();
+        mediaExtractor.setDataSource(context, uri, null);
 
-        int videoTrackIndex = getVideoTrackIndex(mMediaExtractor);
+        int videoTrackIndex = getVideoTrackIndex(mediaExtractor);
         if (videoTrackIndex <0)
         {
             Log.e(TAG, "No video track");
+            mediaExtractor.release();
+            return;
         }
-        else
+
+        mediaExtractor.selectTrack(videoTrackIndex);
+        MediaFormat mediaFormat = mediaExtractor.getTrackFormat(videoTrackIndex);
+        mContext = context;
+        mUri = uri;
+        mVideoTrackIndex = videoTrackIndex;
+        mMediaFormat = mediaFormat;
+        long durationUs = mediaFormat.containsKey(MediaFormat.KEY_DURATION) ?
+                mediaFormat.getLong(MediaFormat.KEY_DURATION) : -1;
+        JobJournal journal = options.isResumable() ?
+                openJournal(context, uri, mediaFormat, maxFrames, appName, options) : null;
+        FrameCache frameCache = options.getFrameCacheSize() > 0 ?
+                openFrameCache(context, uri, mediaFormat, options) : null;
+        int segmentCount = getSegmentCount(mediaFormat, options);
+        MemoryGovernor memoryGovernor = null;
+        if (options.isMemoryGovernorEnabled())
+        {
+            Point outputSize = JobSettings.outputSize(mediaFormat, options);
+            memoryGovernor = MemoryGovernor.create(context, options, outputSize.x, outputSize.y, this);
+        }
+        if (memoryGovernor!=null)
+            segmentCount = memoryGovernor.planPipelines(segmentCount);
+        SyncSampleIndex syncSampleIndex = (segmentCount > 1 && frameCache==null) ||
+                FrameSampler.needsSyncSampleIndex(options) ? SyncSampleIndex.build(mediaExtractor) : null;
+        List<SegmentPlanner.Segment> segments;
+        long[] presentationTimesUs = null;
+        boolean[] cached = null;
+        int cachedCount = 0;
+        if (journal!=null && journal.getCheckpointIndex() >= 0)
+        {
+            Log.d(TAG, "Resuming after frame "+journal.getCheckpointIndex());
+            segments = Collections.singletonList(SegmentPlanner.resumeAfter(journal.getCheckpointIndex(),
+                    journal.getCheckpointUs(), maxFrames));
+        }
+        else if (frameCache!=null)
         {
-            mMediaExtractor.selectTrack(videoTrackIndex);
-            mMediaFormat = mMediaExtractor.getTrackFormat(videoTrackIndex);
-            int width = mMediaFormat.getInteger(MediaFormat.KEY_WIDTH);
-            int height = mMediaFormat.getInteger(MediaFormat.KEY_HEIGHT);
-//            int rotation = mMediaFormat.getInteger(MediaFormat.KEY_ROTATION);
-//            if (rotation==90 || rotation==270)
-//            {
-//                int temp = width;
-//                width = height;
-//                height = temp;
-//            }
-            mRenderingContext = new CustomContext(context, width, height, maxFrames, appName);
-            mRenderingContext.registerObserver(this);
-            renderingHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mRenderingContext.setupRenderingContext(context);
+            presentationTimesUs = SegmentPlanner.presentationTimes(mediaExtractor, maxFrames);
+            cached = new boolean[presentationTimesUs.length];
+            for (int i = 0; i<cached.length; i++)
+                cached[i] = frameCache.pin(presentationTimesUs[i]);
+            // The uncached frames are decoded in segments, which are queued up for up to segmentCount pipelines
+            segments = SegmentPlanner.planUncached(presentationTimesUs, cached, MIN_CACHED_RUN);
+            for (SegmentPlanner.Segment segment : segments)
+            {
+                // Cached frames inside a segment are decoded along with it and not copied
+                for (int i = segment.firstFrameIndex; i<segment.firstFrameIndex + segment.maxFrames; i++)
+                {
+                    if (cached[i])
+                        frameCache.unpin(presentationTimesUs[i]);
+                    cached[i] = false;
                 }
-            });
+            }
+            for (boolean frameCached : cached)
+                cachedCount += frameCached ? 1 : 0;
+            Log.d(TAG, cachedCount+" of "+cached.length+" frames cached, "+segments.size()+" segments to decode");
+            if (segments.isEmpty() && cachedCount == 0)
+                segments = Collections.singletonList(SegmentPlanner.wholeStream(maxFrames));
+        }
+        else if (segmentCount > 1)
+            segments = SegmentPlanner.plan(mediaExtractor, syncSampleIndex, segmentCount, maxFrames);
+        else
+            segments = Collections.singletonList(SegmentPlanner.wholeStream(maxFrames));
+
+        List<SegmentJob> jobs = new ArrayList<>();
+        JobSettings shared = null;
+        for (SegmentPlanner.Segment segment : segments)
+        {
+            JobSettings settings = JobSettings.create(context, mediaFormat, segment, appName, options, shared,
+                    journal, frameCache, memoryGovernor);
+            if (shared==null)
+                shared = settings;
+            jobs.add(new SegmentJob(segment, settings, new FrameSampler(options, syncSampleIndex, durationUs)));
+        }
+        if (shared==null)
+        {
+            // Every frame is cached, the settings only provide the sink
+            shared = JobSettings.create(context, mediaFormat, SegmentPlanner.wholeStream(0), appName, options,
+                    null, journal, frameCache, memoryGovernor);
         }
+
+        int pipelineCount = frameCache!=null ? Math.min(jobs.size(), segmentCount) : jobs.size();
+        for (int i = 0; i<pipelineCount; i++)
+        {
+            // A pipeline that decodes several segments keeps its decoder between them
+            DecodePipeline pipeline = new DecodePipeline(pipelineCount > 1 ? "-"+i : "", jobs.size() > pipelineCount);
+            pipeline.registerObserver(this);
+            mPipelines.add(pipeline);
+        }
+        mPendingSegments.addAll(jobs.subList(pipelineCount, jobs.size()));
+
+        mFrameSink = shared.frameSink;
+        mJournal = journal;
+        mFrameCache = frameCache;
+        mStats = shared.stats;
+        if (mStats!=null)
+            mStats.setListener(this);
+        mMemoryGovernor = memoryGovernor;
+        if (mMemoryGovernor!=null)
+            mMemoryGovernor.start();
+        mRunningPipelines = mPipelines.size();
+        if (cachedCount > 0)
+        {
+            mRunningPipelines++;
+            // Only the IMAGES output mode uses the cache
+            startCacheCopier((FileFrameSink) mFrameSink, frameCache, presentationTimesUs, cached);
+        }
+        for (int i = 0; i<mPipelines.size(); i++)
+        {
+            // Every segment reads the file through its own extractor
+            MediaExtractor extractor = i > 0 ? openExtractor() : mediaExtractor;
+            SegmentJob job = jobs.get(i);
+            mPipelines.get(i).startJob(context, job.settings, extractor, mediaFormat, job.frameSampler, job.segment);
+        }
+        if (mPipelines.isEmpty())
+            mediaExtractor.release();
     }
 
-    private void start()
+    private MediaExtractor openExtractor() throws IOException
     {
-        mMediaCodec.start();
+        MediaExtractor extractor = new MediaExtractor();
+        extractor.setDataSource(mContext, mUri, null);
+        extractor.selectTrack(mVideoTrackIndex);
+        return extractor;
     }
 
-    private Handler createRenderingThread()
+    /**
+     * Copies the cached frames into output files on a thread of its own, unpinning every one of them,
+     * and counts as one more pipeline until it is done.
+     */
+    private void startCacheCopier(final FileFrameSink sink, final FrameCache cache, final long[] presentationTimesUs,
+                                  final boolean[] cached)
     {
-        HandlerThread renderingThread = new HandlerThread("CustomContext");
-        renderingThread.start();
-        Looper looper = renderingThread.getLooper();
-        return new Handler(looper);
+        mCacheCopier = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i<cached.length; i++)
+                {
+                    if (!cached[i])
+                        continue;
+                    try {
+                        // Released, the remaining frames are only unpinned
+                        if (!Thread.currentThread().isInterrupted())
+                            sink.writeCached(i, presentationTimesUs[i]);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not copy cached frame "+i, e);
+                    } finally {
+                        cache.unpin(presentationTimesUs[i]);
+                    }
+                    frameHandedOver(i);
+                }
+                if (!Thread.currentThread().isInterrupted())
+                    pipelineDone();
+            }
+        }, "FrameCache");
+        mCacheCopier.start();
     }
 
-    private void stop()
+    /**
+     * Segmented decoding is only used where the segments can be merged back, i.e. when every frame
+     * is written out as an image or into an archive, and never with more decoders than the codec supports
+     * at once.
+     */
+    private int getSegmentCount(MediaFormat mediaFormat, FrameProcessorOptions options)
     {
-        if (mMediaCodec!=null)
+        int segmentCount = options.getParallelSegments();
+        if (segmentCount <= 1)
+            return 1;
+        if (options.getSamplingMode() != FrameProcessorOptions.SamplingMode.ALL ||
+                options.getOutputMode() == FrameProcessorOptions.OutputMode.VIDEO)
+        {
+            Log.w(TAG, "Parallel segments need every frame written out, decoding sequentially");
+            return 1;
+        }
+        if (options.getOutputMode() == FrameProcessorOptions.OutputMode.CONSUMER)
+        {
+            // A consumer expects the frames in presentation order, which segments would interleave
+            Log.w(TAG, "Frames are handed to a consumer in order, decoding sequentially");
+            return 1;
+        }
+        if (options.isResumable())
         {
-            mMediaCodec.stop();
-            mMediaCodec.release();
-            mMediaCodec = null;
+            // A checkpoint is the last frame before which everything is written, there is one per job
+            Log.w(TAG, "Resumable jobs are decoded sequentially");
+            return 1;
         }
+        return Math.min(segmentCount, DecoderSelector.maxInstances(mediaFormat, options.isHardwareDecoderPreferred()));
     }
 
-    private void setupMediaCodec(MediaFormat mediaFormat) throws IOException
+    private static JobJournal openJournal(Context context, Uri uri, MediaFormat mediaFormat, int maxFrames,
+                                          String appName, FrameProcessorOptions options) throws IOException
     {
-        String mimeType = mediaFormat.getString(MediaFormat.KEY_MIME);
-        if (mimeType==null)
+        if (options.getOutputMode() != FrameProcessorOptions.OutputMode.IMAGES)
+            throw new IllegalArgumentException("Resumable jobs need the IMAGES output mode");
+        if (options.getSamplingMode() == FrameProcessorOptions.SamplingMode.EVERY_NTH)
+            throw new IllegalArgumentException("Resumable jobs cannot sample every nth frame");
+        File outputFolder = FileOperations.getAppMediaFolder(appName);
+        if (outputFolder==null)
+            throw new IOException("Media folder not available");
+        return JobJournal.open(new File(context.getFilesDir(), JOURNAL_FOLDER),
+                jobKey(uri, mediaFormat, maxFrames, appName, options), outputFolder.getPath(),
+                options.getCheckpointInterval());
+    }
+
+    private static FrameCache openFrameCache(Context context, Uri uri, MediaFormat mediaFormat,
+                                             FrameProcessorOptions options) throws IOException
+    {
+        if (options.getOutputMode() != FrameProcessorOptions.OutputMode.IMAGES ||
+                options.getSamplingMode() != FrameProcessorOptions.SamplingMode.ALL ||
+                options.getDuplicateThreshold() >= 0 || options.isResumable())
         {
-            Log.e(TAG, "Could not read mime type");
-            return;
+            Log.w(TAG, "The frame cache needs every frame written as an image, without skipping or resuming");
+            return null;
         }
-        mMediaCodec = MediaCodec.createDecoderByType(mimeType);
-        mMediaCodec.setCallback(new MediaCodec.Callback() {
-            @Override
-            public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
-                ByteBuffer inputBuffer = codec.getInputBuffer(index);
-                Log.d(TAG, "Filling buffer: "+index);
-                fillInputBuffer(inputBuffer, index);
-            }
+        FrameStore store = FrameStore.open(new File(context.getCacheDir(), FRAME_CACHE_FOLDER),
+                options.getFrameCacheSize());
+        return new FrameCache(store, frameCacheKey(context, uri, mediaFormat, options));
+    }
 
-            @Override
-            public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
-                Log.d(TAG, "Processing output buffer "+index+" size: "+info.size);
-                processOutputBuffer(info, index);
-            }
+    /**
+     * Everything a written frame depends on apart from its presentation time. The source is identified
+     * by its content, and the filters by the sources of their shaders, which may change with the app.
+     */
+    private static String frameCacheKey(Context context, Uri uri, MediaFormat mediaFormat,
+                                        FrameProcessorOptions options) throws IOException
+    {
+        StringBuilder key = new StringBuilder(FileOperations.fingerprint(context, uri));
+        key.append('|').append(mediaFormat.getInteger(MediaFormat.KEY_WIDTH))
+                .append('x').append(mediaFormat.getInteger(MediaFormat.KEY_HEIGHT));
+        appendOutputSettings(key, options);
+        key.append('|').append(options.getDecodeOutput())
+                .append('|').append(options.getFilterBackend());
+        FilterGraph filterGraph = options.getFilterGraph();
+        for (int i = 0; i<filterGraph.getStageCount(); i++)
+            key.append('|').append(ShaderProgram.loadShaderFile(context, filterGraph.getStage(i)));
+        return key.toString();
+    }
 
-            @Override
-            public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
-                Log.e(TAG, "Media codec error - "+e.getMessage()+" - "+e.getErrorCode());
-            }
+    private static void appendOutputSettings(StringBuilder key, FrameProcessorOptions options)
+    {
+        key.append('|').append(options.getFrameEncoder())
+                .append('|').append(options.getOutputWidth()).append('x').append(options.getOutputHeight())
+                .append('|').append(options.getCropRect())
+                .append('|').append(options.getFilterGraph());
+    }
 
-            @Override
-            public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+    /**
+     * Everything the written frames depend on, a journal with another key is not resumed.
+     */
+    private static String jobKey(Uri uri, MediaFormat mediaFormat, int maxFrames, String appName,
+                                 FrameProcessorOptions options)
+    {
+        StringBuilder key = new StringBuilder(uri.toString());
+        key.append('|').append(mediaFormat.getInteger(MediaFormat.KEY_WIDTH))
+                .append('x').append(mediaFormat.getInteger(MediaFormat.KEY_HEIGHT));
+        if (mediaFormat.containsKey(MediaFormat.KEY_DURATION))
+            key.append('/').append(mediaFormat.getLong(MediaFormat.KEY_DURATION));
+        key.append('|').append(maxFrames).append('|').append(appName);
+        appendOutputSettings(key, options);
+        key.append('|').append(options.getSamplingMode()).append('/').append(options.getSamplingIntervalUs())
+                .append('|').append(options.getDecodeOutput())
+                .append('|').append(options.getDuplicateThreshold());
+        return key.toString();
+    }
 
-            }
-        });
+    static int getVideoTrackIndex(MediaExtractor extractor)
+    {
+        int numTracks = extractor.getTrackCount();
+        for (int i = 0; i < numTracks; i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime!=null && mime.startsWith("video/"))
+                return i;
+        }
 
-        mMediaCodec.configure(mediaFormat, mRenderingContext.getSurface(), null, 0);
+        return -1;
     }
 
-    private void fillInputBuffer(ByteBuffer inputBuffer, int index)
+    public void release()
     {
-        int sampleSize = mMediaExtractor.readSampleData(inputBuffer, 0);
-        Log.d(TAG, "sample size: "+sampleSize);
-        if (sampleSize < 0)
+        synchronized (mPipelines)
         {
-            // End of input data reached
-            mMediaCodec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-            Log.d(TAG, "input EOS");
+            mPendingSegments.clear();
         }
-        else
+        for (DecodePipeline pipeline : mPipelines)
+        {
+            pipeline.removeObserver(this);
+            pipeline.release();
+        }
+        if (mCacheCopier!=null)
         {
-            mMediaCodec.queueInputBuffer(index, 0, sampleSize,
-                    mMediaExtractor.getSampleTime(), 0);
+            mCacheCopier.interrupt();
+            try {
+                mCacheCopier.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeFrameSink();
+        closeJournal(false);
+        closeFrameCache();
+        closeMemoryGovernor();
+    }
+
+    private void closeFrameSink()
+    {
+        synchronized (mPipelines)
+        {
+            if (mFrameSink!=null)
+                mFrameSink.close();
+            mFrameSink = null;
+        }
+    }
 
-            mMediaExtractor.advance();
+    /**
+     * @param done every frame has been handed to the sink, a complete job leaves no journal behind
+     */
+    private void closeJournal(boolean done)
+    {
+        JobJournal journal;
+        int lastFrameIndex;
+        synchronized (mPipelines)
+        {
+            journal = mJournal;
+            mJournal = null;
+            lastFrameIndex = mLastFrameIndex;
+        }
+        if (journal==null)
+            return;
+        try {
+            if (done)
+                journal.finish(lastFrameIndex);
+            else
+                journal.save();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save the job journal", e);
+        }
+    }
+
+    private void closeFrameCache()
+    {
+        FrameCache frameCache;
+        synchronized (mPipelines)
+        {
+            frameCache = mFrameCache;
+            mFrameCache = null;
         }
+        if (frameCache!=null)
+            frameCache.save();
     }
 
-    private void processOutputBuffer(MediaCodec.BufferInfo info, int index)
+    private void closeMemoryGovernor()
     {
-        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-            Log.d(TAG, "output EOS");
+        MemoryGovernor memoryGovernor;
+        synchronized (mPipelines)
+        {
+            memoryGovernor = mMemoryGovernor;
+            mMemoryGovernor = null;
         }
+        if (memoryGovernor!=null)
+            memoryGovernor.release();
+    }
 
-        mMediaCodec.releaseOutputBuffer(index, info.size != 0);
-        if (info.size!=0)
+    /**
+     * Called on the pipeline's rendering thread. The pipeline moves on to the next pending segment,
+     * if there is one.
+     */
+    @Override
+    public void doneDecoding(DecodePipeline pipeline) {
+        frameHandedOver(pipeline.getLastFrameIndex());
+        while (true)
         {
-            synchronized (mRenderingContext.sync)
+            SegmentJob job;
+            synchronized (mPipelines)
             {
-                try {
-                    while(!mRenderingContext.proceed)
-                        mRenderingContext.sync.wait(500);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                mRenderingContext.proceed = false;
-                if (mRenderingContext.mOutputFrameIndex==mMaxFrames)
-                    stopDecoding();
+                job = mPendingSegments.poll();
+            }
+            if (job==null)
+                break;
+            try {
+                pipeline.startJob(mContext, job.settings, openExtractor(), mMediaFormat, job.frameSampler,
+                        job.segment);
+                return;
+            } catch (IOException e) {
+                Log.e(TAG, "Could not decode the segment from frame "+job.segment.firstFrameIndex, e);
             }
         }
-        else
-            stopDecoding();
+        pipelineDone();
     }
 
-    private int getVideoTrackIndex(MediaExtractor extractor)
+    private void frameHandedOver(int frameIndex)
     {
-        int numTracks = extractor.getTrackCount();
-        for (int i = 0; i < numTracks; i++) {
-            MediaFormat format = extractor.getTrackFormat(i);
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            if (mime!=null && mime.startsWith("video/"))
-                return i;
+        synchronized (mPipelines)
+        {
+            mLastFrameIndex = Math.max(mLastFrameIndex, frameIndex);
         }
+    }
 
-        return -1;
+    private void pipelineDone()
+    {
+        boolean done;
+        synchronized (mPipelines)
+        {
+            done = --mRunningPipelines == 0;
+        }
+        if (done)
+        {
+            closeFrameSink();
+            closeJournal(true);
+            closeFrameCache();
+            closeMemoryGovernor();
+            if (mStats!=null)
+                notifyJobFinished(mStats.snapshot());
+            notifyObservers();
+        }
     }
 
-    public void release()
+    @Override
+    public void statsUpdated(PipelineStats snapshot) {
+        for (WeakReference<PipelineStatsObserver> ref : mStatsObservers) {
+            PipelineStatsObserver observer = ref.get();
+            if (observer!=null)
+                observer.statsUpdated(snapshot);
+        }
+    }
+
+    private void notifyJobFinished(PipelineStats report)
     {
-        stop();
-        mRenderingContext.removeObserver(this);
-        mRenderingContext.release();
+        for (WeakReference<PipelineStatsObserver> ref : mStatsObservers) {
+            PipelineStatsObserver observer = ref.get();
+            if (observer!=null)
+                observer.jobFinished(report);
+        }
     }
 
-    private void renderingSurfaceCreated() {
-        try {
-            setupMediaCodec(mMediaFormat);
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Observers of the pipeline statistics, only called when instrumentation is enabled in the options.
+     */
+    public void registerStatsObserver(PipelineStatsObserver observer) {
+        for (WeakReference<PipelineStatsObserver> ref : mStatsObservers) {
+            if (ref.get() == observer)
+                return;
         }
-        // Create media decoder
-        // Note: this needs the surface created in CustomContext. So order cannot change
-        start();
+        mStatsObservers.add(new WeakReference<>(observer));
     }
 
-    private void stopDecoding() {
-        stop();
-        notifyObservers();
+    public void removeStatsObserver(PipelineStatsObserver observer) {
+        for (WeakReference<PipelineStatsObserver> ref : mStatsObservers) {
+            if (ref.get() == observer) {
+                mStatsObservers.remove(ref);
+                return;
+            }
+        }
     }
 
+    /**
+     * Called on the memory governor's thread.
+     */
     @Override
-    public void setupComplete() {
-        mMainHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                renderingSurfaceCreated();
+    public void budgetChanged(MemoryBudget budget) {
+        for (WeakReference<MemoryBudgetObserver> ref : mMemoryObservers) {
+            MemoryBudgetObserver observer = ref.get();
+            if (observer!=null)
+                observer.budgetChanged(budget);
+        }
+    }
+
+    /**
+     * Observers of the memory budget of the frame buffers, only called when the memory governor is
+     * enabled in the options. An observer registered after the first budget receives the current one
+     * right away.
+     */
+    public void registerMemoryObserver(MemoryBudgetObserver observer) {
+        for (WeakReference<MemoryBudgetObserver> ref : mMemoryObservers) {
+            if (ref.get() == observer)
+                return;
+        }
+        mMemoryObservers.add(new WeakReference<>(observer));
+        MemoryGovernor memoryGovernor = mMemoryGovernor;
+        MemoryBudget budget = memoryGovernor!=null ? memoryGovernor.getBudget() : null;
+        if (budget!=null)
+            observer.budgetChanged(budget);
+    }
+
+    public void removeMemoryObserver(MemoryBudgetObserver observer) {
+        for (WeakReference<MemoryBudgetObserver> ref : mMemoryObservers) {
+            if (ref.get() == observer) {
+                mMemoryObservers.remove(ref);
+                return;
             }
-        });
+        }
     }
 
     private WeakReference<FrameProcessorObserver> findWeakReference(FrameProcessorObserver rendererObserver)
@@ -226,11 +588,22 @@ public class FrameProcessor implements RendererObserver, ObserverSubject<FramePr
         return weakReference;
     }
 
+    /**
+     * The work starts in the constructor, so a job that finishes before its observer is registered,
+     * e.g. one whose frames are all cached, reports completion to it once it is.
+     */
     @Override
-    public void registerObserver(FrameProcessorObserver observer) {
+    public void registerObserver(final FrameProcessorObserver observer) {
         WeakReference<FrameProcessorObserver> weakReference = findWeakReference(observer);
         if (weakReference==null)
             mObservers.add(new WeakReference<>(observer));
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mDone && findWeakReference(observer)!=null)
+                    observer.doneProcessing();
+            }
+        });
     }
 
     @Override
@@ -242,10 +615,19 @@ public class FrameProcessor implements RendererObserver, ObserverSubject<FramePr
     }
 
     private void notifyObservers() {
-        for (WeakReference<FrameProcessorObserver> co:mObservers){
-            FrameProcessorObserver observer = co.get();
-            if (observer!=null)
-                observer.doneProcessing();
-        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mDone = true;
+                // Observers may remove themselves when called
+                for (int i = 0; i<mObservers.size(); i++){
+                    FrameProcessorObserver observer = mObservers.get(i).get();
+                    if (observer!=null)
+                        observer.doneProcessing();
+                }
+                // Every observer is told once, the ones registered from now on by registerObserver
+                mObservers.clear();
+            }
+        });
     }
 }
@@ -1,5 +1,8 @@
 package net.peeknpoke.apps.frameprocessor;
 
 public interface FrameProcessorObserver {
+    /**
+     * Called on the main thread once every frame has been written.
+     */
     void doneProcessing();
 }
@@ -0,0 +1,614 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.graphics.Rect;
+import android.media.MediaFormat;
+
+public class FrameProcessorOptions {
+    public enum ReadbackMode {
+        // glReadPixels straight into client memory, stalls until the GPU is done
+        SYNC,
+        // glReadPixels into a ring of pixel pack buffers, mapped a frame later
+        PBO,
+        // Rendered into an ImageReader whose pages are read in place, without glReadPixels. Android 8.0
+        // and later, PBO before
+        IMAGE_READER
+    }
+
+    public enum OutputMode {
+        // One image file per frame
+        IMAGES,
+        // All frames encoded into a single video file, without reading pixels back
+        VIDEO,
+        // Every frame encoded with the frame encoder and appended to one archive file, see FrameArchive
+        ARCHIVE,
+        // Every frame handed to a FrameConsumer in memory, nothing is encoded or written
+        CONSUMER
+    }
+
+    public enum DecodeOutput {
+        // Decoded frames go through a SurfaceTexture and the OpenGL filter graph
+        SURFACE,
+        // Decoded frames are rendered into an ImageReader and converted on the CPU, without OpenGL
+        IMAGE_READER,
+        // Decoded frames are converted on the CPU straight from the decoder's output buffers, without OpenGL
+        BUFFER
+    }
+
+    public enum FilterBackend {
+        // Every stage that has a CPU kernel goes where it measured faster for the output size
+        AUTO,
+        // Every stage on the GPU
+        GPU,
+        // Every stage that has a CPU kernel, and all after it, on the CPU after the readback
+        CPU
+    }
+
+    public enum SamplingMode {
+        // Every frame of the stream
+        ALL,
+        // One frame out of every N decoded frames
+        EVERY_NTH,
+        // Only the key frames, everything in between is never decoded
+        KEY_FRAMES,
+        // The first frame at or after every multiple of a fixed interval
+        INTERVAL
+    }
+
+    private SamplingMode mSamplingMode = SamplingMode.ALL;
+    private int mSamplingStep = 1;
+    private long mSamplingIntervalUs = 0;
+    private int mOutputWidth = 0;
+    private int mOutputHeight = 0;
+    private Rect mCropRect = null;
+    private FilterGraph mFilterGraph = FilterGraph.defaultGraph();
+    private boolean mProgramCacheEnabled = true;
+    private FilterBackend mFilterBackend = FilterBackend.AUTO;
+    private float mDuplicateThreshold = -1;
+    private int mCpuFilterThreads = 0;
+    private OutputMode mOutputMode = OutputMode.IMAGES;
+    private FrameEncoder mFrameEncoder = FrameEncoders.jpeg(100);
+    private FrameConsumer mFrameConsumer = null;
+    private int mConsumerFrameCount = 4;
+    private DecodeOutput mDecodeOutput = DecodeOutput.SURFACE;
+    private boolean mYuvOutput = false;
+    private int mConverterThreads = 2;
+    private boolean mHardwareDecoderPreferred = true;
+    private boolean mMediaPublishingEnabled = true;
+    private boolean mResumable = false;
+    private int mCheckpointInterval = 30;
+    private long mFrameCacheSize = 0;
+    private int mMediaPublishBatchSize = 0;
+    private boolean mInstrumentationEnabled = false;
+    private int mStatsSnapshotInterval = 0;
+    private String mVideoMimeType = MediaFormat.MIMETYPE_VIDEO_AVC;
+    private int mVideoBitRate = 0;
+    private ReadbackMode mReadbackMode = ReadbackMode.IMAGE_READER;
+    private int mPboCount = 3;
+    private int mEncoderThreads = 2;
+    private int mWriteQueueCapacity = 4;
+    private int mFramesInFlight = 4;
+    private int mParallelSegments = 1;
+    private boolean mMemoryGovernorEnabled = true;
+
+    public FrameProcessorOptions sampleAllFrames()
+    {
+        mSamplingMode = SamplingMode.ALL;
+        return this;
+    }
+
+    public FrameProcessorOptions sampleEveryNthFrame(int step)
+    {
+        if (step < 1)
+            throw new IllegalArgumentException("Sampling step must be positive");
+        mSamplingMode = SamplingMode.EVERY_NTH;
+        mSamplingStep = step;
+        return this;
+    }
+
+    public FrameProcessorOptions sampleKeyFrames()
+    {
+        mSamplingMode = SamplingMode.KEY_FRAMES;
+        return this;
+    }
+
+    public FrameProcessorOptions sampleInterval(long intervalUs)
+    {
+        if (intervalUs <= 0)
+            throw new IllegalArgumentException("Sampling interval must be positive");
+        mSamplingMode = SamplingMode.INTERVAL;
+        mSamplingIntervalUs = intervalUs;
+        return this;
+    }
+
+    public SamplingMode getSamplingMode()
+    {
+        return mSamplingMode;
+    }
+
+    public int getSamplingStep()
+    {
+        return mSamplingStep;
+    }
+
+    public long getSamplingIntervalUs()
+    {
+        return mSamplingIntervalUs;
+    }
+
+    /**
+     * Size of the output frames. With one of the dimensions set to 0 it follows the aspect ratio of
+     * the (cropped) source, with both set to 0 the (cropped) source size is kept.
+     */
+    public FrameProcessorOptions setOutputSize(int width, int height)
+    {
+        if (width < 0 || height < 0)
+            throw new IllegalArgumentException("Output size cannot be negative");
+        mOutputWidth = width;
+        mOutputHeight = height;
+        return this;
+    }
+
+    public int getOutputWidth()
+    {
+        return mOutputWidth;
+    }
+
+    public int getOutputHeight()
+    {
+        return mOutputHeight;
+    }
+
+    /**
+     * Region of the source frame to process, in source pixels. Null processes the whole frame.
+     */
+    public FrameProcessorOptions setCropRect(Rect cropRect)
+    {
+        mCropRect = cropRect == null ? null : new Rect(cropRect);
+        return this;
+    }
+
+    public Rect getCropRect()
+    {
+        return mCropRect;
+    }
+
+    public FrameProcessorOptions setFilterGraph(FilterGraph filterGraph)
+    {
+        if (filterGraph.getStageCount() == 0)
+            throw new IllegalArgumentException("Filter graph has no stages");
+        mFilterGraph = filterGraph;
+        return this;
+    }
+
+    public FilterGraph getFilterGraph()
+    {
+        return mFilterGraph;
+    }
+
+    /**
+     * Picks a hardware decoder that supports the stream's profile, level and size over a software one.
+     * When off, the first decoder the platform lists for the stream is used.
+     */
+    public FrameProcessorOptions setHardwareDecoderPreferred(boolean hardwareDecoderPreferred)
+    {
+        mHardwareDecoderPreferred = hardwareDecoderPreferred;
+        return this;
+    }
+
+    public boolean isHardwareDecoderPreferred()
+    {
+        return mHardwareDecoderPreferred;
+    }
+
+    /**
+     * Keeps linked shader programs in app storage so later jobs do not compile them again.
+     */
+    public FrameProcessorOptions setProgramCacheEnabled(boolean programCacheEnabled)
+    {
+        mProgramCacheEnabled = programCacheEnabled;
+        return this;
+    }
+
+    public boolean isProgramCacheEnabled()
+    {
+        return mProgramCacheEnabled;
+    }
+
+    /**
+     * Where the filter stages run when the frames are read back. Video output always filters on the GPU.
+     */
+    public FrameProcessorOptions setFilterBackend(FilterBackend filterBackend)
+    {
+        mFilterBackend = filterBackend;
+        return this;
+    }
+
+    public FilterBackend getFilterBackend()
+    {
+        return mFilterBackend;
+    }
+
+    /**
+     * Number of threads running the filter stages on the CPU, 0 for one per core.
+     */
+    public FrameProcessorOptions setCpuFilterThreads(int cpuFilterThreads)
+    {
+        if (cpuFilterThreads < 0)
+            throw new IllegalArgumentException("Thread count cannot be negative");
+        mCpuFilterThreads = cpuFilterThreads;
+        return this;
+    }
+
+    public int getCpuFilterThreads()
+    {
+        return mCpuFilterThreads;
+    }
+
+    /**
+     * Skips frames that look the same as the last frame written, before their pixels are read back.
+     * Every rendered frame is reduced to a 16x16 luma grid on the GPU, and a frame whose grid differs
+     * from the last written one by at most this mean absolute difference (0 to 255) is dropped. Negative
+     * turns skipping off, which is the default. Not used for video output.
+     */
+    public FrameProcessorOptions setDuplicateThreshold(float duplicateThreshold)
+    {
+        if (duplicateThreshold > 255)
+            throw new IllegalArgumentException("Luma differences are at most 255");
+        mDuplicateThreshold = duplicateThreshold;
+        return this;
+    }
+
+    public float getDuplicateThreshold()
+    {
+        return mDuplicateThreshold;
+    }
+
+    public FrameProcessorOptions setOutputMode(OutputMode outputMode)
+    {
+        mOutputMode = outputMode;
+        return this;
+    }
+
+    public OutputMode getOutputMode()
+    {
+        return mOutputMode;
+    }
+
+    /**
+     * Format of the image files, see {@link FrameEncoders}. Used for the IMAGES and ARCHIVE output modes.
+     */
+    public FrameProcessorOptions setFrameEncoder(FrameEncoder frameEncoder)
+    {
+        mFrameEncoder = frameEncoder;
+        return this;
+    }
+
+    public FrameEncoder getFrameEncoder()
+    {
+        return mFrameEncoder;
+    }
+
+    /**
+     * Receives the frames with the CONSUMER output mode.
+     */
+    public FrameProcessorOptions setFrameConsumer(FrameConsumer frameConsumer)
+    {
+        mFrameConsumer = frameConsumer;
+        return this;
+    }
+
+    public FrameConsumer getFrameConsumer()
+    {
+        return mFrameConsumer;
+    }
+
+    /**
+     * Number of pooled frames the consumer can hold before the pipeline waits for one to be released.
+     */
+    public FrameProcessorOptions setConsumerFrameCount(int consumerFrameCount)
+    {
+        if (consumerFrameCount < 1)
+            throw new IllegalArgumentException("At least one frame is needed");
+        mConsumerFrameCount = consumerFrameCount;
+        return this;
+    }
+
+    public int getConsumerFrameCount()
+    {
+        return mConsumerFrameCount;
+    }
+
+    /**
+     * Where the decoder puts its frames. The IMAGE_READER and BUFFER outputs skip OpenGL altogether and
+     * are only for jobs without scaling or video output whose filter stages all have a CPU kernel, see
+     * {@link FilterGraph}. Cropping is supported, rounded down to even source coordinates.
+     */
+    public FrameProcessorOptions setDecodeOutput(DecodeOutput decodeOutput)
+    {
+        mDecodeOutput = decodeOutput;
+        return this;
+    }
+
+    public DecodeOutput getDecodeOutput()
+    {
+        return mDecodeOutput;
+    }
+
+    /**
+     * Hands the frames to the consumer as YUV instead of converting them to RGBA. Needs the CONSUMER
+     * output mode, a decode output other than SURFACE and an identity filter graph.
+     */
+    public FrameProcessorOptions setYuvOutput(boolean yuvOutput)
+    {
+        mYuvOutput = yuvOutput;
+        return this;
+    }
+
+    public boolean isYuvOutput()
+    {
+        return mYuvOutput;
+    }
+
+    /**
+     * Number of threads converting a YUV frame on the CPU, including the rendering thread.
+     */
+    public FrameProcessorOptions setConverterThreads(int converterThreads)
+    {
+        if (converterThreads < 1)
+            throw new IllegalArgumentException("At least one converter thread is needed");
+        mConverterThreads = converterThreads;
+        return this;
+    }
+
+    public int getConverterThreads()
+    {
+        return mConverterThreads;
+    }
+
+    /**
+     * Registers the written image and video files with the media store so they show up in the gallery.
+     * Pipelines that never need that can turn it off.
+     */
+    public FrameProcessorOptions setMediaPublishingEnabled(boolean mediaPublishingEnabled)
+    {
+        mMediaPublishingEnabled = mediaPublishingEnabled;
+        return this;
+    }
+
+    public boolean isMediaPublishingEnabled()
+    {
+        return mMediaPublishingEnabled;
+    }
+
+    /**
+     * Number of image files registered with the media store at once. 0 registers all of them at the end
+     * of the job.
+     */
+    public FrameProcessorOptions setMediaPublishBatchSize(int mediaPublishBatchSize)
+    {
+        if (mediaPublishBatchSize < 0)
+            throw new IllegalArgumentException("Batch size cannot be negative");
+        mMediaPublishBatchSize = mediaPublishBatchSize;
+        return this;
+    }
+
+    public int getMediaPublishBatchSize()
+    {
+        return mMediaPublishBatchSize;
+    }
+
+    /**
+     * Keeps the progress of the job in app storage, so that the job started again with the same video,
+     * number of frames and options continues after the last frame written before it was interrupted,
+     * instead of from the first frame. Needs the IMAGES output mode and a sampling mode other than
+     * EVERY_NTH, and decodes the job as one segment. Frame encoders are told apart by their toString.
+     */
+    public FrameProcessorOptions setResumable(boolean resumable)
+    {
+        mResumable = resumable;
+        return this;
+    }
+
+    public boolean isResumable()
+    {
+        return mResumable;
+    }
+
+    /**
+     * Number of written frames between two saves of the progress of a resumable job.
+     */
+    public FrameProcessorOptions setCheckpointInterval(int checkpointInterval)
+    {
+        if (checkpointInterval < 1)
+            throw new IllegalArgumentException("Checkpoint interval must be at least one frame");
+        mCheckpointInterval = checkpointInterval;
+        return this;
+    }
+
+    public int getCheckpointInterval()
+    {
+        return mCheckpointInterval;
+    }
+
+    /**
+     * Keeps up to the given number of bytes of written frames in the app's cache folder, so that a later
+     * job over the same video with the same filters and output settings copies the frames it finds
+     * there instead of decoding, rendering and encoding them again. 0, the default, keeps none. Only
+     * used with the IMAGES output mode, all frames sampled, no duplicate skipping and a job that is not
+     * resumable. Frame encoders are told apart by their toString.
+     */
+    public FrameProcessorOptions setFrameCacheSize(long frameCacheSize)
+    {
+        if (frameCacheSize < 0)
+            throw new IllegalArgumentException("Cache size cannot be negative");
+        mFrameCacheSize = frameCacheSize;
+        return this;
+    }
+
+    public long getFrameCacheSize()
+    {
+        return mFrameCacheSize;
+    }
+
+    /**
+     * Records the latency of every pipeline stage and the depth of its queues into histograms, see
+     * {@link PipelineStats}. The results go to the registered {@link PipelineStatsObserver}s.
+     */
+    public FrameProcessorOptions setInstrumentationEnabled(boolean instrumentationEnabled)
+    {
+        mInstrumentationEnabled = instrumentationEnabled;
+        return this;
+    }
+
+    public boolean isInstrumentationEnabled()
+    {
+        return mInstrumentationEnabled;
+    }
+
+    /**
+     * Number of rendered frames between two statistics snapshots, 0 only reports at the end of the job.
+     */
+    public FrameProcessorOptions setStatsSnapshotInterval(int statsSnapshotInterval)
+    {
+        if (statsSnapshotInterval < 0)
+            throw new IllegalArgumentException("Snapshot interval cannot be negative");
+        mStatsSnapshotInterval = statsSnapshotInterval;
+        return this;
+    }
+
+    public int getStatsSnapshotInterval()
+    {
+        return mStatsSnapshotInterval;
+    }
+
+    public FrameProcessorOptions setVideoMimeType(String videoMimeType)
+    {
+        mVideoMimeType = videoMimeType;
+        return this;
+    }
+
+    public String getVideoMimeType()
+    {
+        return mVideoMimeType;
+    }
+
+    /**
+     * Bit rate of the encoded video in bits per second, 0 derives one from the frame size.
+     */
+    public FrameProcessorOptions setVideoBitRate(int videoBitRate)
+    {
+        mVideoBitRate = videoBitRate;
+        return this;
+    }
+
+    public int getVideoBitRate()
+    {
+        return mVideoBitRate;
+    }
+
+    public FrameProcessorOptions setReadbackMode(ReadbackMode readbackMode)
+    {
+        mReadbackMode = readbackMode;
+        return this;
+    }
+
+    public ReadbackMode getReadbackMode()
+    {
+        return mReadbackMode;
+    }
+
+    public FrameProcessorOptions setPboCount(int pboCount)
+    {
+        if (pboCount < 2)
+            throw new IllegalArgumentException("At least two pixel buffers are needed");
+        mPboCount = pboCount;
+        return this;
+    }
+
+    public int getPboCount()
+    {
+        return mPboCount;
+    }
+
+    public FrameProcessorOptions setEncoderThreads(int encoderThreads)
+    {
+        if (encoderThreads < 1)
+            throw new IllegalArgumentException("At least one encoder thread is needed");
+        mEncoderThreads = encoderThreads;
+        return this;
+    }
+
+    public int getEncoderThreads()
+    {
+        return mEncoderThreads;
+    }
+
+    /**
+     * Number of rendered frames that may wait for an encoder before the decoder is held back.
+     */
+    public FrameProcessorOptions setWriteQueueCapacity(int writeQueueCapacity)
+    {
+        if (writeQueueCapacity < 1)
+            throw new IllegalArgumentException("Write queue capacity must be positive");
+        mWriteQueueCapacity = writeQueueCapacity;
+        return this;
+    }
+
+    public int getWriteQueueCapacity()
+    {
+        return mWriteQueueCapacity;
+    }
+
+    /**
+     * Number of decoded frames that may wait for the rendering context before the decoder is held back.
+     */
+    public FrameProcessorOptions setFramesInFlight(int framesInFlight)
+    {
+        if (framesInFlight < 1)
+            throw new IllegalArgumentException("At least one frame has to be in flight");
+        mFramesInFlight = framesInFlight;
+        return this;
+    }
+
+    public int getFramesInFlight()
+    {
+        return mFramesInFlight;
+    }
+
+    /**
+     * Splits the stream into this many key frame aligned segments decoded in parallel, each with its
+     * own decoder and rendering context. Capped by the number of decoder instances the device supports,
+     * and only used when every frame is written out as an image or into an archive. A consumer gets its
+     * frames in order from a single segment. With the memory governor, also capped by the segments the
+     * memory budget has room for.
+     */
+    public FrameProcessorOptions setParallelSegments(int parallelSegments)
+    {
+        if (parallelSegments < 1)
+            throw new IllegalArgumentException("At least one segment is needed");
+        mParallelSegments = parallelSegments;
+        return this;
+    }
+
+    public int getParallelSegments()
+    {
+        return mParallelSegments;
+    }
+
+    /**
+     * Sizes the frame slot pools of the outputs from the app's memory class and the current heap and
+     * native memory use, and shrinks them while memory runs low, see {@link MemoryBudget}. When
+     * disabled every output can hold as many frames as the write queue or the consumer frame count
+     * allow.
+     */
+    public FrameProcessorOptions setMemoryGovernorEnabled(boolean memoryGovernorEnabled)
+    {
+        mMemoryGovernorEnabled = memoryGovernorEnabled;
+        return this;
+    }
+
+    public boolean isMemoryGovernorEnabled()
+    {
+        return mMemoryGovernorEnabled;
+    }
+}
@@ -0,0 +1,72 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single producer, single consumer ring of decoded frames waiting to be rendered.
+ * The codec callback thread offers output buffers, the rendering thread polls them in order.
+ */
+class FrameRing {
+    static final int FLAG_END_OF_STREAM = 1;
+
+    private final int[] mBufferIndices;
+    private final long[] mPresentationTimesUs;
+    private final int[] mFlags;
+    private final int mMask;
+    // Next position to read, only advanced by the consumer
+    private final AtomicLong mHead = new AtomicLong();
+    // Next position to write, only advanced by the producer
+    private final AtomicLong mTail = new AtomicLong();
+
+    FrameRing(int minCapacity)
+    {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity) - 1) << 1;
+        mBufferIndices = new int[capacity];
+        mPresentationTimesUs = new long[capacity];
+        mFlags = new int[capacity];
+        mMask = capacity - 1;
+    }
+
+    boolean offer(int bufferIndex, long presentationTimeUs, int flags)
+    {
+        long tail = mTail.get();
+        if (tail - mHead.get() > mMask)
+            return false;
+        int slot = (int) (tail & mMask);
+        mBufferIndices[slot] = bufferIndex;
+        mPresentationTimesUs[slot] = presentationTimeUs;
+        mFlags[slot] = flags;
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    boolean isEmpty()
+    {
+        return mHead.get() == mTail.get();
+    }
+
+    int size()
+    {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    int peekBufferIndex()
+    {
+        return mBufferIndices[(int) (mHead.get() & mMask)];
+    }
+
+    long peekPresentationTimeUs()
+    {
+        return mPresentationTimesUs[(int) (mHead.get() & mMask)];
+    }
+
+    int peekFlags()
+    {
+        return mFlags[(int) (mHead.get() & mMask)];
+    }
+
+    void pop()
+    {
+        mHead.lazySet(mHead.get() + 1);
+    }
+}
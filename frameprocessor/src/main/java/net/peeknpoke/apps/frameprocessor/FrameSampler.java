@@ -0,0 +1,104 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.media.MediaExtractor;
+
+/**
+ * Decides which frames of the stream are processed. On the input side it moves the extractor over
+ * whole groups of pictures that contain no selected frame, on the output side it picks the decoded
+ * frames that are handed to the rendering context. Only touched on the codec thread.
+ */
+class FrameSampler {
+    private final FrameProcessorOptions.SamplingMode mMode;
+    private final int mStep;
+    private final long mIntervalUs;
+    private final long mDurationUs;
+    private final SyncSampleIndex mSyncSampleIndex;
+    private long mInputTargetUs = 0;
+    private long mOutputTargetUs = 0;
+    private int mDecodedFrames = 0;
+    private boolean mExhausted = false;
+
+    FrameSampler(FrameProcessorOptions options, SyncSampleIndex syncSampleIndex, long durationUs)
+    {
+        mMode = options.getSamplingMode();
+        mStep = options.getSamplingStep();
+        mIntervalUs = options.getSamplingIntervalUs();
+        mSyncSampleIndex = syncSampleIndex;
+        mDurationUs = durationUs;
+    }
+
+    static boolean needsSyncSampleIndex(FrameProcessorOptions options)
+    {
+        return options.getSamplingMode() == FrameProcessorOptions.SamplingMode.KEY_FRAMES ||
+                options.getSamplingMode() == FrameProcessorOptions.SamplingMode.INTERVAL;
+    }
+
+    /**
+     * True once no further sample of the stream can be selected, the decoder can be sent end of stream.
+     */
+    boolean isExhausted()
+    {
+        return mExhausted;
+    }
+
+    /**
+     * Moves the extractor past the sample that was just queued, to the next sample worth decoding.
+     */
+    void advance(MediaExtractor extractor, long sampleTimeUs)
+    {
+        switch (mMode)
+        {
+            case KEY_FRAMES:
+                long nextSync = mSyncSampleIndex.nextSync(sampleTimeUs);
+                if (nextSync < 0)
+                    mExhausted = true;
+                else
+                    extractor.seekTo(nextSync, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                break;
+            case INTERVAL:
+                // With B-frames sample times are not monotonic, so this may pick a frame slightly after the target
+                if (sampleTimeUs >= mInputTargetUs)
+                {
+                    while (mInputTargetUs <= sampleTimeUs)
+                        mInputTargetUs += mIntervalUs;
+                    if (mDurationUs > 0 && mInputTargetUs > mDurationUs)
+                    {
+                        mExhausted = true;
+                        break;
+                    }
+                    long sync = mSyncSampleIndex.previousSync(mInputTargetUs);
+                    if (sync > sampleTimeUs)
+                    {
+                        // The next target lies in a later group of pictures, skip the rest of this one
+                        extractor.seekTo(sync, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                        break;
+                    }
+                }
+                extractor.advance();
+                break;
+            default:
+                extractor.advance();
+                break;
+        }
+    }
+
+    /**
+     * Returns whether the decoded frame with the given presentation time should be rendered.
+     */
+    boolean select(long presentationTimeUs)
+    {
+        switch (mMode)
+        {
+            case EVERY_NTH:
+                return mDecodedFrames++ % mStep == 0;
+            case INTERVAL:
+                if (presentationTimeUs < mOutputTargetUs)
+                    return false;
+                while (mOutputTargetUs <= presentationTimeUs)
+                    mOutputTargetUs += mIntervalUs;
+                return true;
+            default:
+                return true;
+        }
+    }
+}
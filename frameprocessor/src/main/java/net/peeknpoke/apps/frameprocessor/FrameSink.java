@@ -0,0 +1,19 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import java.io.IOException;
+
+/**
+ * Destination of the encoded frames of a job. A sink can be shared by the rendering contexts of all
+ * segments of a job, so {@link #write} is called concurrently from every encoder thread.
+ */
+interface FrameSink {
+    /**
+     * Encodes the slot and stores the result. The slot's buffer is positioned at the start.
+     */
+    void write(FrameSlot slot) throws IOException;
+
+    /**
+     * Called once by the owner of the job after every frame has been written.
+     */
+    void close();
+}
@@ -0,0 +1,70 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.graphics.Bitmap;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Pooled holder for the pixels of one frame on its way from the rendering thread to the encoders.
+ */
+class FrameSlot {
+    final ByteBuffer buffer;
+    // What the output reads: buffer, or the pages of an attached image
+    ByteBuffer data;
+    // The same pixels one int each, for the CPU filters
+    final IntBuffer pixels;
+    // Null when the encoder works on the buffer directly
+    final Bitmap bitmap;
+    int frameIndex;
+    long presentationTimeUs;
+    // Only set for the slots of a FrameDelivery
+    Frame frame;
+    // Rendered image read in place instead of copied into buffer, closed once the output is done
+    private Image mImage;
+
+    FrameSlot(int width, int height, boolean withBitmap)
+    {
+        buffer = ByteBuffer.allocateDirect(width*height*4);
+        buffer.order(ByteOrder.nativeOrder());
+        pixels = buffer.asIntBuffer();
+        data = buffer;
+        bitmap = withBitmap ? Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888) : null;
+    }
+
+    /**
+     * Lends the slot the first plane of a tightly packed RGBA image of the slot's size, until
+     * {@link #detachImage()}. The CPU filters do not see it, they only work on buffer.
+     */
+    void attachImage(Image image, int size)
+    {
+        mImage = image;
+        data = image.getPlanes()[0].getBuffer();
+        data.clear();
+        data.limit(size);
+    }
+
+    Image getImage()
+    {
+        return mImage;
+    }
+
+    /**
+     * Closes the attached image, if any, and goes back to reading buffer.
+     */
+    void detachImage()
+    {
+        if (mImage!=null)
+            mImage.close();
+        mImage = null;
+        data = buffer;
+    }
+
+    void recycle()
+    {
+        if (bitmap!=null)
+            bitmap.recycle();
+    }
+}
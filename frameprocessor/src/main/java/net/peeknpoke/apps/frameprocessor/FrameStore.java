@@ -0,0 +1,295 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content addressed files on disk with a size budget. Every entry is a file named after its 64 bit key,
+ * and once the entries grow past the budget the least recently used ones are deleted, except for those
+ * pinned by a job that is about to copy them. There is one store per folder in the process, shared by
+ * every job using it.
+ *
+ * The index file holds the magic, the version, the number of entries and the key and length of every
+ * entry from the least to the most recently used one, 12 bytes per entry. Entry files missing from the
+ * index, left by a process that died before saving it, are taken back as the least recently used ones.
+ */
+class FrameStore {
+    static final int MAGIC = 0x46435358;
+    static final int VERSION = 1;
+    static final String INDEX_NAME = "index";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String KEY_PADDING = "0000000000000000";
+    private static final Map<String, FrameStore> sStores = new HashMap<>();
+
+    private static class Entry {
+        final int length;
+        // Jobs that are going to copy the entry, it is not evicted before they are done
+        int pins;
+
+        Entry(int length)
+        {
+            this.length = length;
+        }
+    }
+
+    private final File mFolder;
+    // In access order, the least recently used entry first
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mMaxBytes;
+    private long mSize = 0;
+    private boolean mChanged = false;
+
+    private FrameStore(File folder, long maxBytes)
+    {
+        mFolder = folder;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * The store in the folder, loaded from its index on first use. A later call with another budget
+     * changes the budget of the store.
+     */
+    static FrameStore open(File folder, long maxBytes) throws IOException
+    {
+        synchronized (sStores)
+        {
+            FrameStore store = sStores.get(folder.getPath());
+            if (store==null)
+            {
+                if (!folder.isDirectory() && !folder.mkdirs())
+                    throw new IOException("Could not create "+folder);
+                store = new FrameStore(folder, maxBytes);
+                store.load();
+                sStores.put(folder.getPath(), store);
+            }
+            store.setMaxBytes(maxBytes);
+            return store;
+        }
+    }
+
+    synchronized void setMaxBytes(long maxBytes)
+    {
+        mMaxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * Total length of the entries.
+     */
+    synchronized long getSize()
+    {
+        return mSize;
+    }
+
+    synchronized boolean contains(long key)
+    {
+        return mEntries.containsKey(key);
+    }
+
+    /**
+     * Keeps the entry from being evicted until {@link #unpin}, and counts it as used.
+     *
+     * @return false when there is no such entry
+     */
+    synchronized boolean pin(long key)
+    {
+        Entry entry = mEntries.get(key);
+        if (entry==null)
+            return false;
+        entry.pins++;
+        return true;
+    }
+
+    synchronized void unpin(long key)
+    {
+        Entry entry = mEntries.get(key);
+        if (entry!=null && entry.pins > 0)
+            entry.pins--;
+        evict();
+    }
+
+    /**
+     * Copies a pinned entry into the destination file.
+     */
+    void copyTo(long key, File destination) throws IOException
+    {
+        copy(entryFile(key), destination);
+    }
+
+    /**
+     * Stores a copy of the source file under the key, unless the key is already stored or the file
+     * alone exceeds the budget. The copy is written under a temporary name first, so an entry file
+     * is always complete.
+     */
+    void put(long key, File source) throws IOException
+    {
+        long length = source.length();
+        synchronized (this)
+        {
+            if (length > mMaxBytes || length > Integer.MAX_VALUE || mEntries.containsKey(key))
+                return;
+        }
+
+        File temp = File.createTempFile(entryName(key), TEMP_SUFFIX, mFolder);
+        try {
+            copy(source, temp);
+            if (!temp.renameTo(entryFile(key)))
+                throw new IOException("Could not store "+entryName(key));
+        } finally {
+            temp.delete();
+        }
+
+        synchronized (this)
+        {
+            Entry entry = new Entry((int) length);
+            Entry previous = mEntries.put(key, entry);
+            if (previous!=null)
+            {
+                entry.pins = previous.pins;
+                mSize -= previous.length;
+            }
+            mSize += length;
+            mChanged = true;
+            evict();
+        }
+    }
+
+    /**
+     * Writes the index, under a temporary name first so that an interrupted save leaves the previous
+     * index in place.
+     */
+    synchronized void save() throws IOException
+    {
+        if (!mChanged)
+            return;
+        File index = new File(mFolder, INDEX_NAME);
+        File temp = new File(mFolder, INDEX_NAME + TEMP_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<Long, Entry> entry : mEntries.entrySet())
+            {
+                out.writeLong(entry.getKey());
+                out.writeInt(entry.getValue().length);
+            }
+        }
+        if (!temp.renameTo(index))
+        {
+            temp.delete();
+            throw new IOException("Could not replace "+index);
+        }
+        mChanged = false;
+    }
+
+    private void load()
+    {
+        LinkedHashMap<Long, Entry> indexed = new LinkedHashMap<>();
+        File index = new File(mFolder, INDEX_NAME);
+        if (index.isFile())
+        {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION)
+                {
+                    int count = in.readInt();
+                    for (int i = 0; i<count; i++)
+                    {
+                        long key = in.readLong();
+                        int length = in.readInt();
+                        // Entries deleted behind the store's back are dropped
+                        if (entryFile(key).length() == length)
+                            indexed.put(key, new Entry(length));
+                    }
+                }
+            } catch (IOException e) {
+                // The entry files are taken back below
+            }
+        }
+
+        File[] files = mFolder.listFiles();
+        if (files!=null)
+        {
+            for (File file : files)
+            {
+                String name = file.getName();
+                if (name.endsWith(TEMP_SUFFIX))
+                {
+                    // Left by a copy that never finished
+                    file.delete();
+                    continue;
+                }
+                long key;
+                try {
+                    key = parseKey(name);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (!indexed.containsKey(key) && file.length() <= Integer.MAX_VALUE)
+                {
+                    mEntries.put(key, new Entry((int) file.length()));
+                    mChanged = true;
+                }
+            }
+        }
+        mEntries.putAll(indexed);
+        for (Entry entry : mEntries.values())
+            mSize += entry.length;
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<Long, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mSize > mMaxBytes && iterator.hasNext())
+        {
+            Map.Entry<Long, Entry> eldest = iterator.next();
+            if (eldest.getValue().pins > 0)
+                continue;
+            entryFile(eldest.getKey()).delete();
+            mSize -= eldest.getValue().length;
+            iterator.remove();
+            mChanged = true;
+        }
+    }
+
+    private File entryFile(long key)
+    {
+        return new File(mFolder, entryName(key));
+    }
+
+    static String entryName(long key)
+    {
+        String hex = Long.toHexString(key);
+        return KEY_PADDING.substring(hex.length()) + hex;
+    }
+
+    static long parseKey(String name)
+    {
+        if (name.length() != KEY_PADDING.length())
+            throw new NumberFormatException("Not an entry: "+name);
+        // Long.parseLong does not take the upper half of the unsigned range
+        return Long.parseLong(name.substring(0, 8), 16) << 32 | Long.parseLong(name.substring(8), 16);
+    }
+
+    private static void copy(File source, File destination) throws IOException
+    {
+        try (FileInputStream in = new FileInputStream(source);
+             FileOutputStream out = new FileOutputStream(destination)) {
+            FileChannel input = in.getChannel();
+            long size = input.size();
+            long position = 0;
+            while (position < size)
+                position += input.transferTo(position, size - position, out.getChannel());
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Encode and write stage running off the rendering thread. Frames are handed over in pooled
+ * {@link FrameSlot}s through a bounded queue and compressed by a fixed number of encoder threads.
+ * When every slot is in use {@link #acquireSlot()} blocks, which pushes back on the decoder instead
+ * of dropping frames. What is done with the pixels is up to the {@link FrameSink}. Slots are allocated
+ * as they are first needed, up to the slot limit.
+ */
+class FrameWriter implements FrameOutput {
+    private static final String TAG = FrameWriter.class.getSimpleName();
+
+    // Only replaced while idle, the slot queues publish them to the workers
+    private FrameSink mSink;
+    private PipelineStats mStats;
+    private final BlockingQueue<FrameSlot> mFreeSlots;
+    private final BlockingQueue<FrameSlot> mPendingSlots;
+    private final Thread[] mWorkers;
+    private final Object mIdleLock = new Object();
+    private int mOutstanding = 0;
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mWithBitmaps;
+    private final int mEncoderThreads;
+    private final int mMaxSlots;
+    // Guarded by itself, like the slot limit
+    private final List<FrameSlot> mSlots;
+    private int mSlotLimit;
+
+    FrameWriter(FrameSink sink, PipelineStats stats, int width, int height, boolean withBitmaps, int encoderThreads,
+                int queueCapacity)
+    {
+        mSink = sink;
+        mStats = stats;
+        mWidth = width;
+        mHeight = height;
+        mWithBitmaps = withBitmaps;
+        mEncoderThreads = encoderThreads;
+
+        // Every worker can hold one slot on top of the ones waiting in the queue
+        mMaxSlots = queueCapacity + encoderThreads;
+        mSlotLimit = mMaxSlots;
+        mSlots = new ArrayList<>(mMaxSlots);
+        mFreeSlots = new ArrayBlockingQueue<>(mMaxSlots);
+        mPendingSlots = new ArrayBlockingQueue<>(mMaxSlots);
+
+        mWorkers = new Thread[encoderThreads];
+        for (int i = 0; i<encoderThreads; i++)
+        {
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    processSlots();
+                }
+            }, "FrameWriter-"+i);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * The output of the previous job when it is a writer with the slots and encoder threads a job with
+     * these settings needs, otherwise null.
+     */
+    static FrameWriter reusable(FrameOutput output, JobSettings settings)
+    {
+        FrameProcessorOptions options = settings.options;
+        if (!(output instanceof FrameWriter) || settings.frameSink==null ||
+                options.getOutputMode() == FrameProcessorOptions.OutputMode.CONSUMER)
+            return null;
+        FrameWriter writer = (FrameWriter) output;
+        boolean matches = settings.outputWidth == writer.mWidth && settings.outputHeight == writer.mHeight &&
+                options.getFrameEncoder().needsBitmap() == writer.mWithBitmaps &&
+                options.getEncoderThreads() == writer.mEncoderThreads &&
+                options.getWriteQueueCapacity() + options.getEncoderThreads() == writer.mMaxSlots;
+        return matches ? writer : null;
+    }
+
+    /**
+     * Writes the frames of the next job to another sink, keeping the slots and the encoder threads.
+     * Must only be called once every frame of the previous job has been written.
+     */
+    void reuse(FrameSink sink, PipelineStats stats)
+    {
+        mSink = sink;
+        mStats = stats;
+        setSlotLimit(mMaxSlots);
+    }
+
+    @Override
+    public FrameSlot acquireSlot() throws InterruptedException {
+        FrameSlot slot = mFreeSlots.poll();
+        if (slot!=null)
+            return slot;
+        synchronized (mSlots)
+        {
+            if (mSlots.size() < mSlotLimit)
+            {
+                slot = new FrameSlot(mWidth, mHeight, mWithBitmaps);
+                mSlots.add(slot);
+                return slot;
+            }
+        }
+        return mFreeSlots.take();
+    }
+
+    @Override
+    public int getSlotCount() {
+        return mMaxSlots;
+    }
+
+    @Override
+    public int getAllocatedSlotCount() {
+        synchronized (mSlots)
+        {
+            return mSlots.size();
+        }
+    }
+
+    @Override
+    public void setSlotLimit(int limit) {
+        synchronized (mSlots)
+        {
+            mSlotLimit = Math.max(1, Math.min(limit, mMaxSlots));
+            FrameSlot slot;
+            while (mSlots.size() > mSlotLimit && (slot = mFreeSlots.poll())!=null)
+                dropSlot(slot);
+        }
+    }
+
+    @Override
+    public void submit(FrameSlot slot) {
+        synchronized (mIdleLock)
+        {
+            mOutstanding++;
+        }
+        mPendingSlots.add(slot);
+        if (mStats!=null)
+            mStats.recordQueueDepth(PipelineStats.Queue.PENDING_WRITES, mPendingSlots.size());
+    }
+
+    /**
+     * Blocks until every submitted frame has been written.
+     */
+    @Override
+    public void awaitIdle() {
+        synchronized (mIdleLock)
+        {
+            try {
+                while (mOutstanding > 0)
+                    mIdleLock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        for (Thread worker : mWorkers)
+            worker.interrupt();
+        for (Thread worker : mWorkers)
+        {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (mSlots)
+        {
+            for (FrameSlot slot : mSlots)
+                slot.recycle();
+            mSlots.clear();
+        }
+    }
+
+    /**
+     * Puts a written slot back into the pool, or drops it when the pool is over its limit.
+     */
+    private void recycleSlot(FrameSlot slot)
+    {
+        synchronized (mSlots)
+        {
+            if (mSlots.size() > mSlotLimit)
+            {
+                dropSlot(slot);
+                return;
+            }
+        }
+        mFreeSlots.add(slot);
+    }
+
+    private void dropSlot(FrameSlot slot)
+    {
+        mSlots.remove(slot);
+        slot.recycle();
+    }
+
+    private void processSlots()
+    {
+        try {
+            while (!Thread.currentThread().isInterrupted())
+            {
+                FrameSlot slot = mPendingSlots.take();
+                try {
+                    slot.data.rewind();
+                    if (slot.bitmap!=null)
+                    {
+                        slot.bitmap.copyPixelsFromBuffer(slot.data);
+                        slot.data.rewind();
+                    }
+                    mSink.write(slot);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not write frame "+slot.frameIndex, e);
+                } finally {
+                    slot.detachImage();
+                    recycleSlot(slot);
+                    synchronized (mIdleLock)
+                    {
+                        mOutstanding--;
+                        mIdleLock.notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Released
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.graphics.PixelFormat;
+import android.hardware.HardwareBuffer;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+/**
+ * Readback without glReadPixels. The frame is rendered into the surface of an RGBA ImageReader and
+ * swapped, and the CPU reads the pages the GPU rendered into. Images arrive on a thread of their own,
+ * so the rendering thread can wait for them in {@link #drain()}, and the listener may keep an image
+ * open until its output is done with it.
+ */
+class ImageReadback implements ImageReader.OnImageAvailableListener {
+    private static final String TAG = ImageReadback.class.getSimpleName();
+
+    interface Listener {
+        /**
+         * Called on the readback thread. The listener owns the image and has to close it.
+         */
+        void onImageReady(Image image, int frameIndex, long presentationTimeUs);
+    }
+
+    private final ImageReader mReader;
+    private final HandlerThread mThread;
+    private final Listener mListener;
+    // Frames swapped into the reader and not yet handed over, oldest at mTail
+    private final int[] mFrameIndices;
+    private final long[] mTimestamps;
+    private int mHead = 0;
+    private int mTail = 0;
+    private int mPending = 0;
+
+    /**
+     * @param maxImages images the listener can keep open at once, plus one for the image being handed over
+     */
+    ImageReadback(int width, int height, int maxImages, Listener listener)
+    {
+        mListener = listener;
+        mFrameIndices = new int[maxImages + 1];
+        mTimestamps = new long[maxImages + 1];
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            mReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, maxImages,
+                    HardwareBuffer.USAGE_CPU_READ_OFTEN | HardwareBuffer.USAGE_GPU_COLOR_OUTPUT |
+                            HardwareBuffer.USAGE_GPU_SAMPLED_IMAGE);
+        else
+            mReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, maxImages);
+        mThread = new HandlerThread("ImageReadback");
+        mThread.start();
+        mReader.setOnImageAvailableListener(this, new Handler(mThread.getLooper()));
+    }
+
+    /**
+     * The window surface to render into.
+     */
+    Surface getSurface()
+    {
+        return mReader.getSurface();
+    }
+
+    /**
+     * Records the frame about to be swapped into the surface with the given timestamp. Blocks while as
+     * many frames are in flight as the reader can hold.
+     */
+    synchronized void frameQueued(int frameIndex, long timestampNs)
+    {
+        try {
+            while (mPending == mFrameIndices.length)
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        mFrameIndices[mHead] = frameIndex;
+        mTimestamps[mHead] = timestampNs;
+        mHead = (mHead + 1) % mFrameIndices.length;
+        mPending++;
+    }
+
+    /**
+     * Blocks until every queued frame has been handed over. Must not be called on the readback thread.
+     */
+    synchronized void drain()
+    {
+        try {
+            while (mPending > 0)
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the readback thread, also when the listener is blocked, and closes the reader together
+     * with every image still open. Call once the output the listener hands images to is released.
+     */
+    void release()
+    {
+        mThread.quitSafely();
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mReader.close();
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireNextImage();
+        if (image==null)
+            return;
+        int frameIndex;
+        long timestamp;
+        synchronized (this)
+        {
+            if (mPending == 0)
+            {
+                Log.e(TAG, "Image without a queued frame");
+                image.close();
+                return;
+            }
+            // Frames the reader dropped never arrive, the timestamp tells the next one that did
+            while (mPending > 1 && mTimestamps[mTail] != image.getTimestamp())
+                dequeue();
+            frameIndex = mFrameIndices[mTail];
+            timestamp = mTimestamps[mTail];
+        }
+        mListener.onImageReady(image, frameIndex, timestamp/1000);
+        synchronized (this)
+        {
+            // Only counted as handed over once the listener is done, drain() relies on it
+            dequeue();
+        }
+    }
+
+    private void dequeue()
+    {
+        mTail = (mTail + 1) % mFrameIndices.length;
+        mPending--;
+        notifyAll();
+    }
+}
@@ -0,0 +1,175 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Persistent progress of a resumable job. The checkpoint is the last frame up to which every frame has
+ * been written, together with its presentation time and the folder the outputs went to. Encoder threads
+ * finish frames out of order, so frames written past the checkpoint are held until the gap before them
+ * closes. The journal is saved every few frames by replacing its file, and deleted once the job is
+ * complete.
+ *
+ * The file holds the magic, the version, the job key, the checkpoint frame index and presentation time
+ * and the output folder.
+ */
+class JobJournal {
+    static final int MAGIC = 0x464A4E4C;
+    static final int VERSION = 1;
+    private static final long NOT_WRITTEN = Long.MIN_VALUE;
+
+    private final File mFile;
+    private final String mJobKey;
+    private final String mOutputFolder;
+    private final int mSaveInterval;
+    private int mCheckpointIndex = -1;
+    private long mCheckpointUs = NOT_WRITTEN;
+    private int mSavedIndex = -1;
+    // Presentation times of the frames written past the checkpoint, the one right after it at mHead
+    private long[] mWritten = new long[16];
+    private int mHead = 0;
+    private int mWrittenCount = 0;
+
+    private JobJournal(File file, String jobKey, String outputFolder, int saveInterval)
+    {
+        mFile = file;
+        mJobKey = jobKey;
+        mOutputFolder = outputFolder;
+        mSaveInterval = saveInterval;
+        Arrays.fill(mWritten, NOT_WRITTEN);
+    }
+
+    /**
+     * Opens the journal of the job in the folder. The checkpoint is kept when the file belongs to the
+     * same job and its outputs still are in the same folder, otherwise the job starts over.
+     *
+     * @param jobKey everything the outputs depend on: the source, the number of frames and the options
+     * @param saveInterval number of frames the checkpoint moves between two saves
+     */
+    static JobJournal open(File folder, String jobKey, String outputFolder, int saveInterval)
+    {
+        File file = new File(folder, Integer.toHexString(jobKey.hashCode()) + ".journal");
+        JobJournal journal = new JobJournal(file, jobKey, outputFolder, saveInterval);
+        if (!file.isFile())
+            return journal;
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(jobKey))
+                return journal;
+            int checkpointIndex = in.readInt();
+            long checkpointUs = in.readLong();
+            String savedFolder = in.readUTF();
+            if (savedFolder.equals(outputFolder) && new File(outputFolder).isDirectory())
+            {
+                journal.mCheckpointIndex = checkpointIndex;
+                journal.mCheckpointUs = checkpointUs;
+                journal.mSavedIndex = checkpointIndex;
+            }
+        } catch (IOException e) {
+            // A journal that cannot be read is as good as none
+        }
+        return journal;
+    }
+
+    /**
+     * Index of the last frame up to which every frame is written, -1 when none is.
+     */
+    synchronized int getCheckpointIndex()
+    {
+        return mCheckpointIndex;
+    }
+
+    /**
+     * Presentation time of the checkpoint frame, only valid when there is one.
+     */
+    synchronized long getCheckpointUs()
+    {
+        return mCheckpointUs;
+    }
+
+    /**
+     * Records a frame whose output is written and closed, or one that needs no output at all. Saves the
+     * journal when the checkpoint has moved far enough. May be called from any thread.
+     */
+    synchronized void frameWritten(int frameIndex, long presentationTimeUs) throws IOException
+    {
+        int offset = frameIndex - mCheckpointIndex - 1;
+        if (offset < 0)
+            return;
+        if (offset >= mWritten.length)
+            grow(offset + 1);
+        mWritten[(mHead + offset) % mWritten.length] = presentationTimeUs;
+        mWrittenCount++;
+
+        while (mWritten[mHead] != NOT_WRITTEN)
+        {
+            mCheckpointIndex++;
+            mCheckpointUs = mWritten[mHead];
+            mWritten[mHead] = NOT_WRITTEN;
+            mHead = (mHead + 1) % mWritten.length;
+            mWrittenCount--;
+        }
+        if (mCheckpointIndex - mSavedIndex >= mSaveInterval)
+            save();
+    }
+
+    /**
+     * Writes the current checkpoint, under a temporary name first so that an interrupted save leaves
+     * the previous journal in place.
+     */
+    synchronized void save() throws IOException
+    {
+        if (mCheckpointIndex == mSavedIndex)
+            return;
+        File folder = mFile.getParentFile();
+        if (folder!=null && !folder.isDirectory() && !folder.mkdirs())
+            throw new IOException("Could not create "+folder);
+        File temp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(file);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mJobKey);
+            out.writeInt(mCheckpointIndex);
+            out.writeLong(mCheckpointUs);
+            out.writeUTF(mOutputFolder);
+            out.flush();
+            file.getFD().sync();
+        }
+        if (!temp.renameTo(mFile))
+        {
+            temp.delete();
+            throw new IOException("Could not replace "+mFile);
+        }
+        mSavedIndex = mCheckpointIndex;
+    }
+
+    /**
+     * Called once every frame of the job has been handed to the outputs. Deletes the journal when
+     * every one of them was written, otherwise saves it so that a later run redoes the missing ones.
+     *
+     * @param lastFrameIndex index of the last frame handed to the outputs, -1 when there was none
+     */
+    synchronized void finish(int lastFrameIndex) throws IOException
+    {
+        if (mCheckpointIndex == lastFrameIndex)
+            mFile.delete();
+        else
+            save();
+    }
+
+    private void grow(int capacity)
+    {
+        long[] written = new long[Math.max(capacity, mWritten.length*2)];
+        Arrays.fill(written, NOT_WRITTEN);
+        for (int i = 0; i<mWritten.length; i++)
+            written[i] = mWritten[(mHead + i) % mWritten.length];
+        mWritten = written;
+        mHead = 0;
+    }
+}
@@ -0,0 +1,217 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.content.Context;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Everything a rendering context needs to know about the job it is processing. A rendering context
+ * can be reconfigured with new settings between jobs without tearing down its OpenGL state.
+ */
+class JobSettings {
+    // Size of the decoded frames
+    final int sourceWidth;
+    final int sourceHeight;
+    final int outputWidth;
+    final int outputHeight;
+    final int firstFrameIndex;
+    final int maxFrames;
+    final String appName;
+    final FrameProcessorOptions options;
+    // Fractions of the source frame, null for the whole frame
+    final RectF crop;
+    // The same region in source pixels, the whole frame without cropping
+    final Rect sourceRect;
+    // Only set when the frames are encoded into a video
+    final VideoEncoder videoEncoder;
+    // Only set when the frames are read back, shared by all segments of a job
+    final FrameSink frameSink;
+    // Only set when instrumentation is enabled, shared by all segments of a job
+    final PipelineStats stats;
+    // Only set for resumable jobs
+    final JobJournal journal;
+    // Only set when the frame pools are sized to a memory budget, shared by all segments of a job
+    final MemoryGovernor memoryGovernor;
+
+    private JobSettings(int sourceWidth, int sourceHeight, int outputWidth, int outputHeight, int firstFrameIndex,
+                        int maxFrames, String appName, FrameProcessorOptions options, RectF crop, Rect sourceRect,
+                        VideoEncoder videoEncoder, FrameSink frameSink, PipelineStats stats, JobJournal journal,
+                        MemoryGovernor memoryGovernor)
+    {
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.outputWidth = outputWidth;
+        this.outputHeight = outputHeight;
+        this.firstFrameIndex = firstFrameIndex;
+        this.maxFrames = maxFrames;
+        this.appName = appName;
+        this.options = options;
+        this.crop = crop;
+        this.sourceRect = sourceRect;
+        this.videoEncoder = videoEncoder;
+        this.frameSink = frameSink;
+        this.stats = stats;
+        this.journal = journal;
+        this.memoryGovernor = memoryGovernor;
+    }
+
+    /**
+     * @param sharedWith settings of another segment of the same job whose sink and statistics are
+     *                   shared, or null to create them. The caller closes the sink once the whole job
+     *                   is done
+     * @param journal journal the written frames are recorded in, null when the job is not resumable
+     * @param cache cache the written frames are kept in, null when they are not
+     * @param memoryGovernor governor the frame pools are registered with, null when they are not
+     */
+    static JobSettings create(Context context, MediaFormat mediaFormat, SegmentPlanner.Segment segment,
+                              String appName, FrameProcessorOptions options, JobSettings sharedWith,
+                              JobJournal journal, FrameCache cache, MemoryGovernor memoryGovernor)
+            throws IOException
+    {
+        int width = mediaFormat.getInteger(MediaFormat.KEY_WIDTH);
+        int height = mediaFormat.getInteger(MediaFormat.KEY_HEIGHT);
+//        int rotation = mediaFormat.getInteger(MediaFormat.KEY_ROTATION);
+//        if (rotation==90 || rotation==270)
+//        {
+//            int temp = width;
+//            width = height;
+//            height = temp;
+//        }
+
+        Rect cropRect = cropRect(width, height, options);
+        Point outputSize = outputSize(cropRect, options);
+        int outputWidth = outputSize.x;
+        int outputHeight = outputSize.y;
+
+        RectF crop = null;
+        if (options.getCropRect()!=null)
+            crop = new RectF((float) cropRect.left/width, (float) cropRect.top/height,
+                    (float) cropRect.right/width, (float) cropRect.bottom/height);
+
+        if (options.getDecodeOutput() != FrameProcessorOptions.DecodeOutput.SURFACE)
+            checkCpuDecodeOutput(options, cropRect, outputWidth, outputHeight);
+        else if (options.isYuvOutput())
+            throw new IllegalArgumentException("YUV output needs a decode output other than SURFACE");
+
+        PipelineStats stats = null;
+        if (sharedWith!=null)
+            stats = sharedWith.stats;
+        else if (options.isInstrumentationEnabled())
+            stats = new PipelineStats(options.getStatsSnapshotInterval());
+
+        VideoEncoder videoEncoder = null;
+        FrameSink frameSink = null;
+        if (options.getOutputMode() == FrameProcessorOptions.OutputMode.VIDEO)
+            videoEncoder = createVideoEncoder(mediaFormat, outputWidth, outputHeight, appName, options);
+        else if (options.getOutputMode() == FrameProcessorOptions.OutputMode.CONSUMER)
+        {
+            // Every rendering context delivers its frames to the consumer itself
+            if (options.getFrameConsumer()==null)
+                throw new IllegalArgumentException("No frame consumer set");
+        }
+        else if (sharedWith!=null)
+            frameSink = sharedWith.frameSink;
+        else
+            frameSink = createFrameSink(context, outputWidth, outputHeight, segment.maxFrames, appName, options,
+                    stats, journal, cache);
+
+        // Scaling and cropping happen on the GPU, everything after the draw is sized to the output
+        return new JobSettings(width, height, outputWidth, outputHeight, segment.firstFrameIndex, segment.maxFrames,
+                appName, options, crop, cropRect, videoEncoder, frameSink, stats, journal, memoryGovernor);
+    }
+
+    /**
+     * Size of the frames the job renders and writes.
+     */
+    static Point outputSize(MediaFormat mediaFormat, FrameProcessorOptions options)
+    {
+        return outputSize(cropRect(mediaFormat.getInteger(MediaFormat.KEY_WIDTH),
+                mediaFormat.getInteger(MediaFormat.KEY_HEIGHT), options), options);
+    }
+
+    private static Rect cropRect(int width, int height, FrameProcessorOptions options)
+    {
+        Rect cropRect = new Rect(0, 0, width, height);
+        if (options.getCropRect()!=null && !cropRect.intersect(options.getCropRect()))
+            throw new IllegalArgumentException("Crop rectangle outside of the frame");
+        return cropRect;
+    }
+
+    private static Point outputSize(Rect cropRect, FrameProcessorOptions options)
+    {
+        int outputWidth = options.getOutputWidth();
+        int outputHeight = options.getOutputHeight();
+        if (outputWidth==0 && outputHeight==0)
+        {
+            outputWidth = cropRect.width();
+            outputHeight = cropRect.height();
+        }
+        else if (outputWidth==0)
+            outputWidth = Math.max(1, Math.round((float) outputHeight*cropRect.width()/cropRect.height()));
+        else if (outputHeight==0)
+            outputHeight = Math.max(1, Math.round((float) outputWidth*cropRect.height()/cropRect.width()));
+        if (options.getOutputMode() == FrameProcessorOptions.OutputMode.VIDEO)
+        {
+            // Most encoders only accept even dimensions, the frames are rendered at the encoder's size
+            outputWidth = Math.max(2, outputWidth & ~1);
+            outputHeight = Math.max(2, outputHeight & ~1);
+        }
+        return new Point(outputWidth, outputHeight);
+    }
+
+    /**
+     * Frames that skip OpenGL can be cropped and filtered on the CPU, everything else needs the GPU.
+     */
+    private static void checkCpuDecodeOutput(FrameProcessorOptions options, Rect cropRect, int outputWidth,
+                                             int outputHeight)
+    {
+        if (!CpuFilterEngine.supports(options.getFilterGraph(), 0))
+            throw new IllegalArgumentException("Decoding without OpenGL needs a CPU kernel for every filter stage");
+        if (options.getOutputMode() == FrameProcessorOptions.OutputMode.VIDEO)
+            throw new IllegalArgumentException("Video output needs OpenGL");
+        if (outputWidth != cropRect.width() || outputHeight != cropRect.height())
+            throw new IllegalArgumentException("Decoding without OpenGL cannot scale the frames");
+        if (options.isYuvOutput() && options.getOutputMode() != FrameProcessorOptions.OutputMode.CONSUMER)
+            throw new IllegalArgumentException("YUV output needs the CONSUMER output mode");
+        if (options.isYuvOutput() && !options.getFilterGraph().isIdentity())
+            throw new IllegalArgumentException("YUV output cannot be filtered");
+    }
+
+    private static FrameSink createFrameSink(Context context, int width, int height, int maxFrames, String appName,
+                                             FrameProcessorOptions options, PipelineStats stats, JobJournal journal,
+                                             FrameCache cache) throws IOException
+    {
+        FrameEncoder encoder = options.getFrameEncoder();
+        if (options.getOutputMode() != FrameProcessorOptions.OutputMode.ARCHIVE)
+            return new FileFrameSink(appName, encoder, options.isMediaPublishingEnabled() ?
+                    new MediaPublisher(context, options.getMediaPublishBatchSize()) : null, stats, journal, cache);
+
+        File folder = FileOperations.getAppMediaFolder(appName);
+        if (folder==null)
+            throw new IOException("Media folder not available");
+        File dataFile = FileOperations.createMediaFile(folder, "output", ".frames");
+        // Room for the first frames at one byte per pixel, more than most compressed frames need
+        long frameSize = encoder.needsBitmap() ? (long) width*height : (long) width*height*4;
+        return new FrameArchiveWriter(dataFile, encoder, width, height,
+                frameSize*Math.min(Math.max(maxFrames, 1), 32), stats);
+    }
+
+    private static VideoEncoder createVideoEncoder(MediaFormat sourceFormat, int width, int height, String appName,
+                                                   FrameProcessorOptions options) throws IOException
+    {
+        File folder = FileOperations.getAppMediaFolder(appName);
+        if (folder==null)
+            throw new IOException("Media folder not available");
+        File outputFile = FileOperations.createMediaFile(folder, "output", ".mp4");
+
+        int frameRate = sourceFormat.containsKey(MediaFormat.KEY_FRAME_RATE) ?
+                sourceFormat.getInteger(MediaFormat.KEY_FRAME_RATE) : 0;
+        int bitRate = options.getVideoBitRate() > 0 ? options.getVideoBitRate() : width*height*4;
+        return new VideoEncoder(outputFile, options.getVideoMimeType(), width, height, frameRate, bitRate);
+    }
+}
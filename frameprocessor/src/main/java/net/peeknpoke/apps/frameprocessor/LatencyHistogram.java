@@ -0,0 +1,112 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size histogram with log-linear buckets in the style of HdrHistogram: values below 32 are
+ * counted exactly, above that every power of two is split into 16 buckets, so any recorded value is
+ * known within about 6% over the whole long range. Recording is lock free, allocation free and safe
+ * from any thread.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int LINEAR_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_BUCKETS = LINEAR_BUCKETS/2;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS)*HALF_BUCKETS;
+
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    LatencyHistogram()
+    {
+        mCounts = new AtomicLongArray(BUCKET_COUNT);
+    }
+
+    private LatencyHistogram(LatencyHistogram source)
+    {
+        mCounts = new AtomicLongArray(BUCKET_COUNT);
+        for (int i = 0; i<BUCKET_COUNT; i++)
+            mCounts.set(i, source.mCounts.get(i));
+        mTotalCount.set(source.mTotalCount.get());
+        mSum.set(source.mSum.get());
+        mMax.set(source.mMax.get());
+    }
+
+    void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+        mCounts.incrementAndGet(bucketIndex(value));
+        mTotalCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value))
+            max = mMax.get();
+    }
+
+    /**
+     * Copy that no longer changes. Values recorded while copying may or may not be included.
+     */
+    LatencyHistogram copy()
+    {
+        return new LatencyHistogram(this);
+    }
+
+    public long getCount()
+    {
+        return mTotalCount.get();
+    }
+
+    public long getMax()
+    {
+        return mMax.get();
+    }
+
+    public double getMean()
+    {
+        long count = mTotalCount.get();
+        return count==0 ? 0 : (double) mSum.get()/count;
+    }
+
+    /**
+     * Highest value of the bucket holding the given percentile, so never below the real value.
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long count = mTotalCount.get();
+        if (count==0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0)/100.0*count));
+        long seen = 0;
+        for (int i = 0; i<BUCKET_COUNT; i++)
+        {
+            seen += mCounts.get(i);
+            if (seen >= rank)
+                return Math.min(bucketUpperBound(i), mMax.get());
+        }
+        return mMax.get();
+    }
+
+    private static int bucketIndex(long value)
+    {
+        if (value < LINEAR_BUCKETS)
+            return (int) value;
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - (SUB_BUCKET_BITS - 1);
+        int subBucket = (int) (value >>> shift);
+        return LINEAR_BUCKETS + (msb - SUB_BUCKET_BITS)*HALF_BUCKETS + (subBucket - HALF_BUCKETS);
+    }
+
+    private static long bucketUpperBound(int index)
+    {
+        if (index < LINEAR_BUCKETS)
+            return index;
+        int bucket = (index - LINEAR_BUCKETS)/HALF_BUCKETS;
+        int subBucket = (index - LINEAR_BUCKETS)%HALF_BUCKETS + HALF_BUCKETS;
+        int shift = bucket + 1;
+        return ((long) (subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,132 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import java.io.File;
+import java.util.Calendar;
+
+/**
+ * Builds the timestamped file names of {@link FileOperations#createMediaFile} into a reused char
+ * buffer, without a SimpleDateFormat, a Date or string concatenation per file. The timestamp is only
+ * formatted again when the second changes. Not thread safe, every encoder thread has its own.
+ */
+class MediaFileNamer {
+    // yyyyMMdd_HHmmss
+    private static final int TIMESTAMP_LENGTH = 15;
+    // Sign and digits of the largest int
+    private static final int MAX_INT_LENGTH = 11;
+
+    private final Calendar mCalendar = Calendar.getInstance();
+    private final int mPrefixLength;
+    private char[] mChars;
+    private long mTimestampSecond = Long.MIN_VALUE;
+
+    MediaFileNamer(File directory)
+    {
+        String prefix = directory.getPath() + File.separator;
+        mPrefixLength = prefix.length();
+        mChars = new char[mPrefixLength + TIMESTAMP_LENGTH + 64];
+        prefix.getChars(0, mPrefixLength, mChars, 0);
+        sanitize(0, mPrefixLength);
+    }
+
+    /**
+     * Writes directory/yyyyMMdd_HHmmss_nameIndexExtension into {@link #getChars()}.
+     *
+     * @return length of the path
+     */
+    int format(long timeMillis, String name, int index, String extension)
+    {
+        long second = timeMillis/1000;
+        if (second != mTimestampSecond)
+        {
+            formatTimestamp(timeMillis);
+            mTimestampSecond = second;
+        }
+
+        int position = mPrefixLength + TIMESTAMP_LENGTH;
+        int length = position + 1 + name.length() + MAX_INT_LENGTH + extension.length();
+        if (length > mChars.length)
+        {
+            char[] chars = new char[length];
+            System.arraycopy(mChars, 0, chars, 0, position);
+            mChars = chars;
+        }
+        mChars[position++] = '_';
+        position = putString(name, position);
+        position = putInt(index, position);
+        return putString(extension, position);
+    }
+
+    char[] getChars()
+    {
+        return mChars;
+    }
+
+    File createFile(long timeMillis, String name, int index, String extension)
+    {
+        int length = format(timeMillis, name, index, extension);
+        return new File(new String(mChars, 0, length));
+    }
+
+    private void formatTimestamp(long timeMillis)
+    {
+        mCalendar.setTimeInMillis(timeMillis);
+        int position = mPrefixLength;
+        position = putDigits(mCalendar.get(Calendar.YEAR), 4, position);
+        position = putDigits(mCalendar.get(Calendar.MONTH) + 1, 2, position);
+        position = putDigits(mCalendar.get(Calendar.DAY_OF_MONTH), 2, position);
+        mChars[position++] = '_';
+        position = putDigits(mCalendar.get(Calendar.HOUR_OF_DAY), 2, position);
+        position = putDigits(mCalendar.get(Calendar.MINUTE), 2, position);
+        putDigits(mCalendar.get(Calendar.SECOND), 2, position);
+    }
+
+    private int putDigits(int value, int count, int position)
+    {
+        for (int i = count - 1; i >= 0; i--)
+        {
+            mChars[position + i] = (char) ('0' + value%10);
+            value /= 10;
+        }
+        return position + count;
+    }
+
+    private int putInt(int value, int position)
+    {
+        if (value < 0)
+        {
+            mChars[position++] = '-';
+            // Negating Integer.MIN_VALUE overflows, the digits are taken from the negative value instead
+            int digits = 1;
+            for (int rest = value/10; rest != 0; rest /= 10)
+                digits++;
+            for (int i = digits - 1; i >= 0; i--)
+            {
+                mChars[position + i] = (char) ('0' - value%10);
+                value /= 10;
+            }
+            return position + digits;
+        }
+        int digits = 1;
+        for (int rest = value/10; rest != 0; rest /= 10)
+            digits++;
+        return putDigits(value, digits, position);
+    }
+
+    private int putString(String value, int position)
+    {
+        int length = value.length();
+        value.getChars(0, length, mChars, position);
+        sanitize(position, position + length);
+        return position + length;
+    }
+
+    private void sanitize(int start, int end)
+    {
+        // Same replacements createMediaFile makes
+        for (int i = start; i<end; i++)
+        {
+            if (mChars[i] == ' ' || mChars[i] == '\'')
+                mChars[i] = '_';
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.content.Context;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Collects the files written by a job and registers them with the media scanner in bulk, with one
+ * scan request per batch instead of one broadcast per file. The scan itself runs in the media
+ * provider, {@link #add(File)} only queues the path.
+ */
+class MediaPublisher {
+    private final Context mContext;
+    private final int mBatchSize;
+    private final ArrayList<String> mPaths = new ArrayList<>();
+
+    /**
+     * @param batchSize number of files per scan request, 0 scans everything at once when flushed
+     */
+    MediaPublisher(Context context, int batchSize)
+    {
+        mContext = context;
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Thread safe, called from the encoder threads.
+     */
+    void add(File file)
+    {
+        String[] batch = null;
+        synchronized (mPaths)
+        {
+            mPaths.add(file.getPath());
+            if (mBatchSize > 0 && mPaths.size() >= mBatchSize)
+                batch = takePaths();
+        }
+        if (batch!=null)
+            publish(batch);
+    }
+
+    /**
+     * Publishes everything not published yet, called at the end of the job.
+     */
+    void flush()
+    {
+        String[] batch;
+        synchronized (mPaths)
+        {
+            batch = takePaths();
+        }
+        if (batch.length > 0)
+            publish(batch);
+    }
+
+    private String[] takePaths()
+    {
+        String[] paths = mPaths.toArray(new String[0]);
+        mPaths.clear();
+        return paths;
+    }
+
+    private void publish(String[] paths)
+    {
+        FileOperations.scanMediaFiles(mContext, paths);
+    }
+}
@@ -0,0 +1,114 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import java.util.Locale;
+
+/**
+ * A decision of the memory governor: how many frame slots every output of the job may hold, and the
+ * memory figures it was taken from. Sizes are in bytes.
+ */
+public class MemoryBudget {
+    private final int mSlotsPerOutput;
+    private final int mOutputCount;
+    private final long mSlotHeapBytes;
+    private final long mSlotNativeBytes;
+    private final long mHeapLimitBytes;
+    private final long mHeapUsedBytes;
+    private final long mNativeHeapBytes;
+    private final long mAvailableBytes;
+    private final boolean mLowMemory;
+
+    MemoryBudget(int slotsPerOutput, int outputCount, long slotHeapBytes, long slotNativeBytes, long heapLimitBytes,
+                 long heapUsedBytes, long nativeHeapBytes, long availableBytes, boolean lowMemory)
+    {
+        mSlotsPerOutput = slotsPerOutput;
+        mOutputCount = outputCount;
+        mSlotHeapBytes = slotHeapBytes;
+        mSlotNativeBytes = slotNativeBytes;
+        mHeapLimitBytes = heapLimitBytes;
+        mHeapUsedBytes = heapUsedBytes;
+        mNativeHeapBytes = nativeHeapBytes;
+        mAvailableBytes = availableBytes;
+        mLowMemory = lowMemory;
+    }
+
+    /**
+     * Frames every output, i.e. every segment decoded at the same time, may hold at once.
+     */
+    public int getSlotsPerOutput()
+    {
+        return mSlotsPerOutput;
+    }
+
+    /**
+     * Outputs the budget is shared by, the number of parallel segments when the job starts.
+     */
+    public int getOutputCount()
+    {
+        return mOutputCount;
+    }
+
+    /**
+     * Java heap taken by one frame slot, which includes direct buffers on Android.
+     */
+    public long getSlotHeapBytes()
+    {
+        return mSlotHeapBytes;
+    }
+
+    /**
+     * Native memory taken by one frame slot: its bitmap from Android 8.0 on and the rendered image it
+     * can hold.
+     */
+    public long getSlotNativeBytes()
+    {
+        return mSlotNativeBytes;
+    }
+
+    /**
+     * The smaller of the memory class and the heap limit of the runtime.
+     */
+    public long getHeapLimitBytes()
+    {
+        return mHeapLimitBytes;
+    }
+
+    public long getHeapUsedBytes()
+    {
+        return mHeapUsedBytes;
+    }
+
+    public long getNativeHeapBytes()
+    {
+        return mNativeHeapBytes;
+    }
+
+    /**
+     * Memory the system has left before it starts killing processes.
+     */
+    public long getAvailableBytes()
+    {
+        return mAvailableBytes;
+    }
+
+    /**
+     * The system reported low memory or trimmed the app, every output got the minimum.
+     */
+    public boolean isLowMemory()
+    {
+        return mLowMemory;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d frame slots for each of %d outputs (%.1f MB heap, %.1f MB native " +
+                        "each), heap %.1f of %.1f MB, native heap %.1f MB, %.1f MB available%s",
+                mSlotsPerOutput, mOutputCount, megabytes(mSlotHeapBytes), megabytes(mSlotNativeBytes),
+                megabytes(mHeapUsedBytes), megabytes(mHeapLimitBytes), megabytes(mNativeHeapBytes),
+                megabytes(mAvailableBytes), mLowMemory ? ", low memory" : "");
+    }
+
+    private static double megabytes(long bytes)
+    {
+        return bytes/(1024.0*1024.0);
+    }
+}
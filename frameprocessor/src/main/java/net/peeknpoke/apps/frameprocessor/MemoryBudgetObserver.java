@@ -0,0 +1,12 @@
+package net.peeknpoke.apps.frameprocessor;
+
+/**
+ * Receives the memory budget of a job's frame buffers when the memory governor is enabled in
+ * {@link FrameProcessorOptions}. Called from the governor's thread.
+ */
+public interface MemoryBudgetObserver {
+    /**
+     * Called with the first budget of the job and whenever the number of frame slots changes.
+     */
+    void budgetChanged(MemoryBudget budget);
+}
@@ -0,0 +1,266 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sizes the frame pools of a job to the memory the app can spend on them. The heap budget is a share of
+ * what is left below the app's memory class, the native budget a share of what the system has left
+ * before it starts killing processes, and the memory the pools already hold counts as free. Every
+ * output gets the same number of slots, at least one, and they are checked again every half second
+ * and right away when the app is asked to trim its memory. Pools only shrink as their frames come
+ * back, so a lower budget never blocks or drops a frame.
+ */
+class MemoryGovernor implements ComponentCallbacks2 {
+    private static final String TAG = MemoryGovernor.class.getSimpleName();
+    // The rest of the heap is left to the app and to the garbage collector
+    static final double HEAP_SHARE = 0.5;
+    static final double NATIVE_SHARE = 0.25;
+    // A pipeline with fewer slots cannot encode one frame while reading back the next
+    static final int PIPELINE_SLOTS = 2;
+    private static final long CHECK_INTERVAL_MS = 500;
+
+    interface Listener {
+        void budgetChanged(MemoryBudget budget);
+    }
+
+    private final Context mContext;
+    private final ActivityManager mActivityManager;
+    private final ActivityManager.MemoryInfo mMemoryInfo = new ActivityManager.MemoryInfo();
+    private final long mHeapLimit;
+    private final long mSlotHeapBytes;
+    private final long mSlotNativeBytes;
+    private final int mMaxSlots;
+    private final List<FrameOutput> mOutputs = new ArrayList<>();
+    private final Listener mListener;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private int mSlots;
+    private int mOutputCount = 1;
+    private volatile boolean mTrimmed = false;
+    private volatile MemoryBudget mBudget;
+
+    private final Runnable mCheck = new Runnable() {
+        @Override
+        public void run() {
+            check();
+            mHandler.postDelayed(this, CHECK_INTERVAL_MS);
+        }
+    };
+
+    private MemoryGovernor(Context context, long slotHeapBytes, long slotNativeBytes, int maxSlots, Listener listener)
+    {
+        mContext = context.getApplicationContext();
+        mActivityManager = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        mHeapLimit = Math.min(mActivityManager.getMemoryClass()*1024L*1024L, Runtime.getRuntime().maxMemory());
+        mSlotHeapBytes = slotHeapBytes;
+        mSlotNativeBytes = slotNativeBytes;
+        mMaxSlots = maxSlots;
+        mSlots = maxSlots;
+        mListener = listener;
+    }
+
+    /**
+     * The governor for a job writing frames of the given output size, or null when the job does not
+     * read any frames back.
+     */
+    static MemoryGovernor create(Context context, FrameProcessorOptions options, int width, int height,
+                                 Listener listener)
+    {
+        FrameProcessorOptions.OutputMode outputMode = options.getOutputMode();
+        if (outputMode == FrameProcessorOptions.OutputMode.VIDEO)
+            return null;
+        // Direct buffers are allocated on the Java heap, bitmap pixels too before Android 8.0
+        long frameBytes = (long) width*height*4;
+        boolean bitmaps = outputMode != FrameProcessorOptions.OutputMode.CONSUMER &&
+                options.getFrameEncoder().needsBitmap();
+        boolean nativeBitmaps = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+        boolean images = options.getReadbackMode() == FrameProcessorOptions.ReadbackMode.IMAGE_READER &&
+                options.getDecodeOutput() == FrameProcessorOptions.DecodeOutput.SURFACE &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+        long slotHeapBytes = frameBytes + (bitmaps && !nativeBitmaps ? frameBytes : 0);
+        long slotNativeBytes = (bitmaps && nativeBitmaps ? frameBytes : 0) + (images ? frameBytes : 0);
+        int maxSlots = outputMode == FrameProcessorOptions.OutputMode.CONSUMER ? options.getConsumerFrameCount() :
+                options.getWriteQueueCapacity() + options.getEncoderThreads();
+        return new MemoryGovernor(context, slotHeapBytes, slotNativeBytes, maxSlots, listener);
+    }
+
+    /**
+     * Decides how many of the requested pipelines the budget allows, each with at least
+     * {@link #PIPELINE_SLOTS} slots, and how many slots each of them starts with. Called before the
+     * pipelines are created.
+     */
+    int planPipelines(int requested)
+    {
+        long slots = affordableSlots(0);
+        int pipelines = (int) Math.max(1, Math.min(requested, slots/PIPELINE_SLOTS));
+        if (pipelines < requested)
+            Log.w(TAG, "Memory for "+pipelines+" of "+requested+" parallel segments");
+        mOutputCount = pipelines;
+        mSlots = slotsPerOutput(slots, pipelines, mMaxSlots);
+        return pipelines;
+    }
+
+    /**
+     * Starts checking the budget and reports the first one.
+     */
+    void start()
+    {
+        mThread = new HandlerThread("MemoryGovernor");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mContext.registerComponentCallbacks(this);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                report(mMemoryInfo.lowMemory);
+                mHandler.postDelayed(mCheck, CHECK_INTERVAL_MS);
+            }
+        });
+    }
+
+    MemoryBudget getBudget()
+    {
+        return mBudget;
+    }
+
+    /**
+     * Puts the output of a rendering context under the budget until {@link #unregister}.
+     */
+    void register(FrameOutput output)
+    {
+        synchronized (mOutputs)
+        {
+            mOutputs.add(output);
+            output.setSlotLimit(mSlots);
+        }
+    }
+
+    void unregister(FrameOutput output)
+    {
+        synchronized (mOutputs)
+        {
+            mOutputs.remove(output);
+        }
+    }
+
+    void release()
+    {
+        if (mThread==null)
+            return;
+        mContext.unregisterComponentCallbacks(this);
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quitSafely();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        // Only the levels sent while the app is running, the others are about a cached process
+        if (level >= TRIM_MEMORY_RUNNING_LOW && level < TRIM_MEMORY_UI_HIDDEN && mHandler!=null)
+        {
+            mTrimmed = true;
+            mHandler.removeCallbacks(mCheck);
+            mHandler.post(mCheck);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_RUNNING_CRITICAL);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration configuration) {
+    }
+
+    /**
+     * Called on the governor's thread.
+     */
+    private void check()
+    {
+        int slots;
+        boolean lowMemory;
+        synchronized (mOutputs)
+        {
+            int allocated = 0;
+            for (FrameOutput output : mOutputs)
+                allocated += output.getAllocatedSlotCount();
+            long affordable = affordableSlots(allocated);
+            lowMemory = mMemoryInfo.lowMemory || mTrimmed;
+            mTrimmed = false;
+            // Outputs come and go between segments, the count the job started with stays until then
+            int outputCount = mOutputs.isEmpty() ? mOutputCount : mOutputs.size();
+            slots = lowMemory ? 1 : slotsPerOutput(affordable, outputCount, mMaxSlots);
+            if (slots == mSlots)
+                return;
+            mSlots = slots;
+            mOutputCount = outputCount;
+            for (FrameOutput output : mOutputs)
+                output.setSlotLimit(slots);
+        }
+        report(lowMemory);
+    }
+
+    private void report(boolean lowMemory)
+    {
+        Runtime runtime = Runtime.getRuntime();
+        MemoryBudget budget = new MemoryBudget(mSlots, mOutputCount, mSlotHeapBytes, mSlotNativeBytes, mHeapLimit,
+                runtime.totalMemory() - runtime.freeMemory(), Debug.getNativeHeapAllocatedSize(),
+                availableBytes(), lowMemory);
+        mBudget = budget;
+        Log.d(TAG, budget.toString());
+        if (mListener!=null)
+            mListener.budgetChanged(budget);
+    }
+
+    /**
+     * Slots the budget has room for in total, counting the allocated ones as free.
+     */
+    private long affordableSlots(int allocatedSlots)
+    {
+        Runtime runtime = Runtime.getRuntime();
+        return affordableSlots(mHeapLimit, runtime.totalMemory() - runtime.freeMemory(), availableBytes(),
+                mSlotHeapBytes, mSlotNativeBytes, allocatedSlots);
+    }
+
+    private long availableBytes()
+    {
+        mActivityManager.getMemoryInfo(mMemoryInfo);
+        return Math.max(0, mMemoryInfo.availMem - mMemoryInfo.threshold);
+    }
+
+    static long affordableSlots(long heapLimit, long heapUsed, long nativeAvailable, long slotHeapBytes,
+                                long slotNativeBytes, int allocatedSlots)
+    {
+        long heapFree = Math.max(0, heapLimit - heapUsed + allocatedSlots*slotHeapBytes);
+        long slots = (long) (heapFree*HEAP_SHARE)/Math.max(1, slotHeapBytes);
+        if (slotNativeBytes > 0)
+        {
+            long nativeFree = nativeAvailable + allocatedSlots*slotNativeBytes;
+            slots = Math.min(slots, (long) (nativeFree*NATIVE_SHARE)/slotNativeBytes);
+        }
+        return slots;
+    }
+
+    static int slotsPerOutput(long affordableSlots, int outputCount, int maxSlots)
+    {
+        long slots = affordableSlots/Math.max(1, outputCount);
+        return (int) Math.max(1, Math.min(slots, maxSlots));
+    }
+}
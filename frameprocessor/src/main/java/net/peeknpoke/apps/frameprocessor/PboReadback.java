@@ -0,0 +1,134 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Asynchronous pixel readback through a ring of GL_PIXEL_PACK_BUFFER objects.
+ * glReadPixels into a bound PBO returns immediately, the copy is tracked by a fence
+ * and the pixels are mapped only once the GPU is done with them, so the rendering
+ * thread never stalls on a synchronous readback.
+ */
+class PboReadback {
+    private static final String TAG = PboReadback.class.getSimpleName();
+
+    interface Listener {
+        void onPixelsReady(ByteBuffer pixels, int frameIndex, long presentationTimeUs);
+    }
+
+    private final int[] mBuffers;
+    private final long[] mFences;
+    private final int[] mFrameIndices;
+    private final long[] mPresentationTimes;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mSize;
+    private final Listener mListener;
+    private int mHead = 0;  // next slot to read into
+    private int mTail = 0;  // oldest pending slot
+    private int mPending = 0;
+
+    PboReadback(int width, int height, int count, Listener listener)
+    {
+        mWidth = width;
+        mHeight = height;
+        mSize = width*height*4;
+        mListener = listener;
+        mBuffers = new int[count];
+        mFences = new long[count];
+        mFrameIndices = new int[count];
+        mPresentationTimes = new long[count];
+
+        GLES30.glGenBuffers(count, mBuffers, 0);
+        for (int buffer : mBuffers)
+        {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, buffer);
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, mSize, null, GLES30.GL_STREAM_READ);
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    /**
+     * Queues a readback of the current framebuffer. If every buffer of the ring is still
+     * pending, the oldest one is completed first.
+     */
+    void readPixels(int frameIndex, long presentationTimeUs)
+    {
+        if (mPending == mBuffers.length)
+            completeOldest(true);
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mBuffers[mHead]);
+        GLES30.glReadPixels(0, 0, mWidth, mHeight, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, 0);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        mFences[mHead] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        mFrameIndices[mHead] = frameIndex;
+        mPresentationTimes[mHead] = presentationTimeUs;
+        GLES30.glFlush();
+
+        mHead = (mHead + 1) % mBuffers.length;
+        mPending++;
+    }
+
+    /**
+     * Hands over every pending readback whose fence has already signaled, without blocking.
+     */
+    void poll()
+    {
+        while (mPending > 0 && completeOldest(false));
+    }
+
+    /**
+     * Blocks until every pending readback has been handed over.
+     */
+    void drain()
+    {
+        while (mPending > 0)
+            completeOldest(true);
+    }
+
+    void release()
+    {
+        for (int i = 0; i<mFences.length; i++)
+        {
+            if (mFences[i] != 0)
+            {
+                GLES30.glDeleteSync(mFences[i]);
+                mFences[i] = 0;
+            }
+        }
+        GLES30.glDeleteBuffers(mBuffers.length, mBuffers, 0);
+        mPending = 0;
+    }
+
+    private boolean completeOldest(boolean wait)
+    {
+        long fence = mFences[mTail];
+        int status = GLES30.glClientWaitSync(fence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT,
+                wait ? GLES30.GL_TIMEOUT_IGNORED : 0);
+        if (status == GLES30.GL_TIMEOUT_EXPIRED)
+            return false;
+        if (status == GLES30.GL_WAIT_FAILED)
+            Log.e(TAG, "Fence wait failed for frame "+mFrameIndices[mTail]);
+
+        GLES30.glDeleteSync(fence);
+        mFences[mTail] = 0;
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mBuffers[mTail]);
+        ByteBuffer pixels = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, mSize,
+                GLES30.GL_MAP_READ_BIT);
+        if (pixels != null)
+        {
+            mListener.onPixelsReady(pixels, mFrameIndices[mTail], mPresentationTimes[mTail]);
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        }
+        else
+            Log.e(TAG, "Could not map pixel buffer for frame "+mFrameIndices[mTail]);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+
+        mTail = (mTail + 1) % mBuffers.length;
+        mPending--;
+        return true;
+    }
+}
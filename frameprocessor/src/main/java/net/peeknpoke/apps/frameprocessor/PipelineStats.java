@@ -0,0 +1,220 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timings of every stage of the frame pipeline and the depth of its queues, recorded into fixed size
+ * histograms. Latencies are in nanoseconds. The GPU runs asynchronously, so DRAW is the time spent
+ * issuing the draw calls and the GPU work shows up in UPDATE_TEX_IMAGE or READBACK of a later frame.
+ * When image files are written, compression streams straight into the file, so ENCODE includes the
+ * write and WRITE is creating and closing the file.
+ */
+public class PipelineStats {
+    public enum Stage {
+        // MediaExtractor.readSampleData
+        EXTRACT,
+        // From queueing a sample into the decoder to its decoded output buffer
+        DECODE,
+        UPDATE_TEX_IMAGE,
+        DRAW,
+        // Reducing the rendered frame to its fingerprint and reading that back, with duplicate skipping
+        FINGERPRINT,
+        // Reading the pixels back, or issuing and collecting the pixel buffer readbacks
+        READBACK,
+        // Converting or copying the decoded YUV frame on the CPU, without OpenGL
+        CONVERT,
+        // Filter stages run on the CPU after the readback or conversion
+        FILTER,
+        ENCODE,
+        WRITE
+    }
+
+    public enum Queue {
+        // Decoded frames waiting for the rendering context
+        DECODED_FRAMES,
+        // Read back frames waiting for an encoder thread or the frame consumer
+        PENDING_WRITES
+    }
+
+    interface Listener {
+        void statsUpdated(PipelineStats snapshot);
+    }
+
+    private final LatencyHistogram[] mLatencies;
+    private final LatencyHistogram[] mQueueDepths;
+    private final int mSnapshotInterval;
+    private final AtomicInteger mFrameCount;
+    private final AtomicInteger mSkippedFrameCount;
+    private final AtomicInteger mCachedFrameCount;
+    private final long mStartNanos;
+    private final long mElapsedNanos;
+    private volatile Listener mListener;
+
+    /**
+     * @param snapshotInterval frames between two snapshots handed to the listener, 0 for none
+     */
+    PipelineStats(int snapshotInterval)
+    {
+        mSnapshotInterval = snapshotInterval;
+        mLatencies = new LatencyHistogram[Stage.values().length];
+        for (int i = 0; i<mLatencies.length; i++)
+            mLatencies[i] = new LatencyHistogram();
+        mQueueDepths = new LatencyHistogram[Queue.values().length];
+        for (int i = 0; i<mQueueDepths.length; i++)
+            mQueueDepths[i] = new LatencyHistogram();
+        mFrameCount = new AtomicInteger();
+        mSkippedFrameCount = new AtomicInteger();
+        mCachedFrameCount = new AtomicInteger();
+        mStartNanos = System.nanoTime();
+        mElapsedNanos = -1;
+    }
+
+    private PipelineStats(PipelineStats source)
+    {
+        mSnapshotInterval = 0;
+        mLatencies = new LatencyHistogram[source.mLatencies.length];
+        for (int i = 0; i<mLatencies.length; i++)
+            mLatencies[i] = source.mLatencies[i].copy();
+        mQueueDepths = new LatencyHistogram[source.mQueueDepths.length];
+        for (int i = 0; i<mQueueDepths.length; i++)
+            mQueueDepths[i] = source.mQueueDepths[i].copy();
+        mFrameCount = new AtomicInteger(source.mFrameCount.get());
+        mSkippedFrameCount = new AtomicInteger(source.mSkippedFrameCount.get());
+        mCachedFrameCount = new AtomicInteger(source.mCachedFrameCount.get());
+        mStartNanos = source.mStartNanos;
+        mElapsedNanos = System.nanoTime() - source.mStartNanos;
+    }
+
+    void setListener(Listener listener)
+    {
+        mListener = listener;
+    }
+
+    /**
+     * Records the time from startNanos, taken with System.nanoTime, until now.
+     */
+    void record(Stage stage, long startNanos)
+    {
+        mLatencies[stage.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    void recordLatency(Stage stage, long nanos)
+    {
+        mLatencies[stage.ordinal()].record(nanos);
+    }
+
+    void recordQueueDepth(Queue queue, int depth)
+    {
+        mQueueDepths[queue.ordinal()].record(depth);
+    }
+
+    /**
+     * Counts a rendered frame and hands a snapshot to the listener every snapshot interval.
+     */
+    void frameRendered()
+    {
+        int frames = mFrameCount.incrementAndGet();
+        Listener listener = mListener;
+        if (listener!=null && mSnapshotInterval > 0 && frames % mSnapshotInterval == 0)
+            listener.statsUpdated(snapshot());
+    }
+
+    /**
+     * Counts a rendered frame that was not read back as a duplicate of the last written one.
+     */
+    void frameSkipped()
+    {
+        mSkippedFrameCount.incrementAndGet();
+    }
+
+    /**
+     * Counts a frame copied from the frame cache instead of being decoded and rendered.
+     */
+    void frameCached()
+    {
+        mCachedFrameCount.incrementAndGet();
+    }
+
+    /**
+     * Copy of the current values that no longer changes.
+     */
+    PipelineStats snapshot()
+    {
+        return new PipelineStats(this);
+    }
+
+    public LatencyHistogram getLatency(Stage stage)
+    {
+        return mLatencies[stage.ordinal()];
+    }
+
+    public LatencyHistogram getQueueDepth(Queue queue)
+    {
+        return mQueueDepths[queue.ordinal()];
+    }
+
+    public int getFrameCount()
+    {
+        return mFrameCount.get();
+    }
+
+    /**
+     * Rendered frames that were skipped as near-duplicates, included in {@link #getFrameCount()}.
+     */
+    public int getSkippedFrameCount()
+    {
+        return mSkippedFrameCount.get();
+    }
+
+    /**
+     * Frames copied from the frame cache, not included in {@link #getFrameCount()}.
+     */
+    public int getCachedFrameCount()
+    {
+        return mCachedFrameCount.get();
+    }
+
+    /**
+     * Time from the start of the job to this snapshot.
+     */
+    public long getElapsedNanos()
+    {
+        return mElapsedNanos >= 0 ? mElapsedNanos : System.nanoTime() - mStartNanos;
+    }
+
+    /**
+     * Human readable report, one line per stage and queue, latencies in milliseconds.
+     */
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        long elapsedNanos = getElapsedNanos();
+        int frames = getFrameCount();
+        report.append(String.format(Locale.US, "%d frames in %.1f ms (%.1f fps)\n", frames, elapsedNanos/1e6,
+                elapsedNanos > 0 ? frames*1e9/elapsedNanos : 0));
+        if (getSkippedFrameCount() > 0)
+            report.append(String.format(Locale.US, "%d frames skipped as duplicates\n", getSkippedFrameCount()));
+        if (getCachedFrameCount() > 0)
+            report.append(String.format(Locale.US, "%d frames copied from the cache\n", getCachedFrameCount()));
+        for (Stage stage : Stage.values())
+        {
+            LatencyHistogram latency = getLatency(stage);
+            if (latency.getCount()==0)
+                continue;
+            report.append(String.format(Locale.US, "%-16s n=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f max=%.2f\n",
+                    stage, latency.getCount(), latency.getMean()/1e6, latency.getValueAtPercentile(50)/1e6,
+                    latency.getValueAtPercentile(90)/1e6, latency.getValueAtPercentile(99)/1e6,
+                    latency.getMax()/1e6));
+        }
+        for (Queue queue : Queue.values())
+        {
+            LatencyHistogram depth = getQueueDepth(queue);
+            if (depth.getCount()==0)
+                continue;
+            report.append(String.format(Locale.US, "%-16s mean=%.1f p99=%d max=%d\n", queue, depth.getMean(),
+                    depth.getValueAtPercentile(99), depth.getMax()));
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,17 @@
+package net.peeknpoke.apps.frameprocessor;
+
+/**
+ * Receives the pipeline statistics of a job when instrumentation is enabled in
+ * {@link FrameProcessorOptions}. Called from the pipeline threads.
+ */
+public interface PipelineStatsObserver {
+    /**
+     * Snapshot taken every snapshot interval while the job is running.
+     */
+    void statsUpdated(PipelineStats snapshot);
+
+    /**
+     * Final report of the job, called before {@link FrameProcessorObserver#doneProcessing()}.
+     */
+    void jobFinished(PipelineStats report);
+}
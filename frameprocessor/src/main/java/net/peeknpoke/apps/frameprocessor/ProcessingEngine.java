@@ -0,0 +1,201 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.content.Context;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Long-lived processing engine for many sequential jobs. The rendering and codec threads, the EGL
+ * context, the linked shader programs and the decoder are kept between jobs instead of being built again
+ * for every video, and so are the frame writer and its encoder threads when the next job writes frames of
+ * the same size and kind. A kept decoder is only flushed when the next video has the same mime type, size
+ * and codec specific data, configured again when it does not, and replaced when another decoder is picked. Jobs run one after the
+ * other in the order they were submitted. Parallel segments and the memory governor are not used by
+ * the engine, the frame pools keep their configured sizes. Resumable jobs and the frame cache are not
+ * supported.
+ */
+public class ProcessingEngine implements DecodePipelineObserver {
+    private static final String TAG = ProcessingEngine.class.getSimpleName();
+
+    private static class Job {
+        final Uri uri;
+        final int maxFrames;
+        final FrameProcessorOptions options;
+        final FrameProcessorObserver observer;
+        final PipelineStatsObserver statsObserver;
+        FrameSink frameSink;
+        PipelineStats stats;
+
+        Job(Uri uri, int maxFrames, FrameProcessorOptions options, FrameProcessorObserver observer,
+            PipelineStatsObserver statsObserver)
+        {
+            this.uri = uri;
+            this.maxFrames = maxFrames;
+            this.options = options;
+            this.observer = observer;
+            this.statsObserver = statsObserver;
+        }
+    }
+
+    private final Context mContext;
+    private final String mAppName;
+    private final DecodePipeline mPipeline;
+    private final Handler mEngineHandler;
+    // Completion is reported on the main thread, like FrameProcessor does
+    private final Handler mMainHandler;
+    // Only touched on the engine thread
+    private final ArrayDeque<Job> mJobs = new ArrayDeque<>();
+    private Job mCurrentJob;
+
+    public ProcessingEngine(Context context, String appName)
+    {
+        mContext = context.getApplicationContext();
+        mAppName = appName;
+        mMainHandler = new Handler(context.getMainLooper());
+        mPipeline = new DecodePipeline("", true);
+        mPipeline.registerObserver(this);
+
+        HandlerThread engineThread = new HandlerThread("ProcessingEngine");
+        engineThread.start();
+        mEngineHandler = new Handler(engineThread.getLooper());
+    }
+
+    /**
+     * Queues a job. The observer is told on the main thread once all of its frames have been written.
+     */
+    public void submit(Uri uri, int maxFrames, FrameProcessorOptions options, FrameProcessorObserver observer)
+    {
+        submit(uri, maxFrames, options, observer, null);
+    }
+
+    /**
+     * Queues a job whose pipeline statistics go to statsObserver, when instrumentation is enabled in
+     * its options.
+     *
+     * @throws IllegalArgumentException when the options ask for a resumable job or the frame cache
+     */
+    public void submit(Uri uri, int maxFrames, FrameProcessorOptions options, FrameProcessorObserver observer,
+                       PipelineStatsObserver statsObserver)
+    {
+        if (options.isResumable())
+            throw new IllegalArgumentException("The processing engine does not resume jobs");
+        if (options.getFrameCacheSize() > 0)
+            throw new IllegalArgumentException("The processing engine does not cache frames");
+        final Job job = new Job(uri, maxFrames, options, observer, statsObserver);
+        mEngineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mJobs.add(job);
+                startNextJob();
+            }
+        });
+    }
+
+    public void release()
+    {
+        mEngineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mJobs.clear();
+                mPipeline.removeObserver(ProcessingEngine.this);
+                mPipeline.release();
+                if (mCurrentJob!=null && mCurrentJob.frameSink!=null)
+                    mCurrentJob.frameSink.close();
+                mCurrentJob = null;
+                mEngineHandler.getLooper().quitSafely();
+            }
+        });
+    }
+
+    private void startNextJob()
+    {
+        while (mCurrentJob == null && !mJobs.isEmpty())
+        {
+            Job job = mJobs.poll();
+            try {
+                startJob(job);
+                mCurrentJob = job;
+            } catch (IOException | IllegalArgumentException e) {
+                // There is no error callback, the job is reported as done so the caller moves on
+                Log.e(TAG, "Could not start job for "+job.uri, e);
+                notifyDone(job.observer);
+            }
+        }
+    }
+
+    private void startJob(Job job) throws IOException
+    {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaFormat format;
+        SegmentPlanner.Segment segment = SegmentPlanner.wholeStream(job.maxFrames);
+        SyncSampleIndex syncSampleIndex;
+        JobSettings settings;
+        try {
+            extractor.setDataSource(mContext, job.uri, null);
+            int videoTrackIndex = FrameProcessor.getVideoTrackIndex(extractor);
+            if (videoTrackIndex < 0)
+                throw new IOException("No video track");
+            extractor.selectTrack(videoTrackIndex);
+            format = extractor.getTrackFormat(videoTrackIndex);
+            syncSampleIndex = FrameSampler.needsSyncSampleIndex(job.options) ? SyncSampleIndex.build(extractor) : null;
+            settings = JobSettings.create(mContext, format, segment, mAppName, job.options, null, null, null, null);
+        } catch (IOException | RuntimeException e) {
+            // The pipeline only takes the extractor over once the job starts
+            extractor.release();
+            throw e;
+        }
+        long durationUs = format.containsKey(MediaFormat.KEY_DURATION) ?
+                format.getLong(MediaFormat.KEY_DURATION) : -1;
+        job.frameSink = settings.frameSink;
+        job.stats = settings.stats;
+        if (job.stats!=null && job.statsObserver!=null)
+        {
+            final PipelineStatsObserver statsObserver = job.statsObserver;
+            job.stats.setListener(new PipelineStats.Listener() {
+                @Override
+                public void statsUpdated(PipelineStats snapshot) {
+                    statsObserver.statsUpdated(snapshot);
+                }
+            });
+        }
+        mPipeline.startJob(mContext, settings, extractor, format,
+                new FrameSampler(job.options, syncSampleIndex, durationUs), segment);
+    }
+
+    @Override
+    public void doneDecoding(DecodePipeline pipeline) {
+        mEngineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Job job = mCurrentJob;
+                mCurrentJob = null;
+                if (job != null)
+                {
+                    if (job.frameSink!=null)
+                        job.frameSink.close();
+                    if (job.stats!=null && job.statsObserver!=null)
+                        job.statsObserver.jobFinished(job.stats.snapshot());
+                    notifyDone(job.observer);
+                }
+                startNextJob();
+            }
+        });
+    }
+
+    private void notifyDone(final FrameProcessorObserver observer)
+    {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                observer.doneProcessing();
+            }
+        });
+    }
+}
@@ -0,0 +1,145 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.content.Context;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Linked program binaries stored in app storage, so later jobs skip shader compilation and linking.
+ * Entries are keyed by the shader sources and the GL driver, and a binary the driver rejects is
+ * dropped and rebuilt from source. Must be used on a thread with a current GL context.
+ */
+class ProgramBinaryCache {
+    private static final String TAG = ProgramBinaryCache.class.getSimpleName();
+    private static final String FOLDER_NAME = "programs";
+
+    private final File mFolder;
+    private final String mDriver;
+    private final boolean mSupported;
+
+    ProgramBinaryCache(Context context)
+    {
+        mFolder = new File(context.getCacheDir(), FOLDER_NAME);
+        mDriver = GLES30.glGetString(GLES30.GL_RENDERER) + "\n" + GLES30.glGetString(GLES30.GL_VERSION);
+
+        int[] formats = new int[1];
+        GLES30.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+        mSupported = formats[0] > 0 && (mFolder.isDirectory() || mFolder.mkdirs());
+    }
+
+    String key(String vertexShader, String fragmentShader)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            Charset utf8 = Charset.forName("UTF-8");
+            digest.update(vertexShader.getBytes(utf8));
+            digest.update((byte) 0);
+            digest.update(fragmentShader.getBytes(utf8));
+            digest.update((byte) 0);
+            digest.update(mDriver.getBytes(utf8));
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest())
+                key.append(String.format("%02x", b));
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Loads the cached binary into the given program. Returns false when there is no usable entry,
+     * in which case the program has to be built from source.
+     */
+    boolean load(String key, int program)
+    {
+        if (!mSupported)
+            return false;
+        File file = new File(mFolder, key);
+        if (!file.isFile())
+            return false;
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            int format = in.readInt();
+            int length = in.readInt();
+            // A truncated or corrupt file must not make us allocate whatever its header claims
+            if (length <= 0 || length > file.length() - 8)
+            {
+                Log.w(TAG, "Program binary of "+length+" bytes does not fit "+file);
+                file.delete();
+                return false;
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            ByteBuffer binary = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+            binary.put(data).position(0);
+            GLES30.glProgramBinary(program, format, binary, length);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read program binary", e);
+            file.delete();
+            return false;
+        }
+
+        int[] status = new int[1];
+        GLES30.glGetProgramiv(program, GLES30.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0)
+        {
+            // Typically after a driver update
+            Log.w(TAG, "Program binary rejected");
+            file.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Marks a program, before it is linked, so its binary can be retrieved afterwards.
+     */
+    void prepare(int program)
+    {
+        if (mSupported)
+            GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES30.GL_TRUE);
+    }
+
+    void store(String key, int program)
+    {
+        if (!mSupported)
+            return;
+        int[] length = new int[1];
+        GLES30.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] == 0)
+            return;
+
+        ByteBuffer binary = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        int[] format = new int[1];
+        GLES30.glGetProgramBinary(program, length[0], length, 0, format, 0, binary);
+        byte[] data = new byte[length[0]];
+        binary.get(data);
+
+        // Written under a temporary name so a half written entry is never loaded
+        File file = new File(mFolder, key);
+        File temp = new File(mFolder, key + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+            out.writeInt(format[0]);
+            out.writeInt(data.length);
+            out.write(data);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write program binary", e);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file))
+            temp.delete();
+    }
+}
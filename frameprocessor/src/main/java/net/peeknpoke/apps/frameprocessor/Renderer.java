@@ -3,12 +3,9 @@ package net.peeknpoke.apps.frameprocessor;
 import android.content.Context;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES30;
+import android.opengl.Matrix;
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -16,7 +13,6 @@ import java.nio.FloatBuffer;
 class Renderer {
     private static final String TAG = Renderer.class.getSimpleName();
     private static final String VERTEX_SHADER_NAME = "shader.vert";
-    private static final String FRAGMENT_SHADER_NAME = "negative.frag";
 
     private static final int SIZEOF_FLOAT = 4;
 
@@ -37,55 +33,142 @@ class Renderer {
     private FloatBuffer mTextureVertexBuffer;
     private FloatBuffer mVertexBuffer;
 
-    // OpenGL handles
-    private int mProgram;
-
-    private int quadPositionParam;
-    private int quadTexCoordParam;
-
-    private String mVertexShader;
-    private String mFragmentShader;
-
-    private int muTexMatrixLoc;
+    // One linked program per filter stage, kept for the lifetime of the renderer
+    private ShaderProgram[] mStages;
+    private float[][] mStageParams;
+    // Ping-pong targets for the intermediate stages
+    private final int[] mFramebuffers = new int[2];
+    private final int[] mFramebufferTextures = new int[2];
+    private int mFramebufferWidth = 0;
+    private int mFramebufferHeight = 0;
+    private final int[] mOutputFramebuffer = new int[1];
+
+    private final float[] mCropMatrix = new float[16];
+    private final float[] mTexMatrix = new float[16];
+    // Intermediate textures are rendered upside down relative to the quad's texture coordinates
+    private final float[] mFlipMatrix = new float[16];
+    private final float[] mOutputTexMatrix = new float[16];
+    private boolean mFlipOutput = false;
 
     Renderer(Context context)
+    {
+        this(context, FilterGraph.defaultGraph(), null);
+    }
+
+    Renderer(Context context, FilterGraph filterGraph, ProgramBinaryCache programCache)
     {
         super();
-        parseShaders(context);
-        createProgram();
+        createPrograms(context, filterGraph, programCache);
         createTextureVertexBuffer();
         createVertexBuffer();
+        Matrix.setIdentityM(mCropMatrix, 0);
+        Matrix.setIdentityM(mFlipMatrix, 0);
+        Matrix.translateM(mFlipMatrix, 0, 0.0f, 1.0f, 0.0f);
+        Matrix.scaleM(mFlipMatrix, 0, 1.0f, -1.0f, 1.0f);
+    }
+
+    /**
+     * Restricts sampling to a region of the frame, given as fractions of the frame size with the
+     * origin at the top left. The region is stretched over the whole viewport.
+     */
+    void setCrop(float left, float top, float right, float bottom)
+    {
+        // Texture coordinate v grows from the bottom of the output image to its top
+        Matrix.setIdentityM(mCropMatrix, 0);
+        Matrix.translateM(mCropMatrix, 0, left, 1.0f - bottom, 0.0f);
+        Matrix.scaleM(mCropMatrix, 0, right - left, bottom - top, 1.0f);
     }
 
-    private void parseShaders(Context context)
+    /**
+     * Draws the last stage upside down, for window surfaces whose buffers are read top row first
+     * while glReadPixels returns the bottom row first.
+     */
+    void setFlipOutput(boolean flipOutput)
     {
-        String vertexShaderFile, fragmentShaderFile;
-        vertexShaderFile = VERTEX_SHADER_NAME;
-        fragmentShaderFile = FRAGMENT_SHADER_NAME;
-        mVertexShader = loadShaderFile(context, vertexShaderFile);
-        mFragmentShader = loadShaderFile(context, fragmentShaderFile);
+        mFlipOutput = flipOutput;
+    }
+
+    private void createPrograms(Context context, FilterGraph filterGraph, ProgramBinaryCache programCache)
+    {
+        if (filterGraph.getStageCount() == 0)
+            throw new IllegalArgumentException("Filter graph has no stages");
+
+        String vertexShader = ShaderProgram.loadShaderFile(context, VERTEX_SHADER_NAME);
+        mStages = new ShaderProgram[filterGraph.getStageCount()];
+        mStageParams = new float[mStages.length][];
+        for (int i = 0; i<mStages.length; i++)
+        {
+            String fragmentShader = ShaderProgram.loadShaderFile(context, filterGraph.getStage(i));
+            if (fragmentShader == null)
+                throw new IllegalArgumentException("Missing filter stage "+filterGraph.getStage(i));
+            // Only the first stage samples the decoder output
+            mStages[i] = new ShaderProgram(vertexShader, ShaderProgram.adaptSampler(fragmentShader, i == 0),
+                    programCache);
+            mStageParams[i] = filterGraph.getStageParams(i);
+        }
     }
 
     void cleanup()
     {
-        GLES30.glDeleteProgram(mProgram);
+        for (ShaderProgram stage : mStages)
+            stage.release();
+        releaseFramebuffers();
     }
 
     void onDrawFrame(float[] transformMatrix, int texture, int viewPortWidth, int viewPortHeight)
+    {
+        if (mStages.length > 1)
+            ensureFramebuffers(viewPortWidth, viewPortHeight);
+
+        // Copy the texture transformation matrix over, cropping before the SurfaceTexture transform.
+        Matrix.multiplyMM(mTexMatrix, 0, transformMatrix, 0, mCropMatrix, 0);
+
+        int textureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
+        int inputTexture = texture;
+        float[] texMatrix = mTexMatrix;
+        // The output surface is bound by the rendering context, remember it for the last stage
+        if (mStages.length > 1)
+            GLES30.glGetIntegerv(GLES30.GL_FRAMEBUFFER_BINDING, mOutputFramebuffer, 0);
+        for (int i = 0; i<mStages.length; i++)
+        {
+            boolean last = i == mStages.length - 1;
+            if (mStages.length > 1)
+                GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, last ? mOutputFramebuffer[0] : mFramebuffers[i % 2]);
+            if (last && mFlipOutput)
+            {
+                Matrix.multiplyMM(mOutputTexMatrix, 0, texMatrix, 0, mFlipMatrix, 0);
+                texMatrix = mOutputTexMatrix;
+            }
+
+            drawStage(mStages[i], mStageParams[i], textureTarget, inputTexture, texMatrix, viewPortWidth,
+                    viewPortHeight);
+
+            textureTarget = GLES30.GL_TEXTURE_2D;
+            inputTexture = mFramebufferTextures[i % 2];
+            texMatrix = mFlipMatrix;
+        }
+        checkGLError(TAG, "Draw");
+    }
+
+    private void drawStage(ShaderProgram stage, float[] params, int textureTarget, int texture, float[] texMatrix,
+                           int viewPortWidth, int viewPortHeight)
     {
         GLES30.glViewport(0, 0, viewPortWidth, viewPortHeight);
-        GLES30.glUseProgram(mProgram);
+        GLES30.glUseProgram(stage.program);
 
         GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
-        GLES30.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texture);
+        GLES30.glBindTexture(textureTarget, texture);
 
-        // Copy the texture transformation matrix over.
-        GLES30.glUniformMatrix4fv(muTexMatrixLoc, 1, false, transformMatrix, 0);
+        GLES30.glUniformMatrix4fv(stage.texMatrixLoc, 1, false, texMatrix, 0);
+        if (stage.texelSizeLoc >= 0)
+            GLES30.glUniform2f(stage.texelSizeLoc, 1.0f/viewPortWidth, 1.0f/viewPortHeight);
+        if (stage.paramsLoc >= 0)
+            GLES30.glUniform4fv(stage.paramsLoc, 1, params, 0);
 
         // Set the vertex positions.
         int COORDS_PER_VERTEX = 2;
         GLES30.glVertexAttribPointer(
-                quadPositionParam,
+                stage.positionLoc,
                 COORDS_PER_VERTEX,
                 GLES30.GL_FLOAT,
                 false,
@@ -94,7 +177,7 @@ class Renderer {
 
         // Set the texture coordinates.
         GLES30.glVertexAttribPointer(
-                quadTexCoordParam,
+                stage.texCoordLoc,
                 COORDS_PER_VERTEX,
                 GLES30.GL_FLOAT,
                 false,
@@ -102,77 +185,57 @@ class Renderer {
                 mTextureVertexBuffer);
 
         // Enable vertex arrays
-        GLES30.glEnableVertexAttribArray(quadPositionParam);
-        GLES30.glEnableVertexAttribArray(quadTexCoordParam);
+        GLES30.glEnableVertexAttribArray(stage.positionLoc);
+        GLES30.glEnableVertexAttribArray(stage.texCoordLoc);
 
         GLES30.glDrawArrays(GLES30.GL_TRIANGLE_STRIP, 0, 4);
 
         // Disable vertex arrays
-        GLES30.glDisableVertexAttribArray(quadPositionParam);
-        GLES30.glDisableVertexAttribArray(quadTexCoordParam);
+        GLES30.glDisableVertexAttribArray(stage.positionLoc);
+        GLES30.glDisableVertexAttribArray(stage.texCoordLoc);
 
-        GLES30.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+        GLES30.glBindTexture(textureTarget, 0);
 
         GLES30.glUseProgram(0);
-        checkGLError(TAG, "Draw");
     }
 
-    private void createProgram()
+    private void ensureFramebuffers(int width, int height)
     {
-        int vertexShader = loadGLShader(mVertexShader, GLES30.GL_VERTEX_SHADER);
-        int fragmentShader = loadGLShader(mFragmentShader, GLES30.GL_FRAGMENT_SHADER);
-
-        mProgram = GLES30.glCreateProgram();
-        GLES30.glAttachShader(mProgram, vertexShader);
-        GLES30.glAttachShader(mProgram, fragmentShader);
-        GLES30.glLinkProgram(mProgram);
-        GLES30.glUseProgram(mProgram);
-
-        quadPositionParam = GLES30.glGetAttribLocation(mProgram, "a_Position");
-        quadTexCoordParam = GLES30.glGetAttribLocation(mProgram, "a_TexCoord");
-        muTexMatrixLoc = GLES30.glGetUniformLocation(mProgram, "uTexMatrix");
-    }
+        if (width == mFramebufferWidth && height == mFramebufferHeight)
+            return;
+        releaseFramebuffers();
 
-    private static String loadShaderFile(Context context, String filename)
-    {
-        try
-        {
-            InputStream inputStream = context.getAssets().open(filename);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-            StringBuilder shaderText = new StringBuilder();
-            String inputLine = reader.readLine();
-            while (inputLine != null) {
-                shaderText.append(inputLine).append("\n");
-                inputLine = reader.readLine();
-            }
-            return shaderText.toString();
-        }
-        catch (IOException e)
+        GLES30.glGenFramebuffers(2, mFramebuffers, 0);
+        GLES30.glGenTextures(2, mFramebufferTextures, 0);
+        for (int i = 0; i<2; i++)
         {
-            Log.e(TAG, "Shader not found");
+            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, mFramebufferTextures[i]);
+            GLES30.glTexStorage2D(GLES30.GL_TEXTURE_2D, 1, GLES30.GL_RGBA8, width, height);
+            GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
+            GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);
+            GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR);
+            GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);
+
+            GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, mFramebuffers[i]);
+            GLES30.glFramebufferTexture2D(GLES30.GL_FRAMEBUFFER, GLES30.GL_COLOR_ATTACHMENT0,
+                    GLES30.GL_TEXTURE_2D, mFramebufferTextures[i], 0);
+            if (GLES30.glCheckFramebufferStatus(GLES30.GL_FRAMEBUFFER) != GLES30.GL_FRAMEBUFFER_COMPLETE)
+                throw new RuntimeException("Incomplete framebuffer.");
         }
-
-        return null;
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
+        mFramebufferWidth = width;
+        mFramebufferHeight = height;
     }
 
-    private static int loadGLShader(String shaderCode, int type)
+    private void releaseFramebuffers()
     {
-        int shader = GLES30.glCreateShader(type);
-        GLES30.glShaderSource(shader, shaderCode);
-        GLES30.glCompileShader(shader);
-
-        // If shader could not be compiled throw runtime exceptions
-        final int[] result = new int[1];
-        GLES30.glGetShaderiv(shader, GLES30.GL_COMPILE_STATUS, result, 0);
-
-        // If the compilation failed, delete the shader.
-        if (result[0] == 0) {
-            Log.e(TAG, "Error compiling shader: " + GLES30.glGetShaderInfoLog(shader));
-            GLES30.glDeleteShader(shader);
-            throw new RuntimeException("Error creating shader.");
-        }
-
-        return shader;
+        if (mFramebufferWidth == 0)
+            return;
+        GLES30.glDeleteFramebuffers(2, mFramebuffers, 0);
+        GLES30.glDeleteTextures(2, mFramebufferTextures, 0);
+        mFramebufferWidth = 0;
+        mFramebufferHeight = 0;
     }
 
     private void createTextureVertexBuffer()
@@ -2,4 +2,5 @@ package net.peeknpoke.apps.frameprocessor;
 
 interface RendererObserver {
     void setupComplete();
+    void frameRendered(int frameIndex);
 }
@@ -0,0 +1,40 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.view.Surface;
+
+/**
+ * Takes the decoded frames of a {@link DecodePipeline} one by one and hands the processed pixels on.
+ * All calls but {@link #getSurface()} are made on the pipeline's rendering thread.
+ */
+interface RenderingContext extends ObserverSubject<RendererObserver> {
+    /**
+     * Creates what lives as long as the context and sets up the first job, then reports setupComplete.
+     */
+    void setupRenderingContext(Context context);
+
+    /**
+     * Switches to a new job after {@link #finish()}, then reports setupComplete.
+     */
+    void reconfigure(JobSettings settings);
+
+    boolean isSetUp();
+
+    /**
+     * Surface the decoder renders into, null when the decoder keeps its output in its own buffers.
+     */
+    Surface getSurface();
+
+    /**
+     * Processes the decoded output buffer, reporting frameRendered once done with it.
+     */
+    void renderFrame(MediaCodec codec, int index, long presentationTimeUs);
+
+    /**
+     * Hands over every frame still in flight. Must be called once the decoder is stopped.
+     */
+    void finish();
+
+    void release();
+}
@@ -0,0 +1,167 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.media.MediaExtractor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits the timeline of a track into key frame aligned segments that can be decoded independently.
+ * Each segment knows the global index of its first frame, so the outputs of all segments merge into
+ * one sequence in order.
+ */
+class SegmentPlanner {
+    static class Segment {
+        static final long NOT_RESUMED = Long.MIN_VALUE;
+
+        final long startUs;
+        // -1 for the last segment
+        final long endUs;
+        final int firstFrameIndex;
+        final int maxFrames;
+        // Decoded frames up to this presentation time were written by an earlier run and are dropped
+        final long resumeAfterUs;
+
+        Segment(long startUs, long endUs, int firstFrameIndex, int maxFrames)
+        {
+            this(startUs, endUs, firstFrameIndex, maxFrames, NOT_RESUMED);
+        }
+
+        Segment(long startUs, long endUs, int firstFrameIndex, int maxFrames, long resumeAfterUs)
+        {
+            this.startUs = startUs;
+            this.endUs = endUs;
+            this.firstFrameIndex = firstFrameIndex;
+            this.maxFrames = maxFrames;
+            this.resumeAfterUs = resumeAfterUs;
+        }
+    }
+
+    static Segment wholeStream(int maxFrames)
+    {
+        return new Segment(0, -1, 0, maxFrames);
+    }
+
+    /**
+     * The rest of the stream after a checkpoint. Decoding starts at the key frame before the checkpoint
+     * frame, which is needed to decode the frames after it.
+     */
+    static Segment resumeAfter(int checkpointIndex, long checkpointUs, int maxFrames)
+    {
+        return new Segment(checkpointUs, -1, checkpointIndex + 1, maxFrames - checkpointIndex - 1, checkpointUs);
+    }
+
+    /**
+     * Plans up to segmentCount segments starting on sync samples. The frames of every segment are
+     * counted by walking the sample table in decode order, which reads no sample data. Segments lying
+     * entirely past maxFrames are left out.
+     */
+    static List<Segment> plan(MediaExtractor extractor, SyncSampleIndex syncSampleIndex, int segmentCount,
+                              int maxFrames)
+    {
+        List<Segment> segments = new ArrayList<>();
+        int syncCount = syncSampleIndex.size();
+        segmentCount = Math.min(segmentCount, syncCount);
+        if (segmentCount <= 1)
+        {
+            segments.add(wholeStream(maxFrames));
+            return segments;
+        }
+
+        long[] starts = new long[segmentCount];
+        int distinct = 0;
+        for (int i = 0; i<segmentCount; i++)
+        {
+            long start = syncSampleIndex.get((int) ((long) i*syncCount/segmentCount));
+            if (distinct == 0 || start > starts[distinct-1])
+                starts[distinct++] = start;
+        }
+
+        int[] counts = new int[distinct];
+        int current = 0;
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long time = extractor.getSampleTime();
+        while (time >= 0)
+        {
+            boolean sync = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+            if (sync && current+1 < distinct && time >= starts[current+1])
+                current++;
+            counts[current]++;
+            if (!extractor.advance())
+                break;
+            time = extractor.getSampleTime();
+        }
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+        int firstFrameIndex = 0;
+        for (int i = 0; i<distinct && firstFrameIndex<maxFrames; i++)
+        {
+            long endUs = i+1 < distinct ? starts[i+1] : -1;
+            int frames = Math.min(counts[i], maxFrames - firstFrameIndex);
+            segments.add(new Segment(starts[i], endUs, firstFrameIndex, frames));
+            firstFrameIndex += counts[i];
+        }
+        return segments;
+    }
+
+    /**
+     * Presentation times of the first maxFrames frames of the track in presentation order, read from
+     * the sample table without reading any sample data.
+     */
+    static long[] presentationTimes(MediaExtractor extractor, int maxFrames)
+    {
+        long[] times = new long[256];
+        int count = 0;
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long time = extractor.getSampleTime();
+        while (time >= 0)
+        {
+            if (count == times.length)
+                times = Arrays.copyOf(times, count*2);
+            times[count++] = time;
+            if (!extractor.advance())
+                break;
+            time = extractor.getSampleTime();
+        }
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        Arrays.sort(times, 0, count);
+        return Arrays.copyOf(times, Math.min(count, Math.max(maxFrames, 0)));
+    }
+
+    /**
+     * Segments covering the frames that are not cached, in order. Each one starts decoding at the key
+     * frame before its first frame and drops what comes before it, so cached runs shorter than
+     * minCachedRun are decoded along with the frames around them instead of starting another segment.
+     *
+     * @param presentationTimesUs every frame of the job in presentation order
+     */
+    static List<Segment> planUncached(long[] presentationTimesUs, boolean[] cached, int minCachedRun)
+    {
+        List<Segment> segments = new ArrayList<>();
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i<presentationTimesUs.length; i++)
+        {
+            if (cached[i])
+                continue;
+            if (first >= 0 && i - last - 1 >= minCachedRun)
+            {
+                segments.add(uncachedRange(presentationTimesUs, first, last));
+                first = -1;
+            }
+            if (first < 0)
+                first = i;
+            last = i;
+        }
+        if (first >= 0)
+            segments.add(uncachedRange(presentationTimesUs, first, last));
+        return segments;
+    }
+
+    private static Segment uncachedRange(long[] presentationTimesUs, int first, int last)
+    {
+        long resumeAfterUs = first > 0 ? presentationTimesUs[first - 1] : Segment.NOT_RESUMED;
+        return new Segment(presentationTimesUs[first], -1, first, last - first + 1, resumeAfterUs);
+    }
+}
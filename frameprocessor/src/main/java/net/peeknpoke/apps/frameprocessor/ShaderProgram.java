@@ -0,0 +1,153 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.content.Context;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Linked program of one filter stage together with the locations the renderer needs.
+ */
+class ShaderProgram {
+    private static final String TAG = ShaderProgram.class.getSimpleName();
+    private static final String EXTERNAL_SAMPLER = "samplerExternalOES";
+    private static final String EXTERNAL_EXTENSION = "#extension GL_OES_EGL_image_external_essl3 : require";
+
+    final int program;
+    final int positionLoc;
+    final int texCoordLoc;
+    final int texMatrixLoc;
+    // -1 when the stage does not use it
+    final int texelSizeLoc;
+    // -1 when the stage does not use it
+    final int paramsLoc;
+
+    ShaderProgram(String vertexShader, String fragmentShader)
+    {
+        this(vertexShader, fragmentShader, null);
+    }
+
+    ShaderProgram(String vertexShader, String fragmentShader, ProgramBinaryCache cache)
+    {
+        String key = cache != null ? cache.key(vertexShader, fragmentShader) : null;
+        int linked = 0;
+        if (cache != null)
+        {
+            linked = GLES30.glCreateProgram();
+            if (!cache.load(key, linked))
+            {
+                GLES30.glDeleteProgram(linked);
+                linked = 0;
+            }
+        }
+        if (linked == 0)
+        {
+            linked = linkProgram(vertexShader, fragmentShader, cache);
+            if (cache != null)
+                cache.store(key, linked);
+        }
+        program = linked;
+
+        positionLoc = GLES30.glGetAttribLocation(program, "a_Position");
+        texCoordLoc = GLES30.glGetAttribLocation(program, "a_TexCoord");
+        texMatrixLoc = GLES30.glGetUniformLocation(program, "uTexMatrix");
+        texelSizeLoc = GLES30.glGetUniformLocation(program, "uTexelSize");
+        paramsLoc = GLES30.glGetUniformLocation(program, "uParams");
+    }
+
+    void release()
+    {
+        GLES30.glDeleteProgram(program);
+    }
+
+    private static int linkProgram(String vertexShader, String fragmentShader, ProgramBinaryCache cache)
+    {
+        int vertex = loadGLShader(vertexShader, GLES30.GL_VERTEX_SHADER);
+        int fragment = loadGLShader(fragmentShader, GLES30.GL_FRAGMENT_SHADER);
+
+        int program = GLES30.glCreateProgram();
+        if (cache != null)
+            cache.prepare(program);
+        GLES30.glAttachShader(program, vertex);
+        GLES30.glAttachShader(program, fragment);
+        GLES30.glLinkProgram(program);
+        // The program keeps what it needs once linked
+        GLES30.glDeleteShader(vertex);
+        GLES30.glDeleteShader(fragment);
+
+        final int[] result = new int[1];
+        GLES30.glGetProgramiv(program, GLES30.GL_LINK_STATUS, result, 0);
+        if (result[0] == 0) {
+            Log.e(TAG, "Error linking program: " + GLES30.glGetProgramInfoLog(program));
+            GLES30.glDeleteProgram(program);
+            throw new RuntimeException("Error linking program.");
+        }
+        return program;
+    }
+
+    static String loadShaderFile(Context context, String filename)
+    {
+        try
+        {
+            InputStream inputStream = context.getAssets().open(filename);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+            StringBuilder shaderText = new StringBuilder();
+            String inputLine = reader.readLine();
+            while (inputLine != null) {
+                shaderText.append(inputLine).append("\n");
+                inputLine = reader.readLine();
+            }
+            reader.close();
+            return shaderText.toString();
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Shader not found: "+filename);
+        }
+
+        return null;
+    }
+
+    /**
+     * Rewrites the sampler of a fragment shader so any stage can sample either the decoder's external
+     * texture or an intermediate 2D texture.
+     */
+    static String adaptSampler(String fragmentShader, boolean external)
+    {
+        boolean isExternal = fragmentShader.contains(EXTERNAL_SAMPLER);
+        if (isExternal == external)
+            return fragmentShader;
+
+        if (external)
+        {
+            int versionEnd = fragmentShader.indexOf('\n') + 1;
+            return fragmentShader.substring(0, versionEnd) + EXTERNAL_EXTENSION + "\n" +
+                    fragmentShader.substring(versionEnd).replace("sampler2D", EXTERNAL_SAMPLER);
+        }
+        return fragmentShader.replace(EXTERNAL_EXTENSION, "").replace(EXTERNAL_SAMPLER, "sampler2D");
+    }
+
+    private static int loadGLShader(String shaderCode, int type)
+    {
+        int shader = GLES30.glCreateShader(type);
+        GLES30.glShaderSource(shader, shaderCode);
+        GLES30.glCompileShader(shader);
+
+        // If shader could not be compiled throw runtime exceptions
+        final int[] result = new int[1];
+        GLES30.glGetShaderiv(shader, GLES30.GL_COMPILE_STATUS, result, 0);
+
+        // If the compilation failed, delete the shader.
+        if (result[0] == 0) {
+            Log.e(TAG, "Error compiling shader: " + GLES30.glGetShaderInfoLog(shader));
+            GLES30.glDeleteShader(shader);
+            throw new RuntimeException("Error creating shader.");
+        }
+
+        return shader;
+    }
+}
@@ -0,0 +1,79 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.media.MediaExtractor;
+
+import java.util.Arrays;
+
+/**
+ * Presentation times of the sync samples (key frames) of the selected track. Built from the container
+ * index by seeking from key frame to key frame, nothing is decoded.
+ */
+class SyncSampleIndex {
+    private final long[] mSyncTimesUs;
+    private final int mCount;
+
+    private SyncSampleIndex(long[] syncTimesUs, int count)
+    {
+        mSyncTimesUs = syncTimesUs;
+        mCount = count;
+    }
+
+    /**
+     * Walks the sync samples of the track selected on the extractor and rewinds it to the start.
+     */
+    static SyncSampleIndex build(MediaExtractor extractor)
+    {
+        long[] times = new long[64];
+        int count = 0;
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long time = extractor.getSampleTime();
+        while (time >= 0)
+        {
+            if (count == times.length)
+                times = Arrays.copyOf(times, count*2);
+            times[count++] = time;
+
+            extractor.seekTo(time + 1, MediaExtractor.SEEK_TO_NEXT_SYNC);
+            long next = extractor.getSampleTime();
+            // Past the last sync sample some extractors stay on it instead of reaching the end
+            if (next <= time)
+                break;
+            time = next;
+        }
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        return new SyncSampleIndex(times, count);
+    }
+
+    int size()
+    {
+        return mCount;
+    }
+
+    long get(int i)
+    {
+        return mSyncTimesUs[i];
+    }
+
+    /**
+     * Latest sync sample at or before the given time, or the first one if there is none.
+     */
+    long previousSync(long timeUs)
+    {
+        if (mCount == 0)
+            return 0;
+        int i = Arrays.binarySearch(mSyncTimesUs, 0, mCount, timeUs);
+        if (i < 0)
+            i = -i - 2;
+        return mSyncTimesUs[Math.max(i, 0)];
+    }
+
+    /**
+     * First sync sample strictly after the given time, or -1 if there is none.
+     */
+    long nextSync(long timeUs)
+    {
+        int i = Arrays.binarySearch(mSyncTimesUs, 0, mCount, timeUs);
+        i = i < 0 ? -i - 1 : i + 1;
+        return i < mCount ? mSyncTimesUs[i] : -1;
+    }
+}
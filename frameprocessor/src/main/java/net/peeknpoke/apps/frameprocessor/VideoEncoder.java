@@ -0,0 +1,141 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Surface input video encoder writing into an MP4 file. Frames are drawn into {@link #getInputSurface()}
+ * by the rendering context and pulled out of the encoder synchronously with {@link #drain(boolean)}.
+ */
+class VideoEncoder {
+    private static final String TAG = VideoEncoder.class.getSimpleName();
+    private static final int I_FRAME_INTERVAL = 1;
+    private static final int DEFAULT_FRAME_RATE = 30;
+    // Only waited for at the end of the stream, a frame never waits for the encoder
+    private static final long DRAIN_TIMEOUT_US = 10000;
+    // Waits in a row without output before an encoder that never signals the end of the stream is given up on
+    private static final int MAX_DRAIN_RETRIES = 100;
+
+    private final MediaCodec mEncoder;
+    private final MediaMuxer mMuxer;
+    private final Surface mInputSurface;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private final File mOutputFile;
+    private int mTrackIndex = -1;
+    private boolean mMuxerStarted = false;
+    private int mSampleCount = 0;
+
+    VideoEncoder(File outputFile, String mimeType, int width, int height, int frameRate, int bitRate)
+            throws IOException
+    {
+        mOutputFile = outputFile;
+        MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate > 0 ? frameRate : DEFAULT_FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+
+        mEncoder = MediaCodec.createEncoderByType(mimeType);
+        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mInputSurface = mEncoder.createInputSurface();
+        mEncoder.start();
+
+        mMuxer = new MediaMuxer(outputFile.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    Surface getInputSurface()
+    {
+        return mInputSurface;
+    }
+
+    File getOutputFile()
+    {
+        return mOutputFile;
+    }
+
+    void signalEndOfInputStream()
+    {
+        mEncoder.signalEndOfInputStream();
+    }
+
+    /**
+     * Writes every encoded buffer available to the muxer. With endOfStream set, keeps going until the
+     * encoder reports the end of the stream or stays silent for about a second, otherwise returns as soon
+     * as nothing is available.
+     */
+    void drain(boolean endOfStream)
+    {
+        long timeoutUs = endOfStream ? DRAIN_TIMEOUT_US : 0;
+        int retries = 0;
+        while (true)
+        {
+            int index = mEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER)
+            {
+                if (!endOfStream)
+                    return;
+                if (++retries >= MAX_DRAIN_RETRIES)
+                {
+                    Log.w(TAG, "Encoder did not signal the end of the stream, "+mSampleCount+" samples written");
+                    return;
+                }
+                continue;
+            }
+            retries = 0;
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED)
+            {
+                if (mMuxerStarted)
+                    throw new IllegalStateException("Encoder format changed twice");
+                mTrackIndex = mMuxer.addTrack(mEncoder.getOutputFormat());
+                mMuxer.start();
+                mMuxerStarted = true;
+            }
+            else if (index >= 0)
+            {
+                ByteBuffer encodedData = mEncoder.getOutputBuffer(index);
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0)
+                {
+                    // Already passed to the muxer through the output format
+                    mBufferInfo.size = 0;
+                }
+
+                if (mBufferInfo.size != 0 && encodedData != null && mMuxerStarted)
+                {
+                    encodedData.position(mBufferInfo.offset);
+                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
+                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+                    mSampleCount++;
+                }
+                mEncoder.releaseOutputBuffer(index, false);
+
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                {
+                    if (!endOfStream)
+                        Log.w(TAG, "Unexpected end of stream");
+                    return;
+                }
+            }
+        }
+    }
+
+    void release()
+    {
+        mEncoder.stop();
+        mEncoder.release();
+        mInputSurface.release();
+        // Stopping a muxer without samples throws, the file is unplayable either way
+        if (mMuxerStarted && mSampleCount > 0)
+            mMuxer.stop();
+        else
+            Log.w(TAG, "No frames encoded into "+mOutputFile);
+        mMuxer.release();
+    }
+}
@@ -0,0 +1,304 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.MediaCodec;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Surface;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Rendering context without OpenGL for jobs that keep the frames as they are. The decoded YUV frames
+ * come either from an ImageReader the decoder renders into or straight from the decoder's output
+ * buffers, and are converted to RGBA or packed as I420 on the CPU by a {@link YuvConverter}. The filter
+ * stages, if any, run on the converted frame with the {@link CpuFilterEngine}.
+ */
+class YuvContext implements RenderingContext, ImageReader.OnImageAvailableListener {
+    private static final String TAG = YuvContext.class.getSimpleName();
+    // Per frame logging, off so the frame loop does not build log strings
+    private static final boolean VERBOSE = false;
+    // One frame is on its way at a time, a second image lets the decoder render the next one early
+    private static final int MAX_IMAGES = 2;
+    private ImageReader mImageReader;
+    private Handler mHandler;
+    private YuvConverter mConverter;
+    // Null for the identity filter graph
+    private CpuFilterEngine mCpuFilters;
+    private ForkJoinPool mCpuFilterPool;
+    private FrameOutput mFrameOutput;
+    private boolean mSetUp = false;
+    private int mOutputFrameIndex = 0;
+    private int mMaxFrames;
+    private boolean mYuvOutput;
+    private Rect mSourceRect;
+    private int mSourceWidth;
+    private int mSourceHeight;
+    private JobSettings mSettings;
+    private PipelineStats mStats;
+    private ArrayList<WeakReference<RendererObserver>> mObservers = new ArrayList<>();
+
+    YuvContext(JobSettings settings)
+    {
+        applySettings(settings, null);
+    }
+
+    /**
+     * @param writer writer of the previous job to write this job's frames with, null for a new output
+     */
+    private void applySettings(JobSettings settings, FrameWriter writer)
+    {
+        mSettings = settings;
+        mStats = settings.stats;
+        mOutputFrameIndex = settings.firstFrameIndex;
+        mMaxFrames = settings.firstFrameIndex + settings.maxFrames;
+        mYuvOutput = settings.options.isYuvOutput();
+
+        // Chroma is subsampled by two, so the region starts on even source coordinates
+        Rect rect = settings.sourceRect;
+        mSourceRect = new Rect(rect.left & ~1, rect.top & ~1, 0, 0);
+        mSourceRect.right = mSourceRect.left + settings.outputWidth;
+        mSourceRect.bottom = mSourceRect.top + settings.outputHeight;
+
+        FrameProcessorOptions options = settings.options;
+        if (options.getOutputMode() == FrameProcessorOptions.OutputMode.CONSUMER)
+            mFrameOutput = new FrameDelivery(options.getFrameConsumer(), settings.stats, settings.outputWidth,
+                    settings.outputHeight, mYuvOutput ? ImageFormat.YUV_420_888 : PixelFormat.RGBA_8888,
+                    options.getConsumerFrameCount());
+        else if (writer!=null)
+        {
+            writer.reuse(settings.frameSink, settings.stats);
+            mFrameOutput = writer;
+        }
+        else
+            mFrameOutput = new FrameWriter(settings.frameSink, settings.stats, settings.outputWidth,
+                    settings.outputHeight, options.getFrameEncoder().needsBitmap(), options.getEncoderThreads(),
+                    options.getWriteQueueCapacity());
+        if (settings.memoryGovernor!=null)
+            settings.memoryGovernor.register(mFrameOutput);
+    }
+
+    @Override
+    public void setupRenderingContext(Context context) {
+        mHandler = new Handler(Looper.myLooper());
+        setupJob();
+        mSetUp = true;
+        notifySetupComplete();
+    }
+
+    @Override
+    public void reconfigure(JobSettings settings) {
+        FrameWriter writer = FrameWriter.reusable(mFrameOutput, settings);
+        if (writer!=null)
+        {
+            // Kept out of releaseJob, with its encoder threads
+            if (mSettings.memoryGovernor!=null)
+                mSettings.memoryGovernor.unregister(writer);
+            mFrameOutput = null;
+        }
+        releaseJob();
+        applySettings(settings, writer);
+        setupJob();
+        notifySetupComplete();
+    }
+
+    private void setupJob()
+    {
+        FrameProcessorOptions options = mSettings.options;
+        if (mConverter==null)
+            mConverter = new YuvConverter(options.getConverterThreads());
+        if (!options.getFilterGraph().isIdentity())
+        {
+            int threads = options.getCpuFilterThreads();
+            if (threads == 0)
+                threads = Runtime.getRuntime().availableProcessors();
+            if (mCpuFilterPool==null && threads > 1)
+                mCpuFilterPool = new ForkJoinPool(threads);
+            mCpuFilters = new CpuFilterEngine(options.getFilterGraph(), 0, mCpuFilterPool);
+        }
+
+        // The image reader has the size of the decoded frames, not of the output
+        int width = mSettings.sourceWidth;
+        int height = mSettings.sourceHeight;
+        boolean imageReader = options.getDecodeOutput() == FrameProcessorOptions.DecodeOutput.IMAGE_READER;
+        if (mImageReader!=null && (!imageReader || mSourceWidth != width || mSourceHeight != height))
+        {
+            mImageReader.close();
+            mImageReader = null;
+        }
+        if (imageReader && mImageReader==null)
+        {
+            mImageReader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, MAX_IMAGES);
+            mImageReader.setOnImageAvailableListener(this, mHandler);
+        }
+        mSourceWidth = width;
+        mSourceHeight = height;
+    }
+
+    private void releaseJob()
+    {
+        mCpuFilters = null;
+        if (mFrameOutput==null)
+            return;
+        if (mSettings.memoryGovernor!=null)
+            mSettings.memoryGovernor.unregister(mFrameOutput);
+        mFrameOutput.release();
+        mFrameOutput = null;
+    }
+
+    @Override
+    public boolean isSetUp() {
+        return mSetUp;
+    }
+
+    @Override
+    public Surface getSurface() {
+        return mImageReader!=null ? mImageReader.getSurface() : null;
+    }
+
+    @Override
+    public void renderFrame(MediaCodec codec, int index, long presentationTimeUs) {
+        if (mImageReader!=null)
+        {
+            // The frame arrives through the image reader, see onImageAvailable
+            codec.releaseOutputBuffer(index, true);
+            return;
+        }
+
+        Image image = codec.getOutputImage(index);
+        if (image!=null)
+        {
+            convertImage(image, presentationTimeUs);
+            image.close();
+        }
+        else
+            Log.e(TAG, "No image for output buffer "+index);
+        codec.releaseOutputBuffer(index, false);
+        notifyFrameRendered(mOutputFrameIndex++);
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireNextImage();
+        if (image==null)
+            return;
+        convertImage(image, image.getTimestamp()/1000);
+        image.close();
+        notifyFrameRendered(mOutputFrameIndex++);
+    }
+
+    private void convertImage(Image image, long presentationTimeUs)
+    {
+        if (mOutputFrameIndex >= mMaxFrames)
+            return;
+        if (VERBOSE) Log.d(TAG, "Converting frame "+mOutputFrameIndex);
+
+        FrameSlot slot;
+        try {
+            // Blocks while the output is behind, which in turn holds back the decoder
+            slot = mFrameOutput.acquireSlot();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        long start = mStats!=null ? System.nanoTime() : 0;
+        Image.Plane[] planes = image.getPlanes();
+        mConverter.setPlanes(planes[0].getBuffer(), planes[0].getRowStride(), planes[1].getBuffer(),
+                planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride());
+        Rect rect = mSourceRect;
+        if (mYuvOutput)
+            mConverter.toI420(rect.left, rect.top, rect.width(), rect.height(), slot.buffer);
+        else
+            mConverter.toRgba(rect.left, rect.top, rect.width(), rect.height(), slot.buffer);
+        if (mStats!=null)
+        {
+            mStats.record(PipelineStats.Stage.CONVERT, start);
+            start = System.nanoTime();
+        }
+        if (mCpuFilters!=null)
+        {
+            mCpuFilters.apply(slot.pixels, rect.width(), rect.height());
+            if (mStats!=null)
+                mStats.record(PipelineStats.Stage.FILTER, start);
+        }
+        if (mStats!=null)
+            mStats.frameRendered();
+
+        slot.frameIndex = mOutputFrameIndex;
+        slot.presentationTimeUs = presentationTimeUs;
+        mFrameOutput.submit(slot);
+    }
+
+    @Override
+    public void finish() {
+        if (mFrameOutput!=null)
+            mFrameOutput.awaitIdle();
+    }
+
+    @Override
+    public void release() {
+        releaseJob();
+        if (mImageReader!=null)
+            mImageReader.close();
+        mImageReader = null;
+        if (mConverter!=null)
+            mConverter.release();
+        mConverter = null;
+        if (mCpuFilterPool!=null)
+            mCpuFilterPool.shutdown();
+        mCpuFilterPool = null;
+    }
+
+    private WeakReference<RendererObserver> findWeakReference(RendererObserver rendererObserver)
+    {
+        WeakReference<RendererObserver> weakReference = null;
+        for(WeakReference<RendererObserver> ref : mObservers) {
+            if (ref.get() == rendererObserver) {
+                weakReference = ref;
+            }
+        }
+        return weakReference;
+    }
+
+    @Override
+    public void registerObserver(RendererObserver observer) {
+        WeakReference<RendererObserver> weakReference = findWeakReference(observer);
+        if (weakReference==null)
+            mObservers.add(new WeakReference<>(observer));
+    }
+
+    @Override
+    public void removeObserver(RendererObserver observer) {
+        WeakReference<RendererObserver> weakReference = findWeakReference(observer);
+        if (weakReference != null) {
+            mObservers.remove(weakReference);
+        }
+    }
+
+    private void notifyFrameRendered(int frameIndex)
+    {
+        for (int i = 0; i<mObservers.size(); i++){
+            RendererObserver observer = mObservers.get(i).get();
+            if (observer!=null)
+                observer.frameRendered(frameIndex);
+        }
+    }
+
+    private void notifySetupComplete()
+    {
+        for (WeakReference<RendererObserver> co:mObservers){
+            RendererObserver observer = co.get();
+            if (observer!=null)
+                observer.setupComplete();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts YUV 4:2:0 frames, as described by the three planes of a YUV_420_888 image, to RGBA or
+ * packs them as I420. The frame is cut into bands of rows that the calling thread and the worker
+ * threads take turns on, and the BT.601 limited range conversion is done with lookup tables in fixed
+ * point. Plain Java, so it runs and can be measured off the device.
+ */
+class YuvConverter {
+    // Even, so that every band starts on a chroma row
+    static final int BAND_ROWS = 16;
+
+    private static final int SHIFT = 10;
+    private static final int[] Y_TABLE = new int[256];
+    private static final int[] RV_TABLE = new int[256];
+    private static final int[] GU_TABLE = new int[256];
+    private static final int[] GV_TABLE = new int[256];
+    private static final int[] BU_TABLE = new int[256];
+    // Saturates the converted value, indexed by value+CLAMP_OFFSET
+    private static final int CLAMP_OFFSET = 384;
+    private static final byte[] CLAMP = new byte[1024];
+
+    static {
+        for (int i = 0; i<256; i++)
+        {
+            Y_TABLE[i] = Math.round(1.164f*(i - 16)*(1 << SHIFT));
+            RV_TABLE[i] = Math.round(1.596f*(i - 128)*(1 << SHIFT));
+            GU_TABLE[i] = Math.round(-0.391f*(i - 128)*(1 << SHIFT));
+            GV_TABLE[i] = Math.round(-0.813f*(i - 128)*(1 << SHIFT));
+            BU_TABLE[i] = Math.round(2.018f*(i - 128)*(1 << SHIFT));
+        }
+        for (int i = 0; i<CLAMP.length; i++)
+            CLAMP[i] = (byte) Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+    }
+
+    private final Thread[] mWorkers;
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private int mGeneration = 0;
+    private int mBusyWorkers = 0;
+    private boolean mReleased = false;
+    private final AtomicInteger mNextBand = new AtomicInteger();
+
+    // The frame being converted, written before the workers are woken up
+    private boolean mToRgba;
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private int mYBase;
+    private int mUBase;
+    private int mVBase;
+    private int mYRowStride;
+    private int mUvRowStride;
+    private int mUvPixelStride;
+    private int mLeft;
+    private int mTop;
+    private int mWidth;
+    private int mHeight;
+    private int mBandCount;
+    private ByteBuffer mOut;
+
+    /**
+     * @param threads number of threads converting a frame, including the calling one
+     */
+    YuvConverter(int threads)
+    {
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one thread is needed");
+        mWorkers = new Thread[threads - 1];
+        for (int i = 0; i<mWorkers.length; i++)
+        {
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "YuvConverter-"+i);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Describes the planes of the next frame. The Y plane has a pixel stride of 1, U and V share their
+     * row and pixel strides, as in a YUV_420_888 image. Plane data starts at the buffers' positions.
+     */
+    void setPlanes(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride)
+    {
+        mY = y;
+        mU = u;
+        mV = v;
+        mYBase = y.position();
+        mUBase = u.position();
+        mVBase = v.position();
+        mYRowStride = yRowStride;
+        mUvRowStride = uvRowStride;
+        mUvPixelStride = uvPixelStride;
+    }
+
+    /**
+     * Converts the given region of the frame to RGBA, four bytes per pixel and no row padding, written
+     * from the start of out. The region starts on even coordinates.
+     */
+    void toRgba(int left, int top, int width, int height, ByteBuffer out)
+    {
+        run(true, left, top, width, height, out);
+    }
+
+    /**
+     * Packs the given region of the frame as I420: the Y plane, then the U and then the V plane, each
+     * without row padding. The region starts on even coordinates.
+     */
+    void toI420(int left, int top, int width, int height, ByteBuffer out)
+    {
+        run(false, left, top, width, height, out);
+    }
+
+    static int i420Size(int width, int height)
+    {
+        return width*height + 2*((width + 1)/2)*((height + 1)/2);
+    }
+
+    void release()
+    {
+        synchronized (mLock)
+        {
+            mReleased = true;
+            mLock.notifyAll();
+        }
+    }
+
+    private void run(boolean toRgba, int left, int top, int width, int height, ByteBuffer out)
+    {
+        if ((left & 1)!=0 || (top & 1)!=0)
+            throw new IllegalArgumentException("Region has to start on even coordinates");
+        mToRgba = toRgba;
+        mLeft = left;
+        mTop = top;
+        mWidth = width;
+        mHeight = height;
+        mOut = out;
+        mBandCount = (height + BAND_ROWS - 1)/BAND_ROWS;
+        mNextBand.set(0);
+
+        if (mWorkers.length == 0)
+        {
+            convertBands();
+            return;
+        }
+
+        synchronized (mLock)
+        {
+            mBusyWorkers = mWorkers.length;
+            mGeneration++;
+            mLock.notifyAll();
+        }
+        convertBands();
+        boolean interrupted = false;
+        synchronized (mLock)
+        {
+            // The frame's buffers are only handed back once every worker is done with them
+            while (mBusyWorkers > 0)
+            {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void work()
+    {
+        int generation = 0;
+        while (true)
+        {
+            synchronized (mLock)
+            {
+                try {
+                    while (mGeneration == generation && !mReleased)
+                        mLock.wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (mReleased)
+                    return;
+                generation = mGeneration;
+            }
+            convertBands();
+            synchronized (mLock)
+            {
+                if (--mBusyWorkers == 0)
+                    mLock.notifyAll();
+            }
+        }
+    }
+
+    private void convertBands()
+    {
+        int band;
+        while ((band = mNextBand.getAndIncrement()) < mBandCount)
+        {
+            int first = band*BAND_ROWS;
+            int last = Math.min(first + BAND_ROWS, mHeight);
+            if (mToRgba)
+                convertRows(first, last);
+            else
+                copyRows(first, last);
+        }
+    }
+
+    private void convertRows(int first, int last)
+    {
+        ByteBuffer y = mY;
+        ByteBuffer u = mU;
+        ByteBuffer v = mV;
+        ByteBuffer out = mOut;
+        int width = mWidth;
+        int uvPixelStride = mUvPixelStride;
+        int chromaLeft = (mLeft >> 1)*uvPixelStride;
+        for (int row = first; row<last; row++)
+        {
+            int yIndex = mYBase + (mTop + row)*mYRowStride + mLeft;
+            int uvRow = ((mTop + row) >> 1)*mUvRowStride + chromaLeft;
+            int uIndex = mUBase + uvRow;
+            int vIndex = mVBase + uvRow;
+            int o = row*width*4;
+            for (int x = 0; x<width; x++)
+            {
+                int c = (x >> 1)*uvPixelStride;
+                int luma = Y_TABLE[y.get(yIndex + x) & 0xff];
+                int cb = u.get(uIndex + c) & 0xff;
+                int cr = v.get(vIndex + c) & 0xff;
+                out.put(o, CLAMP[((luma + RV_TABLE[cr]) >> SHIFT) + CLAMP_OFFSET]);
+                out.put(o + 1, CLAMP[((luma + GU_TABLE[cb] + GV_TABLE[cr]) >> SHIFT) + CLAMP_OFFSET]);
+                out.put(o + 2, CLAMP[((luma + BU_TABLE[cb]) >> SHIFT) + CLAMP_OFFSET]);
+                out.put(o + 3, (byte) 0xff);
+                o += 4;
+            }
+        }
+    }
+
+    private void copyRows(int first, int last)
+    {
+        ByteBuffer y = mY;
+        ByteBuffer out = mOut;
+        int width = mWidth;
+        int chromaWidth = (width + 1)/2;
+        int chromaPlaneSize = chromaWidth*((mHeight + 1)/2);
+        int uOffset = width*mHeight;
+        int vOffset = uOffset + chromaPlaneSize;
+        for (int row = first; row<last; row++)
+        {
+            int yIndex = mYBase + (mTop + row)*mYRowStride + mLeft;
+            int o = row*width;
+            for (int x = 0; x<width; x++)
+                out.put(o + x, y.get(yIndex + x));
+
+            if ((row & 1)!=0)
+                continue;
+            int uvRow = ((mTop + row) >> 1)*mUvRowStride + (mLeft >> 1)*mUvPixelStride;
+            int c = (row >> 1)*chromaWidth;
+            for (int x = 0; x<chromaWidth; x++)
+            {
+                int index = uvRow + x*mUvPixelStride;
+                out.put(uOffset + c + x, mU.get(mUBase + index));
+                out.put(vOffset + c + x, mV.get(mVBase + index));
+            }
+        }
+    }
+}
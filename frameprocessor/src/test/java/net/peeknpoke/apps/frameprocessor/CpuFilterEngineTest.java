@@ -0,0 +1,225 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the CPU kernels against a per pixel version of their shaders, the fork-join engine against
+ * running the same kernels on one thread, and the GPU/CPU split chosen from measured times.
+ */
+public class CpuFilterEngineTest {
+    // Not a multiple of the band height, so the last band is a partial one
+    private static final int WIDTH = 67;
+    private static final int HEIGHT = 45;
+
+    private ForkJoinPool mPool;
+
+    @After
+    public void tearDown()
+    {
+        if (mPool!=null)
+            mPool.shutdown();
+    }
+
+    @Test
+    public void negativeInvertsColorsAndKeepsFrameOpaque()
+    {
+        ByteBuffer frame = randomFrame();
+        ByteBuffer expected = copy(frame);
+        apply(new FilterGraph().addStage(FilterGraph.DEFAULT_STAGE), frame, null);
+        for (int i = 0; i<WIDTH*HEIGHT*4; i++)
+        {
+            int value = (i & 3) == 3 ? 255 : 255 - (expected.get(i) & 0xff);
+            assertEquals(value, frame.get(i) & 0xff);
+        }
+    }
+
+    @Test
+    public void grayscaleUsesLumaWeights()
+    {
+        ByteBuffer frame = randomFrame();
+        ByteBuffer source = copy(frame);
+        apply(new FilterGraph().addStage(FilterGraph.GRAYSCALE_STAGE), frame, null);
+        for (int i = 0; i<WIDTH*HEIGHT*4; i += 4)
+        {
+            double luma = 0.299*(source.get(i) & 0xff) + 0.587*(source.get(i + 1) & 0xff) +
+                    0.114*(source.get(i + 2) & 0xff);
+            assertEquals(luma, frame.get(i) & 0xff, 1.0);
+            assertEquals(frame.get(i), frame.get(i + 1));
+            assertEquals(frame.get(i), frame.get(i + 2));
+        }
+    }
+
+    @Test
+    public void brightnessContrastMatchesShader()
+    {
+        ByteBuffer frame = randomFrame();
+        ByteBuffer source = copy(frame);
+        apply(new FilterGraph().addStage(FilterGraph.BRIGHTNESS_CONTRAST_STAGE, 0.1f, 1.5f), frame, null);
+        for (int i = 0; i<WIDTH*HEIGHT*4; i++)
+        {
+            if ((i & 3) == 3)
+                continue;
+            double value = ((source.get(i) & 0xff)/255.0 - 0.5)*1.5 + 0.5 + 0.1;
+            assertEquals(Math.max(0, Math.min(255, value*255)), frame.get(i) & 0xff, 1.0);
+        }
+    }
+
+    @Test
+    public void blurMatchesGaussianWithClampedEdges()
+    {
+        ByteBuffer frame = randomFrame();
+        ByteBuffer source = copy(frame);
+        apply(new FilterGraph().addStage(FilterGraph.BLUR_STAGE), frame, null);
+        int[] weights = {1, 2, 1};
+        for (int y = 0; y<HEIGHT; y++)
+        {
+            for (int x = 0; x<WIDTH; x++)
+            {
+                for (int c = 0; c<3; c++)
+                {
+                    double sum = 0;
+                    for (int dy = -1; dy<=1; dy++)
+                        for (int dx = -1; dx<=1; dx++)
+                            sum += weights[dx + 1]*weights[dy + 1]*channel(source, x + dx, y + dy, c);
+                    // Both passes round
+                    assertEquals(sum/16, channel(frame, x, y, c), 1.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sharpenMatchesShader()
+    {
+        ByteBuffer frame = randomFrame();
+        ByteBuffer source = copy(frame);
+        apply(new FilterGraph().addStage(FilterGraph.SHARPEN_STAGE), frame, null);
+        for (int y = 0; y<HEIGHT; y++)
+        {
+            for (int x = 0; x<WIDTH; x++)
+            {
+                for (int c = 0; c<3; c++)
+                {
+                    int value = 5*channel(source, x, y, c) - channel(source, x - 1, y, c) -
+                            channel(source, x + 1, y, c) - channel(source, x, y - 1, c) - channel(source, x, y + 1, c);
+                    assertEquals(Math.max(0, Math.min(255, value)), channel(frame, x, y, c));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void parallelBandsMatchSingleThread()
+    {
+        FilterGraph graph = new FilterGraph()
+                .addStage(FilterGraph.BLUR_STAGE)
+                .addStage(FilterGraph.SHARPEN_STAGE)
+                .addStage(FilterGraph.BRIGHTNESS_CONTRAST_STAGE, -0.05f, 1.2f)
+                .addStage(FilterGraph.DEFAULT_STAGE);
+        ByteBuffer expected = randomFrame();
+        ByteBuffer frame = copy(expected);
+        apply(graph, expected, null);
+
+        mPool = new ForkJoinPool(4);
+        CpuFilterEngine engine = new CpuFilterEngine(graph, 0, mPool);
+        IntBuffer pixels = frame.asIntBuffer();
+        engine.apply(pixels, WIDTH, HEIGHT);
+        assertArrayEquals(bytes(expected), bytes(frame));
+
+        // A second frame through the same engine reuses its arrays and tasks
+        ByteBuffer second = randomFrame();
+        ByteBuffer secondExpected = copy(second);
+        apply(graph, secondExpected, null);
+        engine.apply(second.asIntBuffer(), WIDTH, HEIGHT);
+        assertArrayEquals(bytes(secondExpected), bytes(second));
+    }
+
+    @Test
+    public void runsOnlyTheStagesAfterTheSplit()
+    {
+        FilterGraph graph = new FilterGraph()
+                .addStage("custom.frag")
+                .addStage(FilterGraph.DEFAULT_STAGE);
+        assertFalse(CpuFilterEngine.supports(graph, 0));
+        assertTrue(CpuFilterEngine.supports(graph, 1));
+        assertEquals(1, FilterPlanner.minimalSplit(graph));
+
+        ByteBuffer frame = randomFrame();
+        ByteBuffer expected = copy(frame);
+        apply(graph.subGraph(1, 2), expected, null);
+        new CpuFilterEngine(graph, 1, null).apply(frame.asIntBuffer(), WIDTH, HEIGHT);
+        assertArrayEquals(bytes(expected), bytes(frame));
+    }
+
+    @Test
+    public void identityLeavesFrameUntouched()
+    {
+        ByteBuffer frame = randomFrame();
+        ByteBuffer expected = copy(frame);
+        apply(FilterGraph.identityGraph(), frame, null);
+        assertArrayEquals(bytes(expected), bytes(frame));
+    }
+
+    @Test
+    public void choosesFastestSplit()
+    {
+        // The GPU is faster for everything
+        assertEquals(3, FilterPlanner.chooseSplit(100, new long[]{100, 100, 100}, new long[]{500, 500, 500}));
+        // The CPU is faster for the last stage only
+        assertEquals(2, FilterPlanner.chooseSplit(100, new long[]{100, 100, 900}, new long[]{500, 500, 200}));
+        // The CPU is faster for everything, the GPU only draws the pass-through
+        assertEquals(0, FilterPlanner.chooseSplit(50, new long[]{900, 900}, new long[]{100, 100}));
+        // The stage without a kernel keeps everything before it on the GPU
+        assertEquals(2, FilterPlanner.chooseSplit(50, new long[]{900, 900, 900}, new long[]{100, -1, 100}));
+        // Ties stay on the GPU
+        assertEquals(1, FilterPlanner.chooseSplit(0, new long[]{100}, new long[]{100}));
+    }
+
+    private static void apply(FilterGraph graph, ByteBuffer frame, ForkJoinPool pool)
+    {
+        new CpuFilterEngine(graph, 0, pool).apply(frame.asIntBuffer(), WIDTH, HEIGHT);
+    }
+
+    private static int channel(ByteBuffer frame, int x, int y, int channel)
+    {
+        x = Math.max(0, Math.min(WIDTH - 1, x));
+        y = Math.max(0, Math.min(HEIGHT - 1, y));
+        return frame.get((y*WIDTH + x)*4 + channel) & 0xff;
+    }
+
+    private static ByteBuffer randomFrame()
+    {
+        ByteBuffer frame = ByteBuffer.allocateDirect(WIDTH*HEIGHT*4).order(ByteOrder.nativeOrder());
+        Random random = new Random(7);
+        for (int i = 0; i<WIDTH*HEIGHT*4; i++)
+            frame.put(i, (i & 3) == 3 ? (byte) 0xff : (byte) random.nextInt(256));
+        return frame;
+    }
+
+    private static ByteBuffer copy(ByteBuffer frame)
+    {
+        ByteBuffer copy = ByteBuffer.allocateDirect(frame.capacity()).order(ByteOrder.nativeOrder());
+        copy.put(frame.duplicate());
+        copy.clear();
+        return copy;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.capacity()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
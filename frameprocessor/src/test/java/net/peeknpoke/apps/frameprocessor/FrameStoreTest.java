@@ -0,0 +1,140 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the eviction order of the frame store, that pinned entries stay, and that entries survive a
+ * restart with or without a saved index. Every test uses a folder of its own, since stores are shared
+ * per folder.
+ */
+public class FrameStoreTest {
+    private File mFolder;
+    private File mSource;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mFolder = Files.createTempDirectory("frames").toFile();
+        mSource = new File(mFolder, "source");
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] children = new File(mFolder, "store").listFiles();
+        if (children!=null)
+        {
+            for (File child : children)
+                child.delete();
+        }
+        new File(mFolder, "store").delete();
+        mSource.delete();
+        new File(mFolder, "copy").delete();
+        mFolder.delete();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException
+    {
+        FrameStore store = open(300);
+        put(store, 1, 100);
+        put(store, 2, 100);
+        put(store, 3, 100);
+        // Used, so 2 is now the least recently used entry
+        assertTrue(store.pin(1));
+        store.unpin(1);
+        put(store, 4, 100);
+        assertTrue(store.contains(1));
+        assertFalse(store.contains(2));
+        assertTrue(store.contains(3));
+        assertTrue(store.contains(4));
+        assertEquals(300, store.getSize());
+        // Larger than the whole budget
+        put(store, 5, 301);
+        assertFalse(store.contains(5));
+    }
+
+    @Test
+    public void keepsPinnedEntries() throws IOException
+    {
+        FrameStore store = open(200);
+        put(store, -1, 100);
+        put(store, 2, 100);
+        assertTrue(store.pin(-1));
+        assertFalse(store.pin(4));
+        put(store, 3, 100);
+        assertTrue(store.contains(-1));
+        assertFalse(store.contains(2));
+        assertTrue(store.contains(3));
+
+        File copy = new File(mFolder, "copy");
+        store.copyTo(-1, copy);
+        assertEquals(100, copy.length());
+        // Even pinned entries are evicted once they are unpinned
+        assertTrue(store.pin(3));
+        store.setMaxBytes(100);
+        assertEquals(200, store.getSize());
+        store.unpin(-1);
+        assertFalse(store.contains(-1));
+        assertEquals(100, store.getSize());
+    }
+
+    @Test
+    public void reopensFromIndexAndFiles() throws IOException
+    {
+        FrameStore store = open(1000);
+        put(store, 1, 10);
+        put(store, 2, 20);
+        store.save();
+        put(store, 3, 30);
+        assertEquals(60, store.getSize());
+
+        // A new process, with the index saved before the last entry
+        File folder = new File(mFolder, "store");
+        File renamed = new File(mFolder, "renamed");
+        assertTrue(folder.renameTo(renamed));
+        FrameStore reopened = FrameStore.open(renamed, 1000);
+        assertEquals(60, reopened.getSize());
+        // The entry missing from the index is the least recently used one
+        reopened.setMaxBytes(59);
+        assertFalse(reopened.contains(3));
+        assertTrue(reopened.contains(1));
+        assertTrue(reopened.contains(2));
+        for (File child : renamed.listFiles())
+            child.delete();
+        renamed.delete();
+    }
+
+    @Test
+    public void namesEntriesByKey()
+    {
+        assertEquals("000000000000002a", FrameStore.entryName(42));
+        assertEquals("ffffffffffffffff", FrameStore.entryName(-1));
+        assertEquals(-1, FrameStore.parseKey("ffffffffffffffff"));
+        assertEquals(Long.MIN_VALUE, FrameStore.parseKey(FrameStore.entryName(Long.MIN_VALUE)));
+    }
+
+    private FrameStore open(long maxBytes) throws IOException
+    {
+        return FrameStore.open(new File(mFolder, "store"), maxBytes);
+    }
+
+    private void put(FrameStore store, long key, int length) throws IOException
+    {
+        try (FileOutputStream out = new FileOutputStream(mSource)) {
+            out.write(new byte[length]);
+        }
+        store.put(key, mSource);
+    }
+}
@@ -0,0 +1,131 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the checkpoint only covers frames with every earlier frame written, and that it survives
+ * a restart for the same job only.
+ */
+public class JobJournalTest {
+    private static final String KEY = "content://video/1|1920x1080|300|App|JPEG@100";
+
+    private File mFolder;
+    private File mOutputFolder;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mFolder = Files.createTempDirectory("journal").toFile();
+        mOutputFolder = new File(mFolder, "output");
+        assertTrue(mOutputFolder.mkdir());
+    }
+
+    @After
+    public void tearDown()
+    {
+        deleteRecursively(mFolder);
+    }
+
+    @Test
+    public void checkpointWaitsForGaps() throws IOException
+    {
+        JobJournal journal = open(100);
+        assertEquals(-1, journal.getCheckpointIndex());
+        journal.frameWritten(1, 1033);
+        journal.frameWritten(2, 1066);
+        assertEquals(-1, journal.getCheckpointIndex());
+        journal.frameWritten(0, 1000);
+        assertEquals(2, journal.getCheckpointIndex());
+        assertEquals(1066, journal.getCheckpointUs());
+        // Far ahead of the checkpoint, past the initial capacity
+        journal.frameWritten(40, 2320);
+        journal.frameWritten(3, 1100);
+        assertEquals(3, journal.getCheckpointIndex());
+        for (int i = 4; i<40; i++)
+            journal.frameWritten(i, 1100 + i);
+        assertEquals(40, journal.getCheckpointIndex());
+        assertEquals(2320, journal.getCheckpointUs());
+    }
+
+    @Test
+    public void resumesSameJobOnly() throws IOException
+    {
+        JobJournal journal = open(2);
+        journal.frameWritten(0, 0);
+        journal.frameWritten(1, 33);
+        journal.frameWritten(2, 66);
+        journal.frameWritten(4, 133);
+
+        // Saved every second frame, the last save was at frame 1
+        JobJournal resumed = open(2);
+        assertEquals(1, resumed.getCheckpointIndex());
+        assertEquals(33, resumed.getCheckpointUs());
+
+        journal.save();
+        resumed = open(2);
+        assertEquals(2, resumed.getCheckpointIndex());
+        assertEquals(66, resumed.getCheckpointUs());
+        // Frames at or before the checkpoint are already covered
+        resumed.frameWritten(2, 66);
+        assertEquals(2, resumed.getCheckpointIndex());
+
+        assertEquals(-1, JobJournal.open(mFolder, KEY+"|other", mOutputFolder.getPath(), 2).getCheckpointIndex());
+        assertEquals(-1, JobJournal.open(mFolder, KEY, mFolder.getPath(), 2).getCheckpointIndex());
+        deleteRecursively(mOutputFolder);
+        assertEquals(-1, open(2).getCheckpointIndex());
+    }
+
+    @Test
+    public void completeJobLeavesNoJournal() throws IOException
+    {
+        JobJournal journal = open(1);
+        journal.frameWritten(0, 0);
+        journal.frameWritten(2, 66);
+        // Frame 1 was never written, the next run starts from it
+        journal.finish(2);
+        assertEquals(0, open(1).getCheckpointIndex());
+
+        journal.frameWritten(1, 33);
+        journal.finish(2);
+        assertEquals(-1, open(1).getCheckpointIndex());
+        assertFalse(new File(mFolder, Integer.toHexString(KEY.hashCode()) + ".journal").exists());
+    }
+
+    @Test
+    public void missingLastFrameKeepsJournal() throws IOException
+    {
+        JobJournal journal = open(1);
+        journal.frameWritten(0, 0);
+        journal.frameWritten(1, 33);
+        // Frame 2 was handed to the outputs but never written, nothing is pending past the checkpoint
+        journal.finish(2);
+        assertEquals(1, open(1).getCheckpointIndex());
+        assertEquals(33, open(1).getCheckpointUs());
+    }
+
+    private JobJournal open(int saveInterval)
+    {
+        return JobJournal.open(mFolder, KEY, mOutputFolder.getPath(), saveInterval);
+    }
+
+    private static void deleteRecursively(File file)
+    {
+        File[] children = file.listFiles();
+        if (children!=null)
+        {
+            for (File child : children)
+                deleteRecursively(child);
+        }
+        file.delete();
+    }
+}
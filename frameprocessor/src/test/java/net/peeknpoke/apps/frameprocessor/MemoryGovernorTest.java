@@ -0,0 +1,39 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks how many frame slots the memory governor grants for given heap and native memory figures.
+ */
+public class MemoryGovernorTest {
+    private static final long MB = 1024*1024;
+
+    @Test
+    public void sharesTheFreeHeap()
+    {
+        // 100 MB free, half of it for 8 MB slots
+        assertEquals(6, MemoryGovernor.affordableSlots(256*MB, 156*MB, 0, 8*MB, 0, 0));
+        // The slots already allocated count as free
+        assertEquals(8, MemoryGovernor.affordableSlots(256*MB, 156*MB, 0, 8*MB, 0, 4));
+        assertEquals(0, MemoryGovernor.affordableSlots(256*MB, 300*MB, 0, 8*MB, 0, 0));
+    }
+
+    @Test
+    public void nativeMemoryCaps()
+    {
+        // A quarter of 64 MB available for 8 MB of bitmap per slot
+        assertEquals(2, MemoryGovernor.affordableSlots(256*MB, 0, 64*MB, 8*MB, 8*MB, 0));
+        assertEquals(3, MemoryGovernor.affordableSlots(256*MB, 0, 64*MB, 8*MB, 8*MB, 4));
+    }
+
+    @Test
+    public void splitsBetweenOutputs()
+    {
+        assertEquals(3, MemoryGovernor.slotsPerOutput(7, 2, 6));
+        assertEquals(6, MemoryGovernor.slotsPerOutput(100, 2, 6));
+        // Never less than one slot, or the pipeline stops
+        assertEquals(1, MemoryGovernor.slotsPerOutput(0, 4, 6));
+    }
+}
@@ -0,0 +1,61 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which frames the segments around cached runs decode.
+ */
+public class SegmentPlannerTest {
+    private static final int MIN_CACHED_RUN = 3;
+
+    @Test
+    public void skipsLongCachedRuns()
+    {
+        List<SegmentPlanner.Segment> segments = plan("..cccc.cc..ccc");
+        assertEquals(2, segments.size());
+        assertSegment(segments.get(0), 0, 2, SegmentPlanner.Segment.NOT_RESUMED);
+        // The short cached run is decoded along with the frames around it
+        assertSegment(segments.get(1), 6, 5, 5*1000);
+        assertEquals(6*1000, segments.get(1).startUs);
+        assertTrue(plan("cccccc").isEmpty());
+    }
+
+    @Test
+    public void trailingAndLeadingRuns()
+    {
+        List<SegmentPlanner.Segment> segments = plan("c.cc");
+        assertEquals(1, segments.size());
+        assertSegment(segments.get(0), 1, 1, 0);
+        segments = plan("....");
+        assertEquals(1, segments.size());
+        assertSegment(segments.get(0), 0, 4, SegmentPlanner.Segment.NOT_RESUMED);
+    }
+
+    /**
+     * @param frames one character per frame, c for a cached one
+     */
+    private static List<SegmentPlanner.Segment> plan(String frames)
+    {
+        long[] presentationTimesUs = new long[frames.length()];
+        boolean[] cached = new boolean[frames.length()];
+        for (int i = 0; i<cached.length; i++)
+        {
+            presentationTimesUs[i] = i*1000;
+            cached[i] = frames.charAt(i) == 'c';
+        }
+        return SegmentPlanner.planUncached(presentationTimesUs, cached, MIN_CACHED_RUN);
+    }
+
+    private static void assertSegment(SegmentPlanner.Segment segment, int firstFrameIndex, int maxFrames,
+                                      long resumeAfterUs)
+    {
+        assertEquals(firstFrameIndex, segment.firstFrameIndex);
+        assertEquals(maxFrames, segment.maxFrames);
+        assertEquals(resumeAfterUs, segment.resumeAfterUs);
+    }
+}
@@ -0,0 +1,121 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a few helpers the frame loop calls for every frame do not allocate once warmed up: the
+ * decoded frame ring, the statistics, the decode latency tracker and the file name builder. It does not
+ * run the frame loop itself, which needs OpenGL and MediaCodec, and the File, path String and
+ * FileOutputStream that FileFrameSink creates for every image are left out.
+ *
+ * The JVM's per thread allocation counter is not part of android.jar, which the unit tests are compiled
+ * against, so it is looked up by reflection and the test is skipped where it is missing.
+ */
+public class SteadyStateAllocationTest {
+    private static final int WARMUP_FRAMES = 20000;
+    private static final int MEASURED_FRAMES = 20000;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final int WARMUP_READS = 100;
+
+    private Object mThreadBean;
+    private Method mThreadAllocatedBytes;
+    private FrameRing mFrameRing;
+    private PipelineStats mStats;
+    private DecodeLatencyTracker mDecodeLatency;
+    private MediaFileNamer mNamer;
+    private long mChecksum;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Class<?> beanClass;
+        try {
+            beanClass = Class.forName("com.sun.management.ThreadMXBean");
+            mThreadBean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+        } catch (ClassNotFoundException e) {
+            mThreadBean = null;
+            beanClass = null;
+        }
+        Assume.assumeTrue(beanClass!=null && beanClass.isInstance(mThreadBean));
+        Assume.assumeTrue((Boolean) beanClass.getMethod("isThreadAllocatedMemorySupported").invoke(mThreadBean));
+        beanClass.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(mThreadBean, true);
+        mThreadAllocatedBytes = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+
+        mFrameRing = new FrameRing(4);
+        mStats = new PipelineStats(0);
+        mDecodeLatency = new DecodeLatencyTracker();
+        mNamer = new MediaFileNamer(new File("/sdcard/DCIM/VideoProcessing"));
+    }
+
+    @Test
+    public void frameLoopDoesNotAllocate() throws Exception
+    {
+        // Starts well past the first second so the timestamp is formatted during the warmup
+        long timeMillis = 1600000000000L;
+        for (int i = 0; i<WARMUP_FRAMES; i++)
+            frame(i, timeMillis);
+
+        Runnable nothing = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        // Warms up the reflective calls, which change how they are made after the first few
+        long baseline = Long.MAX_VALUE;
+        for (int i = 0; i<WARMUP_READS; i++)
+            baseline = Math.min(baseline, allocatedBytes(nothing));
+        final long sameSecond = timeMillis;
+        Runnable frames = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i<MEASURED_FRAMES; i++)
+                    frame(WARMUP_FRAMES + i, sameSecond);
+            }
+        };
+        // The JIT compiling in the background can be charged to this thread, so a few rounds are
+        // measured and the quietest one counts
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round<MEASURED_ROUNDS && allocated > baseline; round++)
+            allocated = Math.min(allocated, allocatedBytes(frames));
+
+        assertEquals("Bytes allocated over " + MEASURED_FRAMES + " frames", baseline, allocated);
+    }
+
+    private void frame(int frameIndex, long timeMillis)
+    {
+        long presentationTimeUs = frameIndex*33333L;
+        long start = System.nanoTime();
+
+        mDecodeLatency.sampleQueued(presentationTimeUs);
+        mFrameRing.offer(frameIndex & 7, presentationTimeUs, 0);
+        mStats.recordQueueDepth(PipelineStats.Queue.DECODED_FRAMES, mFrameRing.size());
+        long latency = mDecodeLatency.outputAvailable(presentationTimeUs);
+        mStats.recordLatency(PipelineStats.Stage.DECODE, latency);
+
+        mChecksum += mFrameRing.peekBufferIndex() + mFrameRing.peekPresentationTimeUs() + mFrameRing.peekFlags();
+        mFrameRing.pop();
+        mStats.record(PipelineStats.Stage.DRAW, start);
+
+        int length = mNamer.format(timeMillis, "output_", frameIndex, ".jpg");
+        mChecksum += mNamer.getChars()[length - 1];
+        mStats.frameRendered();
+    }
+
+    private long allocatedBytes(Runnable work) throws Exception
+    {
+        long threadId = Thread.currentThread().getId();
+        // Reading the counter through reflection allocates the same amount every time, which the
+        // baseline measurement of no work at all cancels out
+        long before = (Long) mThreadAllocatedBytes.invoke(mThreadBean, threadId);
+        work.run();
+        return (Long) mThreadAllocatedBytes.invoke(mThreadBean, threadId) - before;
+    }
+}
@@ -0,0 +1,230 @@
+package net.peeknpoke.apps.frameprocessor;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the CPU conversion of YUV frames against a plain per pixel conversion, for planar and
+ * semi-planar chroma, cropped regions and any number of threads.
+ */
+public class YuvConverterTest {
+    private static final int WIDTH = 176;
+    private static final int HEIGHT = 144;
+    // Padded rows, as decoders produce them
+    private static final int Y_ROW_STRIDE = 192;
+
+    private YuvConverter mConverter;
+
+    @After
+    public void tearDown()
+    {
+        if (mConverter!=null)
+            mConverter.release();
+    }
+
+    @Test
+    public void convertsReferenceColors()
+    {
+        mConverter = new YuvConverter(1);
+        assertRgba(16, 128, 128, 0, 0, 0);
+        assertRgba(235, 128, 128, 255, 255, 255);
+        // BT.601 red, green and blue in limited range
+        assertRgba(82, 90, 240, 255, 0, 0);
+        assertRgba(145, 54, 34, 0, 255, 0);
+        assertRgba(41, 240, 110, 0, 0, 255);
+    }
+
+    @Test
+    public void threadsMatchSingleThreadedConversion()
+    {
+        Planes planes = Planes.random(2);
+        mConverter = new YuvConverter(1);
+        ByteBuffer expected = convert(planes, 0, 0, WIDTH, HEIGHT);
+        mConverter.release();
+
+        mConverter = new YuvConverter(4);
+        // Repeated, so the workers go through several frames
+        for (int i = 0; i<3; i++)
+            assertArrayEquals(bytes(expected), bytes(convert(planes, 0, 0, WIDTH, HEIGHT)));
+    }
+
+    @Test
+    public void convertsCroppedSemiPlanarFrame()
+    {
+        Planes planes = Planes.random(2);
+        mConverter = new YuvConverter(3);
+        int left = 10;
+        int top = 6;
+        int width = 101;
+        int height = 77;
+        ByteBuffer out = convert(planes, left, top, width, height);
+        for (int y = 0; y<height; y++)
+        {
+            for (int x = 0; x<width; x++)
+            {
+                int[] rgb = reference(planes, left + x, top + y);
+                int o = (y*width + x)*4;
+                assertEquals(rgb[0], out.get(o) & 0xff, 1);
+                assertEquals(rgb[1], out.get(o + 1) & 0xff, 1);
+                assertEquals(rgb[2], out.get(o + 2) & 0xff, 1);
+                assertEquals(255, out.get(o + 3) & 0xff);
+            }
+        }
+    }
+
+    @Test
+    public void packsI420()
+    {
+        Planes planes = Planes.random(2);
+        mConverter = new YuvConverter(2);
+        int left = 4;
+        int top = 2;
+        int width = 33;
+        int height = 21;
+        int chromaWidth = (width + 1)/2;
+        int chromaHeight = (height + 1)/2;
+        ByteBuffer out = ByteBuffer.allocateDirect(YuvConverter.i420Size(width, height));
+        mConverter.setPlanes(planes.y, Y_ROW_STRIDE, planes.u, planes.v, planes.uvRowStride, planes.uvPixelStride);
+        mConverter.toI420(left, top, width, height, out);
+
+        for (int y = 0; y<height; y++)
+            for (int x = 0; x<width; x++)
+                assertEquals(planes.y.get((top + y)*Y_ROW_STRIDE + left + x), out.get(y*width + x));
+        for (int y = 0; y<chromaHeight; y++)
+        {
+            for (int x = 0; x<chromaWidth; x++)
+            {
+                int index = (top/2 + y)*planes.uvRowStride + (left/2 + x)*planes.uvPixelStride;
+                int c = y*chromaWidth + x;
+                assertEquals(planes.u.get(index), out.get(width*height + c));
+                assertEquals(planes.v.get(index), out.get(width*height + chromaWidth*chromaHeight + c));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOddRegion()
+    {
+        Planes planes = Planes.random(1);
+        mConverter = new YuvConverter(1);
+        convert(planes, 1, 0, 8, 8);
+    }
+
+    private void assertRgba(int y, int u, int v, int r, int g, int b)
+    {
+        Planes planes = Planes.uniform(y, u, v);
+        ByteBuffer out = convert(planes, 0, 0, 2, 2);
+        assertEquals(r, out.get(0) & 0xff, 2);
+        assertEquals(g, out.get(1) & 0xff, 2);
+        assertEquals(b, out.get(2) & 0xff, 2);
+        assertEquals(255, out.get(3) & 0xff);
+    }
+
+    private ByteBuffer convert(Planes planes, int left, int top, int width, int height)
+    {
+        ByteBuffer out = ByteBuffer.allocateDirect(width*height*4);
+        mConverter.setPlanes(planes.y, Y_ROW_STRIDE, planes.u, planes.v, planes.uvRowStride, planes.uvPixelStride);
+        mConverter.toRgba(left, top, width, height, out);
+        return out;
+    }
+
+    private static int[] reference(Planes planes, int x, int y)
+    {
+        int index = (y/2)*planes.uvRowStride + (x/2)*planes.uvPixelStride;
+        double luma = 1.164*((planes.y.get(y*Y_ROW_STRIDE + x) & 0xff) - 16);
+        double cb = (planes.u.get(index) & 0xff) - 128;
+        double cr = (planes.v.get(index) & 0xff) - 128;
+        return new int[]{
+                clamp(luma + 1.596*cr),
+                clamp(luma - 0.391*cb - 0.813*cr),
+                clamp(luma + 2.018*cb)
+        };
+    }
+
+    private static int clamp(double value)
+    {
+        return (int) Math.max(0, Math.min(255, Math.floor(value)));
+    }
+
+    private static byte[] bytes(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.capacity()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Planes of a WIDTH x HEIGHT frame. With a pixel stride of 2, U and V interleave in one buffer
+     * like NV12 output of a decoder.
+     */
+    private static class Planes {
+        ByteBuffer y;
+        ByteBuffer u;
+        ByteBuffer v;
+        int uvRowStride;
+        int uvPixelStride;
+
+        static Planes random(int uvPixelStride)
+        {
+            Random random = new Random(42);
+            Planes planes = create(uvPixelStride);
+            fill(planes.y, random);
+            fill(planes.u, random);
+            if (uvPixelStride == 1)
+                fill(planes.v, random);
+            return planes;
+        }
+
+        static Planes uniform(int y, int u, int v)
+        {
+            Planes planes = create(1);
+            while (planes.y.hasRemaining())
+                planes.y.put((byte) y);
+            while (planes.u.hasRemaining())
+                planes.u.put((byte) u);
+            while (planes.v.hasRemaining())
+                planes.v.put((byte) v);
+            planes.y.clear();
+            planes.u.clear();
+            planes.v.clear();
+            return planes;
+        }
+
+        private static Planes create(int uvPixelStride)
+        {
+            Planes planes = new Planes();
+            planes.uvPixelStride = uvPixelStride;
+            planes.uvRowStride = Y_ROW_STRIDE/2*uvPixelStride;
+            planes.y = ByteBuffer.allocateDirect(Y_ROW_STRIDE*HEIGHT);
+            int chromaSize = planes.uvRowStride*HEIGHT/2;
+            if (uvPixelStride == 1)
+            {
+                planes.u = ByteBuffer.allocateDirect(chromaSize);
+                planes.v = ByteBuffer.allocateDirect(chromaSize);
+            }
+            else
+            {
+                // V starts one byte into the interleaved plane, as in a YUV_420_888 image
+                ByteBuffer interleaved = ByteBuffer.allocateDirect(chromaSize);
+                planes.u = interleaved.duplicate();
+                planes.v = interleaved.duplicate();
+                planes.v.position(1);
+                planes.v = planes.v.slice();
+            }
+            return planes;
+        }
+
+        private static void fill(ByteBuffer buffer, Random random)
+        {
+            while (buffer.hasRemaining())
+                buffer.put((byte) random.nextInt(256));
+            buffer.clear();
+        }
+    }
+}